@@ -88,7 +88,7 @@ package org.opencds.cqf.tooling;
             - Example: mvn exec:java -Dexec.args="-RefreshLibrary -ini=C:\Users\Bryn\Documents\Src\HL7\sample-ig\ig.ini -fv=fhir4 -lp=C:\Users\Bryn\Documents\Src\HL7\sample-ig\input\examples\Library-example.json"
 
         - Bundle Resources
-            - mvn exec:java -Dexec.args="[-BundleResources] [-pathtodirectory | -ptd] (-outputpath | -op) (-version | -v) (-encoding | -e) (-bundleid | -bid) "
+            - mvn exec:java -Dexec.args="[-BundleResources] [-pathtodirectory | -ptd] (-outputpath | -op) (-version | -v) (-encoding | -e) (-bundleid | -bid) (-stream | -s) "
             - Example: mvn exec:java -Dexec.args="-BundleResources -ptd=/Users/adam/Src/cqframework/opioid-cds-r4/quickstartcontent -op=/Users/adam/Src/cqframework/opioid-cds-r4/quickstartcontentbundle -v=r4"
             - This Operation consolidates all resources from files in the 'pathtodirectory' directory into a single FHIR Bundle with
             - an ID that is the value specified in the 'bunldeid' argument and outputs that generated bundle in file format
@@ -119,12 +119,14 @@ package org.opencds.cqf.tooling;
             - Accepts Bundles with .json or .xml extensions
             
         - MAT Bundle extraction
-        	- mvn exec:java -Dexec.args="[-ExtractMatBundle] [Bundle file path] (-v)
+        	- mvn exec:java -Dexec.args="[-ExtractMatBundle] [Bundle file path] (-v) (-stream | -s)
         	- Example: mvn exec:java -Dexec.args="-ExtractMatBundle /Users/mholck/Development/ecqm-content-r4/bundles/mat/EXM124/EXM124.json -v=r4"
         	- This tooling extracts out the resources and CQL from a MAT export bundle and puts them in the appropriate directories
         	- Accepts Bundles with .json or .xml extensions
         	- version = FHIR version { stu3, r4 }
                 Default version: r4
+        	- stream = read the entries of the bundle one at a time rather than the whole bundle { true, false }
+                Default stream: false
 
         - Generate StructureDefinitions from ModelInfo
             - command: mvn exec:java -Dexec.args="[-GenerateSDs] [path to modelinfo xml] (-outputpath | -op) (-encoding | -e)"
@@ -1,23 +1,34 @@
 package org.opencds.cqf.tooling.library;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.io.FilenameUtils;
+
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.DefaultLibrarySourceProvider;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.LibrarySourceProvider;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.tracking.TrackBack;
+import org.cqframework.cql.elm.visiting.ElmBaseLibraryVisitor;
+import org.hl7.elm.r1.Retrieve;
 import org.hl7.elm.r1.ValueSetDef;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.tooling.Operation;
+import org.opencds.cqf.tooling.utilities.ElmCache;
+import org.opencds.cqf.tooling.utilities.ElmSerializer;
+import org.opencds.cqf.tooling.utilities.IOUtils;
+import org.opencds.cqf.tooling.utilities.PrecompiledModelInfoProvider;
+import org.opencds.cqf.tooling.utilities.ResourceIndexStore;
 
 import ca.uhn.fhir.context.FhirContext;
 
@@ -38,21 +49,30 @@ public abstract class BaseLibraryGenerator<L extends IBaseResource, T extends Ba
     private LibrarySourceProvider sourceProvider;
 
     private String pathToLibrary;
+    private boolean cacheElm;
+    // The translators of the libraries translated by this run, and the ELM cache entries of those restored instead
     private Map<String, CqlTranslator> translatorMap = new HashMap<>();
+    private Map<String, ElmCache.Entry> cachedElmMap = new HashMap<>();
+    private Map<String, org.hl7.elm.r1.Library> elmMap = new HashMap<>();
+    private Map<String, List<Retrieve>> retrieveMap = new HashMap<>();
     private Map<String, String> cqlMap = new HashMap<>();
-    private Map<String, String> elmMap = new HashMap<>();
     private Map<String, L> libraryMap = new HashMap<>();
 
     //instead of processLibrary this would be refreshLibrary or refreshMeasure
-    public abstract void processLibrary(String id, CqlTranslator translator);
+    public abstract void processLibrary(String id, org.hl7.elm.r1.Library elm);
     public abstract void output();
 
     @Override
     public void execute(String[] args) {
         buildArgs(args);
         setRelevantCqlFiles();
+        if (cacheElm) {
+            String cacheDirectory = FilenameUtils.concat(new File(pathToCQLContent).getAbsoluteFile().getParent(), ResourceIndexStore.CACHE_DIRECTORY_NAME);
+            ElmCache.setCacheDirectory(FilenameUtils.concat(cacheDirectory, ElmCache.DIRECTORY_NAME));
+        }
         
         modelManager = new ModelManager();
+        PrecompiledModelInfoProvider.register(modelManager, null);
         sourceProvider = new DefaultLibrarySourceProvider(new File(pathToCQLContent).getParentFile().toPath());
         //sourceProvider = new GenericLibrarySourceProvider(pathToCqlContentDir);
         libraryManager = new LibraryManager(modelManager);
@@ -60,7 +80,7 @@ public abstract class BaseLibraryGenerator<L extends IBaseResource, T extends Ba
 
         translateCqlFiles();
 
-        for (Map.Entry<String, CqlTranslator> entry : translatorMap.entrySet()) {
+        for (Map.Entry<String, org.hl7.elm.r1.Library> entry : elmMap.entrySet()) {
             if (!libraryMap.containsKey(entry.getKey())) {
                 processLibrary(entry.getKey(), entry.getValue());
             }
@@ -70,8 +90,8 @@ public abstract class BaseLibraryGenerator<L extends IBaseResource, T extends Ba
     }
 
     protected String getValueSetId(String valueSetName) {
-        for (CqlTranslator translator : translatorMap.values()) {
-            org.hl7.elm.r1.Library.ValueSets valueSets = translator.toELM().getValueSets();
+        for (org.hl7.elm.r1.Library elm : elmMap.values()) {
+            org.hl7.elm.r1.Library.ValueSets valueSets = elm.getValueSets();
             if (valueSets != null) {
                 for (ValueSetDef def : valueSets.getDef()) {
                     if (def.getName().equals(valueSetName)) {
@@ -109,6 +129,10 @@ public abstract class BaseLibraryGenerator<L extends IBaseResource, T extends Ba
                 case "-outputpath":
                 case "-op":
                     setOutputPath(value);
+                    break;
+                case "-cacheelm":
+                case "-ce":
+                    cacheElm = value == null || Boolean.parseBoolean(value);
                     break;        
             }
         }
@@ -154,46 +178,102 @@ public abstract class BaseLibraryGenerator<L extends IBaseResource, T extends Ba
     }
 
     private void translateCqlFiles() {
-        CqlTranslator translator;
+        CqlTranslatorOptions options = new CqlTranslatorOptions(translatorOptions);
         for (File cqlFile : cqlFiles) {
             if (!cqlFile.getName().endsWith(".cql")) continue;
-            translator = translate(cqlFile);
-            translatorMap.put(translator.toELM().getIdentifier().getId(), translator);
-            cqlMap.put(translator.toELM().getIdentifier().getId(), getCql(cqlFile));
-            if (encoding.equals("json")) {
-                elmMap.put(translator.toELM().getIdentifier().getId(), translator.toJson());
+            String cacheKey = ElmCache.isEnabled() ? ElmCache.getKey(cqlFile, options, null) : null;
+            ElmCache.Entry cached = cacheKey == null ? null : ElmCache.get(cacheKey);
+            if (cached != null && cached.getJsonPath() != null) {
+                // Restored without invoking the translator
+                org.hl7.elm.r1.Library elm = ElmCache.readLibrary(cached.getXmlPath());
+                String id = elm.getIdentifier().getId();
+                cachedElmMap.put(id, cached);
+                elmMap.put(id, elm);
+                retrieveMap.put(id, collectRetrieves(elm));
+                cqlMap.put(id, getCql(cqlFile));
+                continue;
             }
-            else {
-                elmMap.put(translator.toELM().getIdentifier().getId(), translator.toXml());
+
+            CqlTranslator translator = translate(cqlFile);
+            String id = translator.toELM().getIdentifier().getId();
+            translatorMap.put(id, translator);
+            elmMap.put(id, translator.toELM());
+            retrieveMap.put(id, translator.toRetrieves());
+            cqlMap.put(id, getCql(cqlFile));
+            if (cacheKey != null) {
+                ElmCache.Entry entry = new ElmCache.Entry();
+                entry.setIdentifier(translator.toELM().getIdentifier());
+                ElmCache.put(cacheKey, entry, output -> ElmSerializer.writeXml(translator.toELM(), output),
+                    output -> ElmSerializer.writeJson(translator, CqlTranslator.Format.JSON, output));
             }
         }
     }
 
-    private String getCql(File file) {
-        StringBuilder cql = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                cql.append(line).append("\n");
+    // The retrieves of the library, as the translator reports them
+    private static List<Retrieve> collectRetrieves(org.hl7.elm.r1.Library elm) {
+        List<Retrieve> retrieves = new ArrayList<>();
+        new ElmBaseLibraryVisitor<Void, List<Retrieve>>() {
+            @Override
+            public Void visitRetrieve(Retrieve retrieve, List<Retrieve> context) {
+                context.add(retrieve);
+                return super.visitRetrieve(retrieve, context);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new IllegalArgumentException("Error reading CQL file: " + file.getName());
+        }.visitLibrary(elm, retrieves);
+        return retrieves;
+    }
+
+    /**
+     * Writes the ELM of the library in the output encoding, straight from its translator or its ELM cache entry.
+     */
+    protected void writeElm(String id, OutputStream output) throws IOException {
+        ElmCache.Entry cached = cachedElmMap.get(id);
+        if (cached != null) {
+            Files.copy(encoding.equals("json") ? cached.getJsonPath() : cached.getXmlPath(), output);
+            return;
+        }
+        CqlTranslator translator = translatorMap.get(id);
+        if (encoding.equals("json")) {
+            ElmSerializer.writeJson(translator, CqlTranslator.Format.JSON, output);
+        }
+        else {
+            ElmSerializer.writeXml(translator.toELM(), output);
         }
-        return cql.toString();
     }
 
+    /**
+     * The ELM XML of the library, for the content of the generated Library resource.
+     */
+    protected byte[] getElmXml(String id) {
+        ElmCache.Entry cached = cachedElmMap.get(id);
+        if (cached != null) {
+            try {
+                return Files.readAllBytes(cached.getXmlPath());
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException("Error reading cached ELM for library " + id + ": " + e.getMessage());
+            }
+        }
+        return ElmSerializer.toXmlBytes(elmMap.get(id));
+    }
+
+    protected List<Retrieve> getRetrieves(String id) {
+        return retrieveMap.get(id);
+    }
+
+    private String getCql(File file) {
+        return IOUtils.getCqlString(file.getPath());
+    }
+
+    private static final CqlTranslator.Options[] translatorOptions = { CqlTranslator.Options.EnableDateRangeOptimization };
+
     private CqlTranslator translate(File cqlFile) {
         try {
-            ArrayList<CqlTranslator.Options> options = new ArrayList<>();
-            options.add(CqlTranslator.Options.EnableDateRangeOptimization);
-
             CqlTranslator translator =
                 CqlTranslator.fromFile(
                     cqlFile,
                     modelManager,
                     libraryManager,
-                    options.toArray(new CqlTranslator.Options[0])
+                    translatorOptions
                 );
 
             if (translator.getErrors().size() > 0) {
@@ -286,18 +366,14 @@ public abstract class BaseLibraryGenerator<L extends IBaseResource, T extends Ba
         return libraryMap;
     }
 
-    protected Map<String, CqlTranslator> getTranslatorMap() {
-        return translatorMap;
+    protected Map<String, org.hl7.elm.r1.Library> getElmMap() {
+        return elmMap;
     }
 
     protected Map<String, String> getCqlMap() {
         return cqlMap;
     }
 
-    protected Map<String, String> getElmMap() {
-        return elmMap;
-    }
-
     protected String getPathToLibrary() {
         return pathToLibrary;
     }
@@ -1,10 +1,12 @@
 package org.opencds.cqf.tooling.library;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.FilenameUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -31,6 +33,14 @@ public class LibraryProcessor extends BaseProcessor {
     }
     
     public static List<String> refreshIgLibraryContent(BaseProcessor parentContext, Encoding outputEncoding, Boolean versioned, FhirContext fhirContext) {
+        return refreshIgLibraryContent(parentContext, outputEncoding, versioned, fhirContext, null);
+    }
+
+    /**
+     * Refreshes the libraries of the IG with the given names (by library name), or every library if libraryNames is null.
+     */
+    public static List<String> refreshIgLibraryContent(BaseProcessor parentContext, Encoding outputEncoding, Boolean versioned, FhirContext fhirContext,
+            Set<String> libraryNames) {
         System.out.println("Refreshing libraries...");
         // ArrayList<String> refreshedLibraryNames = new ArrayList<String>();
 
@@ -54,6 +64,7 @@ public class LibraryProcessor extends BaseProcessor {
         params.fhirContext = fhirContext;
         params.encoding = outputEncoding;
         params.versioned = versioned;
+        params.libraryNames = libraryNames;
         return libraryProcessor.refreshLibraryContent(params);
     }
 
@@ -79,6 +90,13 @@ public class LibraryProcessor extends BaseProcessor {
 
     protected boolean versioned;
 
+    // The names of the libraries to refresh, or null for every library
+    protected Set<String> libraryNames;
+
+    private boolean isSelected(String libraryName) {
+        return libraryNames == null || libraryNames.contains(libraryName);
+    }
+
     /*
     Refreshes generated content in the given library.
     The name element of the library resource is used to find the cql file (filename = <name>.cql)
@@ -115,11 +133,19 @@ public class LibraryProcessor extends BaseProcessor {
             attachment.setUrlElement(null);
             if (info != null) {
                 //f.getErrors().addAll(info.getErrors());
-                if (info.getElm() != null) {
-                    sourceLibrary.addContent().setContentType("application/elm+xml").setData(info.getElm());
-                }
-                if (info.getJsonElm() != null) {
-                    sourceLibrary.addContent().setContentType("application/elm+json").setData(info.getJsonElm());
+                try {
+                    if (info.hasElm()) {
+                        ByteArrayOutputStream elm = new ByteArrayOutputStream();
+                        info.writeElm(elm);
+                        sourceLibrary.addContent().setContentType("application/elm+xml").setData(elm.toByteArray());
+                    }
+                    if (info.hasJsonElm()) {
+                        ByteArrayOutputStream jsonElm = new ByteArrayOutputStream();
+                        info.writeJsonElm(jsonElm);
+                        sourceLibrary.addContent().setContentType("application/elm+json").setData(jsonElm.toByteArray());
+                    }
+                } catch (IOException e) {
+                    logMessage(String.format("Error reading ELM for library %s: %s", libraryName, e.getMessage()));
                 }
                 sourceLibrary.getDataRequirement().clear();
                 sourceLibrary.getDataRequirement().addAll(info.getDataRequirements());
@@ -157,7 +183,8 @@ public class LibraryProcessor extends BaseProcessor {
 
         // For each CQL file, ensure that there is a Library resource with a matching name and version
         for (CqlProcessor.CqlSourceFileInformation fileInfo : getCqlProcessor().getAllFileInformation()) {
-            if (fileInfo.getIdentifier() != null && fileInfo.getIdentifier().getId() != null && !fileInfo.getIdentifier().getId().equals("")) {
+            if (fileInfo.getIdentifier() != null && fileInfo.getIdentifier().getId() != null && !fileInfo.getIdentifier().getId().equals("")
+                    && isSelected(fileInfo.getIdentifier().getId())) {
                 Library existingLibrary = null;
                 for (Library sourceLibrary : sourceLibraries) {
                     if (fileInfo.getIdentifier().getId().equals(sourceLibrary.getName())
@@ -181,7 +208,9 @@ public class LibraryProcessor extends BaseProcessor {
 
         List<Library> resources = new ArrayList<Library>();
         for (Library library : sourceLibraries) {
-            resources.add(refreshGeneratedContent(library));
+            if (isSelected(library.getName())) {
+                resources.add(refreshGeneratedContent(library));
+            }
         }
         return resources;
     }
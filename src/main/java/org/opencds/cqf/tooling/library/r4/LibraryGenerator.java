@@ -5,7 +5,6 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
 
-import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.hl7.elm.r1.IncludeDef;
 import org.hl7.elm.r1.Retrieve;
 import org.hl7.elm.r1.ValueSetRef;
@@ -31,16 +30,15 @@ public class LibraryGenerator extends BaseLibraryGenerator<Library, NarrativePro
     }
 
     @Override
-    public void processLibrary(String id, CqlTranslator translator) {
-        org.hl7.elm.r1.Library elm = translator.toELM();
+    public void processLibrary(String id, org.hl7.elm.r1.Library elm) {
         Library library = populateMeta(id, elm.getIdentifier().getVersion());
         if (elm.getIncludes() != null && !elm.getIncludes().getDef().isEmpty()) {
             for (IncludeDef def : elm.getIncludes().getDef()) {
                 if (!getLibraryMap().containsKey(def.getPath())) {
-                    if (!getTranslatorMap().containsKey(def.getPath())) {
+                    if (!getElmMap().containsKey(def.getPath())) {
                         throw new IllegalArgumentException("Referenced library: " + def.getPath().replaceAll("_", "-").toLowerCase() + " not found");
                     }
-                    processLibrary(def.getPath(), getTranslatorMap().get(def.getPath()));
+                    processLibrary(def.getPath(), getElmMap().get(def.getPath()));
                 }
 
                 library.addRelatedArtifact(
@@ -55,8 +53,8 @@ public class LibraryGenerator extends BaseLibraryGenerator<Library, NarrativePro
             }
         }
 
-        resolveDataRequirements(library, translator);
-        attachContent(library, translator, getCqlMap().get(id));
+        resolveDataRequirements(library, id);
+        attachContent(library, id, getCqlMap().get(id));
         // library.setText(getNarrativeProvider().getNarrative(getFhirContext(), library));
         getLibraryMap().put(id, library);
     }
@@ -81,7 +79,7 @@ public class LibraryGenerator extends BaseLibraryGenerator<Library, NarrativePro
             }
             try (FileOutputStream writer = new FileOutputStream(getOutputPath() + "/elm-" + entry.getKey().replaceAll("_", "-").toLowerCase() + "." + getEncoding()))
             {
-                writer.write(getElmMap().get(entry.getKey()).getBytes());
+                writeElm(entry.getKey(), writer);
                 writer.flush();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -115,8 +113,8 @@ public class LibraryGenerator extends BaseLibraryGenerator<Library, NarrativePro
     }
 
     // Resolve DataRequirements
-    private void resolveDataRequirements(Library library, CqlTranslator translator) {
-        for (Retrieve retrieve : translator.toRetrieves()) {
+    private void resolveDataRequirements(Library library, String id) {
+        for (Retrieve retrieve : getRetrieves(id)) {
             DataRequirement dataReq = new DataRequirement();
             dataReq.setType(retrieve.getDataType().getLocalPart());
             if (retrieve.getCodeProperty() != null) {
@@ -133,11 +131,11 @@ public class LibraryGenerator extends BaseLibraryGenerator<Library, NarrativePro
     }
 
     // Base64 encode content
-    private void attachContent(Library library, CqlTranslator translator, String cql) {
+    private void attachContent(Library library, String id, String cql) {
         library.addContent(
                 new Attachment()
                         .setContentType("application/elm+xml")
-                        .setData(translator.toXml().getBytes())
+                        .setData(getElmXml(id))
         ).addContent(
                 new Attachment()
                         .setContentType("text/cql")
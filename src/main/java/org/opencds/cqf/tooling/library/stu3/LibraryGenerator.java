@@ -6,7 +6,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.hl7.elm.r1.IncludeDef;
 import org.hl7.elm.r1.Retrieve;
 import org.hl7.elm.r1.ValueSetRef;
@@ -38,8 +37,7 @@ public class LibraryGenerator extends BaseLibraryGenerator<Library, NarrativePro
     }
 
     @Override
-    public void processLibrary(String id, CqlTranslator translator) {
-        org.hl7.elm.r1.Library elm = translator.toELM();
+    public void processLibrary(String id, org.hl7.elm.r1.Library elm) {
         Library library = loadIfExists();
         if (library == null) {
             library = createLibrary(nameToId(elm.getIdentifier().getId(), elm.getIdentifier().getVersion()),
@@ -51,8 +49,8 @@ public class LibraryGenerator extends BaseLibraryGenerator<Library, NarrativePro
             }        
         }
 
-        resolveDataRequirements(library, translator);
-        attachContent(library, translator, getCqlMap().get(id));
+        resolveDataRequirements(library, id);
+        attachContent(library, id, getCqlMap().get(id));
         // library.setText(getNarrativeProvider().getNarrative(getFhirContext(), library));
         libraryMap.put(id, library);
     }
@@ -88,8 +86,8 @@ public class LibraryGenerator extends BaseLibraryGenerator<Library, NarrativePro
     }
 
     // Resolve DataRequirements
-    private void resolveDataRequirements(Library library, CqlTranslator translator) {
-        for (Retrieve retrieve : translator.toRetrieves()) {
+    private void resolveDataRequirements(Library library, String id) {
+        for (Retrieve retrieve : getRetrieves(id)) {
             DataRequirement dataReq = new DataRequirement();
             dataReq.setType(retrieve.getDataType().getLocalPart());
             if (retrieve.getCodeProperty() != null) {
@@ -107,11 +105,11 @@ public class LibraryGenerator extends BaseLibraryGenerator<Library, NarrativePro
     }
 
     // Base64 encode content
-    private void attachContent(Library library, CqlTranslator translator, String cql) {
+    private void attachContent(Library library, String id, String cql) {
         library.addContent(
                 new Attachment()
                         .setContentType("application/elm+xml")
-                        .setData(translator.toXml().getBytes())
+                        .setData(getElmXml(id))
         ).addContent(
                 new Attachment()
                         .setContentType("text/cql")
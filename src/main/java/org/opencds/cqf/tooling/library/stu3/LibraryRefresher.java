@@ -4,7 +4,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.hl7.elm.r1.IncludeDef;
 import org.hl7.elm.r1.Retrieve;
 import org.hl7.elm.r1.ValueSetRef;
@@ -37,8 +36,7 @@ public class LibraryRefresher extends BaseLibraryGenerator<Library, NarrativePro
     }
 
     @Override
-    public void processLibrary(String id, CqlTranslator translator) {
-        org.hl7.elm.r1.Library elm = translator.toELM();
+    public void processLibrary(String id, org.hl7.elm.r1.Library elm) {
         Library generatedLibrary = populateMeta(id, elm.getIdentifier().getVersion());
         if (elm.getIncludes() != null && !elm.getIncludes().getDef().isEmpty()) {
             for (IncludeDef def : elm.getIncludes().getDef()) {
@@ -46,14 +44,14 @@ public class LibraryRefresher extends BaseLibraryGenerator<Library, NarrativePro
             }        
         }
 
-        resolveDataRequirements(generatedLibrary, translator);
-        attachContent(generatedLibrary, translator, getCqlMap().get(id));
+        resolveDataRequirements(generatedLibrary, id);
+        attachContent(generatedLibrary, id, getCqlMap().get(id));
         // generatedLibrary.setText(getNarrativeProvider().getNarrative(getFhirContext(), generatedLibrary));
-        Library refreshedLibrary = refreshLibrary(generatedLibrary, id, translator);
+        Library refreshedLibrary = refreshLibrary(generatedLibrary, id);
         libraryMap.put(id, refreshedLibrary);
     }
 
-    private Library refreshLibrary(Library generatedLibrary, String id, CqlTranslator generatedLibraryTranslator) {
+    private Library refreshLibrary(Library generatedLibrary, String id) {
         if (getPathToLibrary() == null) {
             throw new IllegalArgumentException("The path to the CQL Library is required to refresh Content");
         }
@@ -72,7 +70,7 @@ public class LibraryRefresher extends BaseLibraryGenerator<Library, NarrativePro
         generatedLibrary.getDataRequirement().stream().forEach(dateRequirement -> referenceLibrary.addDataRequirement(dateRequirement));
 
         referenceLibrary.getContent().clear();
-        attachContent(referenceLibrary, generatedLibraryTranslator, getCqlMap().get(id));
+        attachContent(referenceLibrary, id, getCqlMap().get(id));
 
         // referenceLibrary.setText(getNarrativeProvider().getNarrative(getFhirContext(), generatedLibrary));
 
@@ -107,8 +105,8 @@ public class LibraryRefresher extends BaseLibraryGenerator<Library, NarrativePro
     }
 
     // Resolve DataRequirements
-    private void resolveDataRequirements(Library library, CqlTranslator translator) {
-        for (Retrieve retrieve : translator.toRetrieves()) {
+    private void resolveDataRequirements(Library library, String id) {
+        for (Retrieve retrieve : getRetrieves(id)) {
             DataRequirement dataReq = new DataRequirement();
             dataReq.setType(retrieve.getDataType().getLocalPart());
             if (retrieve.getCodeProperty() != null) {
@@ -126,11 +124,11 @@ public class LibraryRefresher extends BaseLibraryGenerator<Library, NarrativePro
     }
 
     // Base64 encode content
-    private void attachContent(Library library, CqlTranslator translator, String cql) {
+    private void attachContent(Library library, String id, String cql) {
         library.addContent(
             new Attachment()
                 .setContentType("application/elm+xml")
-                .setData(translator.toXml().getBytes())
+                .setData(getElmXml(id))
         ).addContent(
             new Attachment()
                 .setContentType("text/cql")
@@ -112,6 +112,7 @@ public class STU3LibraryProcessor extends LibraryProcessor {
         libraryPath = params.libraryPath;
         fhirContext = params.fhirContext;
         versioned = params.versioned;
+        libraryNames = params.libraryNames;
 
         STU3LibraryProcessor.cqfmHelper = new CqfmSoftwareSystemHelper(rootDir);
 
@@ -20,6 +20,7 @@ import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class MeasureProcessor extends BaseProcessor {
@@ -32,8 +33,23 @@ public class MeasureProcessor extends BaseProcessor {
     public static List<String> refreshIgMeasureContent(BaseProcessor parentContext, Encoding outputEncoding, Boolean versioned, FhirContext fhirContext, String measureToRefreshPath) {
 
         System.out.println("Refreshing measures...");
-        ArrayList<String> refreshedMeasureNames = new ArrayList<String>();
+        String measurePath = FilenameUtils.concat(parentContext.getRootDir(), IGProcessor.measurePathElement);
+        return refreshMeasureContent(parentContext, outputEncoding, versioned, fhirContext, measurePath);
+    }
+
+    /**
+     * Refreshes only the measures in the given files, e.g. the measures affected by a change in watch mode.
+     */
+    public static List<String> refreshIgMeasureContent(BaseProcessor parentContext, Encoding outputEncoding, Boolean versioned, FhirContext fhirContext, Collection<String> measurePaths) {
+        System.out.println("Refreshing measures...");
+        List<String> refreshedMeasureNames = new ArrayList<String>();
+        for (String measurePath : measurePaths) {
+            refreshedMeasureNames.addAll(refreshMeasureContent(parentContext, outputEncoding, versioned, fhirContext, measurePath));
+        }
+        return refreshedMeasureNames;
+    }
 
+    private static List<String> refreshMeasureContent(BaseProcessor parentContext, Encoding outputEncoding, Boolean versioned, FhirContext fhirContext, String measurePath) {
         MeasureProcessor measureProcessor;
         switch (fhirContext.getVersion().getVersion()) {
             case DSTU3:
@@ -47,7 +63,6 @@ public class MeasureProcessor extends BaseProcessor {
                         "Unknown fhir version: " + fhirContext.getVersion().getVersion().getFhirVersionString());
         }
 
-        String measurePath = FilenameUtils.concat(parentContext.getRootDir(), IGProcessor.measurePathElement);
         RefreshMeasureParameters params = new RefreshMeasureParameters();
         params.measurePath = measurePath;
         params.parentContext = parentContext;
@@ -60,14 +75,41 @@ public class MeasureProcessor extends BaseProcessor {
     public static void bundleMeasures(ArrayList<String> refreshedLibraryNames, String igPath, Boolean includeDependencies,
             Boolean includeTerminology, Boolean includePatientScenarios, Boolean includeVersion, FhirContext fhirContext, String fhirUri,
             Encoding encoding) {
+        bundleMeasures(refreshedLibraryNames, null, igPath, includeDependencies, includeTerminology, includePatientScenarios, includeVersion,
+            fhirContext, fhirUri, encoding);
+    }
+
+    /**
+     * @param measureNames The names of the measures to bundle, or null to bundle every measure
+     */
+    public static void bundleMeasures(ArrayList<String> refreshedLibraryNames, Set<String> measureNames, String igPath, Boolean includeDependencies,
+            Boolean includeTerminology, Boolean includePatientScenarios, Boolean includeVersion, FhirContext fhirContext, String fhirUri,
+            Encoding encoding) {
         Map<String, IBaseResource> measures = IOUtils.getMeasures(fhirContext);
         //Map<String, IBaseResource> libraries = IOUtils.getLibraries(fhirContext);
 
-        List<String> bundledMeasures = new ArrayList<String>();
+        List<Map.Entry<String, IBaseResource>> measureEntries = new ArrayList<Map.Entry<String, IBaseResource>>();
         for (Map.Entry<String, IBaseResource> measureEntry : measures.entrySet()) {
+            String measureSourcePath = IOUtils.getMeasurePathMap(fhirContext).get(measureEntry.getKey());
+            if (measureNames == null || measureNames.contains(getMeasureName(measureSourcePath))) {
+                measureEntries.add(measureEntry);
+            }
+        }
+
+        if (IGBundleProcessor.getBundleParallelism() > 1 && measureEntries.size() > 1) {
+            // Load the shared caches once, up front, rather than on whichever tasks happen to need them first
+            IOUtils.getCqlLibraryPaths();
+            IOUtils.getLibraryPathMap(fhirContext);
+            if (includeTerminology) {
+                ValueSetsProcessor.getCachedValueSets(fhirContext);
+            }
+        }
+
+        Set<String> bundled = ConcurrentHashMap.newKeySet();
+        IGBundleProcessor.forEachArtifact(measureEntries, measureEntry -> {
             String measureSourcePath = IOUtils.getMeasurePathMap(fhirContext).get(measureEntry.getKey());
             // Assumption - File name matches measure.name
-            String measureName = FilenameUtils.getBaseName(measureSourcePath).replace(MeasureProcessor.ResourcePrefix, "");
+            String measureName = getMeasureName(measureSourcePath);
             try {
                 Map<String, IBaseResource> resources = new HashMap<String, IBaseResource>();
 
@@ -134,15 +176,31 @@ public class MeasureProcessor extends BaseProcessor {
 
                 if (shouldPersist) {
                     String bundleDestPath = FilenameUtils.concat(FilenameUtils.concat(IGProcessor.getBundlesPath(igPath), MeasureTestGroupName), measureName);
-                    persistBundle(igPath, bundleDestPath, measureName, encoding, fhirContext, new ArrayList<IBaseResource>(resources.values()), fhirUri);
-                    bundleFiles(igPath, bundleDestPath, measureName, measureSourcePath, primaryLibrarySourcePath, fhirContext, encoding, includeTerminology, includeDependencies, includePatientScenarios, includeVersion);
-                    bundledMeasures.add(measureName);
+                    try {
+                        persistBundle(igPath, bundleDestPath, measureName, encoding, fhirContext, new ArrayList<IBaseResource>(resources.values()), fhirUri);
+                        bundleFiles(igPath, bundleDestPath, measureName, measureSourcePath, primaryLibrarySourcePath, fhirContext, encoding, includeTerminology, includeDependencies, includePatientScenarios, includeVersion);
+                    } catch (RuntimeException e) {
+                        // Keep the output of the previous run rather than deleting what was not written again
+                        IOUtils.cancelSync(bundleDestPath);
+                        throw e;
+                    }
+                    IOUtils.removeStaleFiles(bundleDestPath);
+                    bundled.add(measureName);
                 }
             } catch (Exception e) {
                 LogUtils.putException(measureName, e);
             } finally {
                 LogUtils.warn(measureName);
             }
+        });
+
+        // Reported in the order of the measures, however the bundling tasks were scheduled
+        List<String> bundledMeasures = new ArrayList<String>();
+        for (Map.Entry<String, IBaseResource> measureEntry : measureEntries) {
+            String measureName = getMeasureName(IOUtils.getMeasurePathMap(fhirContext).get(measureEntry.getKey()));
+            if (bundled.contains(measureName)) {
+                bundledMeasures.add(measureName);
+            }
         }
         String message = "\r\n" + bundledMeasures.size() + " Measures successfully bundled:";
         for (String bundledMeasure : bundledMeasures) {
@@ -150,6 +208,9 @@ public class MeasureProcessor extends BaseProcessor {
         }
 
         List<String> measurePathLibraryNames = new ArrayList<>(IOUtils.getMeasurePaths(fhirContext));
+        if (measureNames != null) {
+            measurePathLibraryNames.removeIf(path -> !measureNames.contains(FilenameUtils.getBaseName(path).replace(MeasureProcessor.ResourcePrefix, "")));
+        }
         ArrayList<String> failedMeasures = new ArrayList<>(measurePathLibraryNames);
         measurePathLibraryNames.removeAll(bundledMeasures);
         measurePathLibraryNames.retainAll(refreshedLibraryNames);
@@ -168,8 +229,16 @@ public class MeasureProcessor extends BaseProcessor {
         LogUtils.info(message);
     }
 
+    private static String getMeasureName(String measureSourcePath) {
+        return FilenameUtils.getBaseName(measureSourcePath).replace(MeasureProcessor.ResourcePrefix, "");
+    }
+
     private static void persistBundle(String igPath, String bundleDestPath, String libraryName, Encoding encoding, FhirContext fhirContext, List<IBaseResource> resources, String fhirUri) {
-        IOUtils.initializeDirectory(bundleDestPath);
+        IOUtils.syncDirectory(bundleDestPath);
+        if (fhirUri == null || fhirUri.equals("")) {
+            BundleUtils.writeArtifacts(libraryName, resources, bundleDestPath, encoding, fhirContext);
+            return;
+        }
         Object bundle = BundleUtils.bundleArtifacts(libraryName, resources, fhirContext);
         IOUtils.writeBundle(bundle, bundleDestPath, encoding, fhirContext);
 
@@ -178,7 +247,7 @@ public class MeasureProcessor extends BaseProcessor {
 
     private static void bundleFiles(String igPath, String bundleDestPath, String libraryName, String resourceFocusSourcePath, String librarySourcePath, FhirContext fhirContext, Encoding encoding, Boolean includeTerminology, Boolean includeDependencies, Boolean includePatientScenarios, Boolean includeVersion) {
         String bundleDestFilesPath = FilenameUtils.concat(bundleDestPath, libraryName + "-" + IGBundleProcessor.bundleFilesPathElement);
-        IOUtils.initializeDirectory(bundleDestFilesPath);
+        IOUtils.syncDirectory(bundleDestFilesPath);
 
         IOUtils.copyFile(resourceFocusSourcePath, FilenameUtils.concat(bundleDestFilesPath, FilenameUtils.getName(resourceFocusSourcePath)));
         IOUtils.copyFile(librarySourcePath, FilenameUtils.concat(bundleDestFilesPath, FilenameUtils.getName(librarySourcePath)));
@@ -195,8 +264,7 @@ public class MeasureProcessor extends BaseProcessor {
             try {     
                 Map<String, IBaseResource> valuesets = ResourceUtils.getDepValueSetResources(cqlLibrarySourcePath, igPath, fhirContext, includeDependencies, includeVersion);      
                 if (!valuesets.isEmpty()) {
-                    Object bundle = BundleUtils.bundleArtifacts(ValueSetsProcessor.getId(libraryName), new ArrayList<IBaseResource>(valuesets.values()), fhirContext);
-                    IOUtils.writeBundle(bundle, bundleDestFilesPath, encoding, fhirContext);  
+                    BundleUtils.writeArtifacts(ValueSetsProcessor.getId(libraryName), new ArrayList<IBaseResource>(valuesets.values()), bundleDestFilesPath, encoding, fhirContext);
                 }  
             }  catch (Exception e) {
                 e.printStackTrace();
@@ -208,8 +276,7 @@ public class MeasureProcessor extends BaseProcessor {
             Map<String, IBaseResource> depLibraries = ResourceUtils.getDepLibraryResources(librarySourcePath, fhirContext, encoding, includeVersion);
             if (!depLibraries.isEmpty()) {
                 String depLibrariesID = "library-deps-" + libraryName;
-                Object bundle = BundleUtils.bundleArtifacts(depLibrariesID, new ArrayList<IBaseResource>(depLibraries.values()), fhirContext);            
-                IOUtils.writeBundle(bundle, bundleDestFilesPath, encoding, fhirContext);  
+                BundleUtils.writeArtifacts(depLibrariesID, new ArrayList<IBaseResource>(depLibraries.values()), bundleDestFilesPath, encoding, fhirContext);
             }        
         }
 
@@ -239,15 +306,40 @@ public class MeasureProcessor extends BaseProcessor {
     }
 
     private Measure refreshGeneratedContent(Measure measure) {
+        return refreshGeneratedContent(measure, getCqlProcessor());
+    }
+
+    /**
+     * Refreshes the measure from its primary library. The data requirements of the measure's expressions are cached
+     * with the library's ELM cache entry, so a measure whose library was restored from the ELM cache is refreshed
+     * without translating the library or its includes.
+     */
+    Measure refreshGeneratedContent(Measure measure, CqlProcessor cqlProcessor) {
         MeasureRefreshProcessor processor = new MeasureRefreshProcessor();
-        LibraryManager libraryManager = getCqlProcessor().getLibraryManager();
-        CqlTranslatorOptions cqlTranslatorOptions = getCqlProcessor().getCqlTranslatorOptions();
         // Do not attempt to refresh if the measure does not have a library
         if (measure.hasLibrary()) {
             String libraryUrl = ResourceUtils.getPrimaryLibraryUrl(measure, fhirContext);
             VersionedIdentifier primaryLibraryIdentifier = CanonicalUtils.toVersionedIdentifier(libraryUrl);
+            String cacheKey = cqlProcessor.getElmCacheKey(primaryLibraryIdentifier);
+            String requirementsName = getRequirementsName(processor.getExpressions(measure));
+            if (cacheKey != null) {
+                String cached = ElmCache.getDerived(cacheKey, requirementsName);
+                if (cached != null) {
+                    try {
+                        org.hl7.fhir.r5.model.Library moduleDefinitionLibrary = (org.hl7.fhir.r5.model.Library) new org.hl7.fhir.r5.formats.JsonParser().parse(cached);
+                        return processor.refreshMeasure(measure, moduleDefinitionLibrary);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        logMessage(String.format("Ignoring the cached data requirements of library %s: %s", primaryLibraryIdentifier.getId(), e.getMessage()));
+                    }
+                }
+            }
+
+            LibraryManager libraryManager = cqlProcessor.getLibraryManager();
+            CqlTranslatorOptions cqlTranslatorOptions = cqlProcessor.getCqlTranslatorOptions();
             List<CqlTranslatorException> errors = new ArrayList<CqlTranslatorException>();
-            TranslatedLibrary translatedLibrary = libraryManager.resolveLibrary(primaryLibraryIdentifier, cqlTranslatorOptions, errors);
+            TranslatedLibrary translatedLibrary = CqlTranslationService.resolveLibrary(libraryManager, primaryLibraryIdentifier, cqlTranslatorOptions,
+                cqlProcessor.getTranslationEnvironment(), errors);
             boolean hasErrors = false;
             if (errors.size() > 0) {
                 for (CqlTranslatorException e : errors) {
@@ -258,9 +350,18 @@ public class MeasureProcessor extends BaseProcessor {
                 }
             }
             if (!hasErrors) {
-                return processor.refreshMeasure(measure, libraryManager, translatedLibrary, cqlTranslatorOptions);
+                org.hl7.fhir.r5.model.Library moduleDefinitionLibrary = processor.getModuleDefinitionLibrary(measure, libraryManager, translatedLibrary, cqlTranslatorOptions);
+                if (cacheKey != null) {
+                    ElmCache.putDerived(cacheKey, requirementsName, output -> new org.hl7.fhir.r5.formats.JsonParser().compose(output, moduleDefinitionLibrary));
+                }
+                return processor.refreshMeasure(measure, moduleDefinitionLibrary);
             }
         }
         return measure;
     }
+
+    private static String getRequirementsName(Set<String> expressions) {
+        List<String> sorted = expressions.stream().map(String::valueOf).sorted().collect(Collectors.toList());
+        return "measure-requirements\n" + String.join("\n", sorted);
+    }
 }
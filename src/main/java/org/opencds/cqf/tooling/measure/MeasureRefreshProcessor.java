@@ -13,7 +13,14 @@ import java.util.Set;
 
 public class MeasureRefreshProcessor {
     public Measure refreshMeasure(Measure measureToUse, LibraryManager libraryManager, TranslatedLibrary translatedLibrary, CqlTranslatorOptions options) {
-        Library moduleDefinitionLibrary = getModuleDefinitionLibrary(measureToUse, libraryManager, translatedLibrary, options);
+        return refreshMeasure(measureToUse, getModuleDefinitionLibrary(measureToUse, libraryManager, translatedLibrary, options));
+    }
+
+    /**
+     * Refreshes the measure from the data requirements of its expressions, as returned by getModuleDefinitionLibrary
+     * (possibly on an earlier run, for a library and expressions that have not changed since).
+     */
+    public Measure refreshMeasure(Measure measureToUse, Library moduleDefinitionLibrary) {
         measureToUse.setDate(new Date());
         // http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/measure-cqfm
         setMeta(measureToUse, moduleDefinitionLibrary);
@@ -37,13 +44,13 @@ public class MeasureRefreshProcessor {
         return measureToUse;
     }
 
-    private Library getModuleDefinitionLibrary(Measure measureToUse, LibraryManager libraryManager, TranslatedLibrary translatedLibrary, CqlTranslatorOptions options){
+    public Library getModuleDefinitionLibrary(Measure measureToUse, LibraryManager libraryManager, TranslatedLibrary translatedLibrary, CqlTranslatorOptions options){
         Set<String> expressionList = getExpressions(measureToUse);
         DataRequirementsProcessor dqReqTrans = new DataRequirementsProcessor();
         return dqReqTrans.gatherDataRequirements(libraryManager, translatedLibrary, options, expressionList, true);
     }
 
-    private Set<String> getExpressions(Measure measureToUse) {
+    public Set<String> getExpressions(Measure measureToUse) {
         Set<String> expressionSet = new HashSet<>();
         measureToUse.getSupplementalData().forEach(supData->{
             expressionSet.add(supData.getCriteria().getExpression());
@@ -3,26 +3,63 @@ package org.opencds.cqf.tooling.npm;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.cqframework.cql.cql2elm.LibrarySourceProvider;
 import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.model.Library;
+import org.hl7.fhir.utilities.json.JsonTrackingParser;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 
+import com.google.gson.JsonObject;
+
 /**
  * Provides a library source provider that can resolve CQL library source from an Npm package
+ *
+ * The Library resources of each package are indexed by canonical url and version once per process (the index is
+ * shared by every provider over the same package), and the CQL source of a library is decoded the first time it is
+ * requested, so resolving an include is a lookup per package rather than a scan and parse of its libraries.
  */
 public class NpmLibrarySourceProvider implements LibrarySourceProvider {
 
+    // A Library resource in a package, with its CQL source once it has been read
+    private static class LibraryEntry {
+        private final String fileName;
+        private volatile byte[] cql;
+        private volatile boolean loaded;
+
+        LibraryEntry(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+
+    // The Library resources of a package by url|version, and by url for the first library with that url
+    private static class PackageIndex {
+        private final Map<String, LibraryEntry> byUrlAndVersion = new HashMap<>();
+        private final Map<String, LibraryEntry> byUrl = new HashMap<>();
+    }
+
+    private static final Map<NpmPackage, PackageIndex> indexes = Collections.synchronizedMap(new WeakHashMap<>());
+
     public NpmLibrarySourceProvider(List<NpmPackage> packages, ILibraryReader reader, IWorkerContext.ILoggingService logger) {
         this.packages = packages;
         this.reader = reader;
         this.logger = logger;
+
+        this.packageIndexes = new ArrayList<>();
+        for (NpmPackage p : packages) {
+            packageIndexes.add(getIndex(p));
+        }
     }
 
     private List<NpmPackage> packages;
+    private List<PackageIndex> packageIndexes;
     private ILibraryReader reader;
     private IWorkerContext.ILoggingService logger;
 
@@ -32,35 +69,91 @@ public class NpmLibrarySourceProvider implements LibrarySourceProvider {
         // VersionedIdentifier.system: Namespace for the library, as a URL
         // VersionedIdentifier.version: Version of the library
 
-        for (NpmPackage p : packages) {
-            try {
-                VersionedIdentifier libraryIdentifier = new VersionedIdentifier()
-                        .withId(identifier.getId())
-                        .withVersion(identifier.getVersion())
-                        .withSystem(identifier.getSystem());
-
-                if (libraryIdentifier.getSystem() == null) {
-                    libraryIdentifier.setSystem(p.canonical());
+        for (int i = 0; i < packages.size(); i++) {
+            NpmPackage p = packages.get(i);
+            String system = identifier.getSystem() != null ? identifier.getSystem() : p.canonical();
+            String url = system + "/Library/" + identifier.getId();
+
+            PackageIndex index = packageIndexes.get(i);
+            LibraryEntry entry = identifier.getVersion() == null
+                    ? index.byUrl.get(url)
+                    : index.byUrlAndVersion.get(url + "|" + identifier.getVersion());
+            if (entry == null) {
+                continue;
+            }
+
+            byte[] cql = getCql(p, entry, identifier);
+            if (cql != null) {
+                if (identifier.getSystem() == null) {
+                    identifier.setSystem(system);
                 }
+                return new ByteArrayInputStream(cql);
+            }
+        }
 
-                InputStream s = p.loadByCanonicalVersion(libraryIdentifier.getSystem()+"/Library/"+libraryIdentifier.getId(), libraryIdentifier.getVersion());
-                if (s != null) {
-                    Library l = reader.readLibrary(s);
-                    for (org.hl7.fhir.r5.model.Attachment a : l.getContent()) {
-                        if (a.getContentType() != null && a.getContentType().equals("text/cql")) {
-                            if (identifier.getSystem() == null) {
-                                identifier.setSystem(libraryIdentifier.getSystem());
+        return null;
+    }
+
+    private byte[] getCql(NpmPackage p, LibraryEntry entry, VersionedIdentifier identifier) {
+        if (!entry.loaded) {
+            synchronized (entry) {
+                if (!entry.loaded) {
+                    try (InputStream s = p.loadResource(entry.fileName)) {
+                        Library l = reader.readLibrary(s);
+                        for (org.hl7.fhir.r5.model.Attachment a : l.getContent()) {
+                            if (a.getContentType() != null && a.getContentType().equals("text/cql")) {
+                                entry.cql = a.getData();
+                                break;
                             }
-                            return new ByteArrayInputStream(a.getData());
                         }
+                    } catch (IOException e) {
+                        logger.logDebugMessage(IWorkerContext.ILoggingService.LogCategory.PROGRESS, String.format("Exceptions occurred attempting to load npm library source for %s", identifier.toString()));
                     }
+                    entry.loaded = true;
                 }
-            } catch (IOException e) {
-                logger.logDebugMessage(IWorkerContext.ILoggingService.LogCategory.PROGRESS, String.format("Exceptions occurred attempting to load npm library source for %s", identifier.toString()));
             }
         }
+        return entry.cql;
+    }
 
-        return null;
+    private PackageIndex getIndex(NpmPackage p) {
+        synchronized (indexes) {
+            PackageIndex index = indexes.get(p);
+            if (index == null) {
+                index = buildIndex(p);
+                indexes.put(p, index);
+            }
+            return index;
+        }
     }
-}
 
+    // Reads the url and version of each Library in the package, without parsing it as a resource
+    private PackageIndex buildIndex(NpmPackage p) {
+        PackageIndex index = new PackageIndex();
+        List<String> fileNames;
+        try {
+            fileNames = p.listResources("Library");
+        } catch (IOException e) {
+            logger.logDebugMessage(IWorkerContext.ILoggingService.LogCategory.PROGRESS, String.format("Exceptions occurred attempting to list the libraries of npm package %s", p.name()));
+            return index;
+        }
+
+        for (String fileName : fileNames) {
+            try (InputStream s = p.loadResource(fileName)) {
+                JsonObject json = JsonTrackingParser.parseJson(s);
+                if (!json.has("url")) {
+                    continue;
+                }
+                String url = json.get("url").getAsString();
+                LibraryEntry entry = new LibraryEntry(fileName);
+                index.byUrl.putIfAbsent(url, entry);
+                if (json.has("version")) {
+                    index.byUrlAndVersion.putIfAbsent(url + "|" + json.get("version").getAsString(), entry);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.logDebugMessage(IWorkerContext.ILoggingService.LogCategory.PROGRESS, String.format("Exceptions occurred attempting to index npm library %s of package %s", fileName, p.name()));
+            }
+        }
+        return index;
+    }
+}
@@ -1,5 +1,7 @@
 package org.opencds.cqf.tooling.npm;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -7,6 +9,11 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -25,6 +32,26 @@ import org.hl7.fhir.utilities.npm.ToolsVersion;
 import org.hl7.fhir.utilities.json.JsonTrackingParser;
 
 public class NpmPackageManager implements IWorkerContext.ILoggingService {
+    public static final int DEFAULT_LOAD_THREADS = 4;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+
+    private static volatile String offlinePackageDirectory;
+
+    public static String getOfflinePackageDirectory() {
+        return offlinePackageDirectory;
+    }
+
+    /**
+     * Sets a directory that all packages are loaded from, without using the package cache or the network; null (the
+     * default) loads packages through the user's package cache. The directory holds packages as extracted package
+     * folders ([id]#[version], e.g. as in a package cache) or as tarballs ([id]#[version].tgz or [id]-[version].tgz).
+     * Loading fails with an IllegalArgumentException for any package that is not in the directory.
+     */
+    public static void setOfflinePackageDirectory(String directory) {
+        offlinePackageDirectory = directory;
+    }
+
     private FilesystemPackageCacheManager pcm;
     private List<NpmPackage> npmList = new ArrayList<>();
     public List<NpmPackage> getNpmList() {
@@ -69,32 +96,82 @@ public class NpmPackageManager implements IWorkerContext.ILoggingService {
 
         this.sourceIg = sourceIg;
 
-        // userMode indicates whether the packageCache is within the working directory or in the user home
-        pcm = new FilesystemPackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
-
-        loadCorePackage();
+        if (offlinePackageDirectory == null) {
+            // userMode indicates whether the packageCache is within the working directory or in the user home
+            pcm = new FilesystemPackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+        }
+        else {
+            logMessage("Loading packages offline from "+offlinePackageDirectory);
+        }
 
+        // The core package and the dependencies are independent, so they are loaded concurrently, and listed in order
+        List<Callable<NpmPackage>> loads = new ArrayList<>();
+        loads.add(this::loadCorePackage);
         int i = 0;
         for (ImplementationGuide.ImplementationGuideDependsOnComponent dep : sourceIg.getDependsOn()) {
-            loadIg(dep, i);
+            int index = i;
+            loads.add(() -> loadIg(dep, index));
             i++;
         }
+        npmList.addAll(loadAll(loads));
     }
 
-    private void loadCorePackage() throws IOException {
+    private List<NpmPackage> loadAll(List<Callable<NpmPackage>> loads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(loads.size(), DEFAULT_LOAD_THREADS));
+        try {
+            List<NpmPackage> packages = new ArrayList<>();
+            for (Future<NpmPackage> future : executor.invokeAll(loads)) {
+                try {
+                    packages.add(future.get());
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return packages;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading packages", e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private NpmPackage loadCorePackage() throws IOException {
         NpmPackage pi = null;
 
         String v = version.equals(Constants.VERSION) ? "current" : version;
-
-        System.out.println("Core Package "+ VersionUtilities.packageForVersion(v)+"#"+v);
-        pi = pcm.loadPackage(VersionUtilities.packageForVersion(v), v);
         if (v.equals("current")) {
             throw new IllegalArgumentException("Current core package not supported");
         }
-        npmList.add(pi);
+
+        String packageId = VersionUtilities.packageForVersion(v);
+        System.out.println("Core Package "+ packageId+"#"+v);
+        long start = System.currentTimeMillis();
+        if (pcm == null) {
+            pi = loadOffline(packageId, v);
+        }
+        else {
+            pi = pcm.loadPackageFromCacheOnly(packageId, v);
+            if (pi == null) {
+                synchronized (pcm) {
+                    pi = pcm.loadPackage(packageId, v);
+                }
+            }
+        }
+        logLoaded(packageId, v, start);
+        return pi;
     }
 
-    private void loadIg(ImplementationGuide.ImplementationGuideDependsOnComponent dep, int index) throws IOException {
+    private NpmPackage loadIg(ImplementationGuide.ImplementationGuideDependsOnComponent dep, int index) throws IOException {
         String name = dep.getId();
         if (!dep.hasId()) {
             logMessage("Dependency '"+idForDep(dep)+"' has no id, so can't be referred to in markdown in the IG");
@@ -104,19 +181,31 @@ public class NpmPackageManager implements IWorkerContext.ILoggingService {
             throw new IllegalArgumentException("IG Name must be a valid token ("+name+")");
         String canonical = determineCanonical(dep.getUri(), "ImplementationGuide.dependency["+index+"].url");
         String packageId = dep.getPackageId();
-        if (Utilities.noString(packageId))
-            packageId = pcm.getPackageId(canonical);
-        if (Utilities.noString(canonical) && !Utilities.noString(packageId))
-            canonical = pcm.getPackageUrl(packageId);
+        String igver = dep.getVersion();
+        if (pcm == null) {
+            if (Utilities.noString(packageId))
+                throw new IllegalArgumentException("You must specify a package id for the IG "+name+" ("+canonical+") to load it offline");
+            if (Utilities.noString(igver))
+                throw new IllegalArgumentException("You must specify a version for the IG "+packageId+" ("+canonical+")");
+            long start = System.currentTimeMillis();
+            NpmPackage pi = loadOffline(packageId, igver);
+            logLoaded(packageId, igver, start);
+            return pi;
+        }
+
+        synchronized (pcm) {
+            if (Utilities.noString(packageId))
+                packageId = pcm.getPackageId(canonical);
+            if (Utilities.noString(canonical) && !Utilities.noString(packageId))
+                canonical = pcm.getPackageUrl(packageId);
+        }
         if (Utilities.noString(canonical))
             throw new IllegalArgumentException("You must specify a canonical URL for the IG "+name);
-        String igver = dep.getVersion();
         if (Utilities.noString(igver))
             throw new IllegalArgumentException("You must specify a version for the IG "+packageId+" ("+canonical+")");
 
+        long start = System.currentTimeMillis();
         NpmPackage pi = packageId == null ? null : pcm.loadPackageFromCacheOnly(packageId, igver);
-        if (pi != null)
-            npmList.add(pi);
         if (pi == null) {
             pi = resolveDependency(canonical, packageId, igver);
             if (pi == null) {
@@ -127,6 +216,7 @@ public class NpmPackageManager implements IWorkerContext.ILoggingService {
             }
         }
         logDebugMessage(IWorkerContext.ILoggingService.LogCategory.INIT, "Load "+name+" ("+canonical+") from "+packageId+"#"+igver);
+        logLoaded(packageId, igver, start);
 
         if (dep.hasUri() && !dep.getUri().contains("/ImplementationGuide/")) {
             String cu = getIgUri(pi);
@@ -134,6 +224,28 @@ public class NpmPackageManager implements IWorkerContext.ILoggingService {
                 logMessage("The correct canonical URL for this dependency is "+cu);
             }
         }
+        return pi;
+    }
+
+    private NpmPackage loadOffline(String packageId, String version) throws IOException {
+        File folder = new File(offlinePackageDirectory, packageId+"#"+version);
+        if (new File(folder, "package").isDirectory()) {
+            return NpmPackage.fromFolder(folder.getPath());
+        }
+        for (String tarball : new String[] { packageId+"#"+version+".tgz", packageId+"-"+version+".tgz" }) {
+            File file = new File(offlinePackageDirectory, tarball);
+            if (file.isFile()) {
+                try (InputStream tgz = new FileInputStream(file)) {
+                    return NpmPackage.fromPackage(tgz);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Package "+packageId+"#"+version+" is not available offline: expected a folder "+folder.getName()
+            +" or a tarball "+packageId+"#"+version+".tgz in "+offlinePackageDirectory);
+    }
+
+    private void logLoaded(String packageId, String version, long start) {
+        logMessage(String.format("Loaded package %s#%s in %d ms", packageId, version, System.currentTimeMillis() - start));
     }
 
     private String determineCanonical(String url, String path) throws FHIRException {
@@ -179,8 +291,11 @@ public class NpmPackageManager implements IWorkerContext.ILoggingService {
     }
 
     private NpmPackage resolveDependency(String canonical, String packageId, String igver) throws IOException {
-        if (packageId != null)
-            return pcm.loadPackage(packageId, igver);
+        if (packageId != null) {
+            synchronized (pcm) {
+                return pcm.loadPackage(packageId, igver);
+            }
+        }
 
         JsonObject pl;
         logDebugMessage(IWorkerContext.ILoggingService.LogCategory.INIT, "Fetch Package history from "+Utilities.pathURL(canonical, "package-list.json"));
@@ -194,8 +309,11 @@ public class NpmPackageManager implements IWorkerContext.ILoggingService {
         for (JsonElement e : pl.getAsJsonArray("list")) {
             JsonObject o = (JsonObject) e;
             if (igver.equals(o.get("version").getAsString())) {
-                InputStream src = fetchFromSource(pl.get("package-id").getAsString()+"-"+igver, Utilities.pathURL(o.get("path").getAsString(), "package.tgz"));
-                return pcm.addPackageToCache(pl.get("package-id").getAsString(), igver, src, Utilities.pathURL(o.get("path").getAsString(), "package.tgz"));
+                try (InputStream src = fetchFromSource(pl.get("package-id").getAsString()+"-"+igver, Utilities.pathURL(o.get("path").getAsString(), "package.tgz"))) {
+                    synchronized (pcm) {
+                        return pcm.addPackageToCache(pl.get("package-id").getAsString(), igver, src, Utilities.pathURL(o.get("path").getAsString(), "package.tgz"));
+                    }
+                }
             }
         }
         return null;
@@ -205,13 +323,20 @@ public class NpmPackageManager implements IWorkerContext.ILoggingService {
         URL url = new URL(source+"?nocache=" + System.currentTimeMillis());
         HttpURLConnection c = (HttpURLConnection) url.openConnection();
         c.setInstanceFollowRedirects(true);
-        return JsonTrackingParser.parseJson(c.getInputStream());
+        c.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        c.setReadTimeout(READ_TIMEOUT_MILLIS);
+        // Reading the response fully and closing it lets the connection be kept alive for the next fetch
+        try (InputStream stream = c.getInputStream()) {
+            return JsonTrackingParser.parseJson(stream);
+        }
     }
 
     private InputStream fetchFromSource(String id, String source) throws IOException {
         logDebugMessage(IWorkerContext.ILoggingService.LogCategory.INIT, "Fetch "+id+" package from "+source);
         URL url = new URL(source+"?nocache=" + System.currentTimeMillis());
         URLConnection c = url.openConnection();
+        c.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        c.setReadTimeout(READ_TIMEOUT_MILLIS);
         return c.getInputStream();
     }
 
@@ -10,6 +10,8 @@ import java.util.List;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.tooling.Operation;
+import org.opencds.cqf.tooling.utilities.IOUtils;
+import org.opencds.cqf.tooling.utilities.StreamingBundleWriter;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
@@ -20,6 +22,7 @@ public class BundleResources extends Operation {
     private String pathToDirectory; // -pathtodir (-ptd)
     private String version; // -version (-v) Can be dstu2, stu3, or
     private String bundleId; // -bundleid (-bid)
+    private boolean stream; // -stream (-s) Writes the bundle one entry at a time rather than building it in memory
 
     private IBaseResource theResource;
     private List<IBaseResource> theResources = new ArrayList<>();
@@ -58,6 +61,10 @@ public class BundleResources extends Operation {
                 case "bid":
                     bundleId = value;
                     break;
+                case "stream":
+                case "s":
+                    stream = Boolean.parseBoolean(value);
+                    break;
                 default: throw new IllegalArgumentException("Unknown flag: " + flag);
             }
         }
@@ -103,6 +110,11 @@ public class BundleResources extends Operation {
             }
         }
         
+        if (stream && (context.getVersion().getVersion() == FhirVersionEnum.DSTU3 || context.getVersion().getVersion() == FhirVersionEnum.R4)) {
+            streamOutput(resources);
+            return;
+        }
+
         getResources(resources);
 
         if (context.getVersion().getVersion() == FhirVersionEnum.DSTU3) {
@@ -147,6 +159,50 @@ public class BundleResources extends Operation {
         // TODO: add DSTU2
     }
 
+    // Parses each resource file as it is written to the bundle, so only one resource is held at a time
+    private void streamOutput(File[] resources) {
+        List<File> files = new ArrayList<>();
+        getResourceFiles(resources, files);
+
+        try {
+            IOUtils.writeFile(getOutputFileName(), output -> {
+                try (StreamingBundleWriter writer = new StreamingBundleWriter(output, bundleId != null && !bundleId.isEmpty() ? bundleId : null,
+                        IOUtils.Encoding.parse(encoding), context)) {
+                    for (File file : files) {
+                        IBaseResource resource;
+                        try (FileReader reader = new FileReader(file)) {
+                            resource = file.getPath().endsWith(".xml")
+                                ? context.newXmlParser().parseResource(reader)
+                                : context.newJsonParser().parseResource(reader);
+                        }
+                        catch (FileNotFoundException e) {
+                            e.printStackTrace();
+                            throw new RuntimeException(e.getMessage());
+                        }
+                        catch (Exception e) {
+                            continue;
+                        }
+                        writer.writeEntry(resource, resource.getIdElement().getValue());
+                    }
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private void getResourceFiles(File[] resources, List<File> files) {
+        for (File resource : resources) {
+            if (resource.isDirectory()) {
+                getResourceFiles(resource.listFiles(), files);
+            }
+            else if (resource.getPath().endsWith(".xml") || resource.getPath().endsWith(".json")) {
+                files.add(resource);
+            }
+        }
+    }
+
     private void getResources(File[] resources) {
         for (File resource : resources) {
 
@@ -185,13 +241,16 @@ public class BundleResources extends Operation {
     }
     
     // Output
-    public void output(IBaseResource resource, FhirContext context) {
+    private String getOutputFileName() {
         String fileNameBase = getOutputPath() + getOutputPath().substring(getOutputPath().lastIndexOf(File.separator));
         if (bundleId != null && !bundleId.isEmpty()) {
             fileNameBase = getOutputPath() + File.separator + bundleId;
         }
+        return fileNameBase + "-bundle." + encoding;
+    }
 
-        try (FileOutputStream writer = new FileOutputStream(fileNameBase + "-bundle." + encoding)) {
+    public void output(IBaseResource resource, FhirContext context) {
+        try (FileOutputStream writer = new FileOutputStream(getOutputFileName())) {
             writer.write(
                 encoding.equals("json")
                     ? context.newJsonParser().setPrettyPrint(true).encodeResourceToString(resource).getBytes()
@@ -4,6 +4,7 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.tooling.Operation;
+import org.opencds.cqf.tooling.utilities.BundleUtils;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -14,6 +15,7 @@ public class BundleToResources extends Operation {
     private String encoding; // -encoding (-e)
     private String path; // -path (-p)
     private String version; // -version (-v) Can be dstu2, stu3, or r4
+    private boolean stream; // -stream (-s) Reads the entries of each bundle one at a time rather than the whole bundle
 
     private IBaseResource theResource;
     private List<IBaseResource> theResources = new ArrayList<>();
@@ -48,6 +50,10 @@ public class BundleToResources extends Operation {
                 case "version": case "v":
                     version = value;
                     break;
+                case "stream":
+                case "s":
+                    stream = Boolean.parseBoolean(value);
+                    break;
                 default: throw new IllegalArgumentException("Unknown flag: " + flag);
             }
         }
@@ -88,6 +94,11 @@ public class BundleToResources extends Operation {
             }
         }
         
+        if (stream && (context.getVersion().getVersion() == FhirVersionEnum.DSTU3 || context.getVersion().getVersion() == FhirVersionEnum.R4)) {
+            extractResources(bundles);
+            return;
+        }
+
         getResources(bundles);
 
         if (context.getVersion().getVersion() == FhirVersionEnum.DSTU3) {
@@ -119,6 +130,25 @@ public class BundleToResources extends Operation {
         // TODO: add DSTU2
     }
 
+    private void extractResources(File[] bundles) {
+        for (File bundle : bundles) {
+            if (bundle.isDirectory()) {
+                extractResources(bundle.listFiles());
+                continue;
+            }
+
+            if (bundle.getPath().endsWith(".xml") || bundle.getPath().endsWith(".json")) {
+                try {
+                    BundleUtils.extractResources(bundle, encoding, context, getOutputPath(), BundleUtils.DEFAULT_EXTRACT_THREADS);
+                }
+                catch (RuntimeException e) {
+                    // As when reading whole bundles, files that can not be read are skipped
+                    System.out.println(String.format("Could not extract resources from %s: %s", bundle.getPath(), e.getMessage()));
+                }
+            }
+        }
+    }
+
     private void getResources(File[] resources) {
         for (File resource : resources) {
 
@@ -17,6 +17,7 @@ import org.opencds.cqf.tooling.utilities.LogUtils;
 import org.opencds.cqf.tooling.utilities.ResourceUtils;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
 
 public class ExtractMatBundleOperation extends Operation {
 
@@ -24,6 +25,7 @@ public class ExtractMatBundleOperation extends Operation {
 	private String version = "r4";
 	private FhirContext context;
 	private String encoding;
+	private boolean stream; // -stream (-s) Reads the entries of the bundle one at a time rather than the whole bundle
 	
 	@Override
 	public void execute(String[] args) {		
@@ -33,17 +35,24 @@ public class ExtractMatBundleOperation extends Operation {
 			throw new IllegalArgumentException("The path to a bundle file is required");
 		}
 		
-		// Set version
-		if (args.length > 2) {
-			if (args[2] != null) {
-				String[] flagAndValue = args[2].split("=");
-				String flag = flagAndValue[0];
-		        String value = flagAndValue[1];
-		        if (flag != "-v") {
-		        	throw new IllegalArgumentException("Invalid argument: " + flag);
-		        } else {
-		        	version = value;
-		        }
+		// Set version and streaming
+		for (int i = 2; i < args.length; i++) {
+			String[] flagAndValue = args[i].split("=");
+			if (flagAndValue.length < 2) {
+				throw new IllegalArgumentException("Invalid argument: " + args[i]);
+			}
+			String flag = flagAndValue[0];
+			String value = flagAndValue[1];
+			switch (flag.replace("-", "").toLowerCase()) {
+				case "version":
+				case "v":
+					version = value;
+					break;
+				case "stream":
+				case "s":
+					stream = Boolean.parseBoolean(value);
+					break;
+				default: throw new IllegalArgumentException("Invalid argument: " + flag);
 			}
 		}
 
@@ -72,40 +81,50 @@ public class ExtractMatBundleOperation extends Operation {
             }
         }
         
-        // Read in the Bundle
-        IBaseResource bundle;
+        // Check the Bundle's encoding
         if (bundleFile.getPath().endsWith(".xml")) {
         	encoding = "xml";
-            try {
-                bundle = context.newXmlParser().parseResource(new FileReader(bundleFile));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                throw new RuntimeException(e.getMessage());
-            }
         }
         else if (bundleFile.getPath().endsWith(".json")) {
         	encoding = "json";
-            try {
-                bundle = context.newJsonParser().parseResource(new FileReader(bundleFile));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                throw new RuntimeException(e.getMessage());
-            }
         }
         else {
         	throw new IllegalArgumentException("The path to a bundle file of type json or xml is required");
         }
         
-        // Now call the Bundle utilities to extract the bundle
         String outputDir = bundleFile.getAbsoluteFile().getParent();
-        if (version == "stu3") {
-        	BundleUtils.extractStu3Resources((org.hl7.fhir.dstu3.model.Bundle)bundle, encoding, outputDir);
-        } else if (version == "r4") {
-        	BundleUtils.extractR4Resources((org.hl7.fhir.r4.model.Bundle)bundle, encoding, outputDir);
+        if (stream) {
+            // Extract the bundle reading one entry at a time, so that large exports do not have to fit in memory
+            if (!bundleFile.exists()) {
+                throw new RuntimeException(String.format("Bundle file %s not found", bundleFile.getPath()));
+            }
+            BundleUtils.extractResources(bundleFile, encoding, context, outputDir, BundleUtils.DEFAULT_EXTRACT_THREADS);
+        }
+        else {
+            // Read in the Bundle
+            IBaseResource bundle;
+            try {
+                if (encoding.equals("xml")) {
+                    bundle = context.newXmlParser().parseResource(new FileReader(bundleFile));
+                }
+                else {
+                    bundle = context.newJsonParser().parseResource(new FileReader(bundleFile));
+                }
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+                throw new RuntimeException(e.getMessage());
+            }
+
+            // Now call the Bundle utilities to extract the bundle
+            if (context.getVersion().getVersion() == FhirVersionEnum.DSTU3) {
+                BundleUtils.extractStu3Resources((org.hl7.fhir.dstu3.model.Bundle)bundle, encoding, outputDir);
+            } else if (context.getVersion().getVersion() == FhirVersionEnum.R4) {
+                BundleUtils.extractR4Resources((org.hl7.fhir.r4.model.Bundle)bundle, encoding, outputDir);
+            }
         }
         
         // Now move and properly rename the files
-        moveAndRenameFiles(outputDir);
+        moveAndRenameFiles(outputDir, bundleFile);
 
         LogUtils.info("Extraction completed successfully");
 	}
@@ -114,10 +133,14 @@ public class ExtractMatBundleOperation extends Operation {
 	 * Iterates through the files and properly renames and moves them to the proper place
 	 * 
 	 * @param outputDir
+	 * @param bundleFile The extracted bundle, which is not read again
 	 */
-	private void moveAndRenameFiles(String outputDir) {
+	private void moveAndRenameFiles(String outputDir, File bundleFile) {
 		File[] extractedFiles = new File(outputDir).listFiles();
         for (File extractedFile : extractedFiles) {
+        	if (extractedFile.getAbsoluteFile().equals(bundleFile.getAbsoluteFile())) {
+        		continue;
+        	}
         	IBaseResource theResource = null;
         	if (extractedFile.getPath().endsWith(".xml")) {
         		try {
@@ -140,7 +163,7 @@ public class ExtractMatBundleOperation extends Operation {
         	// We want to name them without the resource type, use name, and if needed version
         	String resourceName;
         	Path newOutputDirectory = Paths.get(outputDir.substring(0, outputDir.indexOf("bundles")), "input");
-        	if (version == "stu3) ") {
+        	if (context.getVersion().getVersion() == FhirVersionEnum.DSTU3) {
         		if (theResource instanceof org.hl7.fhir.dstu3.model.Library) {
         			org.hl7.fhir.dstu3.model.Library theLibrary = (org.hl7.fhir.dstu3.model.Library)theResource;
         			resourceName = theLibrary.getName();
@@ -161,7 +184,7 @@ public class ExtractMatBundleOperation extends Operation {
         					Paths.get(newOutputDirectory.toString(), "resources/measure").toString(), resourceName);
         		}
         	}
-        	else if (version == "r4") {
+        	else if (context.getVersion().getVersion() == FhirVersionEnum.R4) {
         		if (theResource instanceof org.hl7.fhir.r4.model.Library) {
         			org.hl7.fhir.r4.model.Library theLibrary = (org.hl7.fhir.r4.model.Library)theResource;
         			resourceName = theLibrary.getName();
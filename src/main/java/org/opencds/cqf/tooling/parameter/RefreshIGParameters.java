@@ -19,4 +19,15 @@ public class RefreshIGParameters {
     public ArrayList<String> resourceDirs;
     public Boolean conformant;
     public String measureToRefreshPath;
+    public Boolean cacheIndex;
+    public Boolean asyncWrites;
+    public Boolean cacheElm;
+    public Boolean watch;
+    public String translationProfilePath;
+    public String offlinePackageDirectory;
+    public Integer bundleThreads;
+    public Integer readThreads;
+    public Integer translationThreads;
+    public Boolean streamBundles;
+    public Boolean deduplicateBundles;
 }
\ No newline at end of file
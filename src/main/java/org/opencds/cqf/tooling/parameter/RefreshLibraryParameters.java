@@ -1,5 +1,7 @@
 package org.opencds.cqf.tooling.parameter;
 
+import java.util.Set;
+
 import org.opencds.cqf.tooling.processor.IProcessorContext;
 import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
 
@@ -45,4 +47,9 @@ public class RefreshLibraryParameters {
     An initialized processor context that can provide the IG context directly
      */
     public IProcessorContext parentContext;
+
+    /*
+    The names of the libraries to refresh, or null to refresh every library
+     */
+    public Set<String> libraryNames;
 }
\ No newline at end of file
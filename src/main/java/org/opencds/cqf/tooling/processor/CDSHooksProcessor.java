@@ -20,14 +20,23 @@ public class CDSHooksProcessor {
     public static final String requestFilesPathElement = "requests/";  
     public static final String responseFilesPathElement = "responses/"; 
     public static void addRequestAndResponseFilesToBundle(String igPath, String bundleDestPath, String libraryName) {
-        String bundleDestFilesPath = FilenameUtils.concat(bundleDestPath, libraryName + "-" + IGBundleProcessor.bundleFilesPathElement);
         String requestFilesPath = FilenameUtils.concat(igPath, requestsPathElement);
         String responseFilesPath = FilenameUtils.concat(igPath, responsesPathElement);
+        addRequestAndResponseFilesToBundle(bundleDestPath, libraryName, IOUtils.getDirectoryPaths(requestFilesPath, false),
+            IOUtils.getDirectoryPaths(responseFilesPath, false));
+    }
+
+    /**
+     * @param requestDirectories The directories of the IG's requests, listed once for all the plan definitions bundled
+     * @param responseDirectories The directories of the IG's responses, listed once for all the plan definitions bundled
+     */
+    public static void addRequestAndResponseFilesToBundle(String bundleDestPath, String libraryName, List<String> requestDirectories,
+            List<String> responseDirectories) {
+        String bundleDestFilesPath = FilenameUtils.concat(bundleDestPath, libraryName + "-" + IGBundleProcessor.bundleFilesPathElement);
         String requestFilesDirectory = FilenameUtils.concat(bundleDestFilesPath, requestFilesPathElement);
-        IOUtils.initializeDirectory(requestFilesDirectory);
+        IOUtils.syncDirectory(requestFilesDirectory);
         String responseFilesDirectory = FilenameUtils.concat(bundleDestFilesPath, responseFilesPathElement);
-        IOUtils.initializeDirectory(responseFilesDirectory);
-        List<String> requestDirectories = IOUtils.getDirectoryPaths(requestFilesPath, false);
+        IOUtils.syncDirectory(responseFilesDirectory);
         for (String dir : requestDirectories) {
             if (dir.endsWith(libraryName)) {
                 List<String> requestPaths = IOUtils.getFilePaths(dir, true);
@@ -36,7 +45,6 @@ public class CDSHooksProcessor {
                 }
             }
         }
-        List<String> responseDirectories = IOUtils.getDirectoryPaths(responseFilesPath, false);
         for (String dir : responseDirectories) {
             if (dir.endsWith(libraryName)) {
                 List<String> responsePaths = IOUtils.getFilePaths(dir, true);
@@ -2,11 +2,23 @@ package org.opencds.cqf.tooling.processor;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cqframework.cql.cql2elm.*;
+import org.cqframework.cql.cql2elm.model.Model;
 import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
 import org.cqframework.cql.elm.tracking.TrackBack;
 import org.fhir.ucum.UcumService;
@@ -45,6 +57,12 @@ import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
 import org.opencds.cqf.tooling.npm.ILibraryReader;
 import org.opencds.cqf.tooling.npm.NpmLibrarySourceProvider;
 import org.opencds.cqf.tooling.npm.NpmModelInfoProvider;
+import org.opencds.cqf.tooling.utilities.CqlLibraryGraph;
+import org.opencds.cqf.tooling.utilities.CqlTranslationProfiler;
+import org.opencds.cqf.tooling.utilities.CqlTranslationService;
+import org.opencds.cqf.tooling.utilities.ElmCache;
+import org.opencds.cqf.tooling.utilities.ElmSerializer;
+import org.opencds.cqf.tooling.utilities.PrecompiledModelInfoProvider;
 
 public class CqlProcessor {
 
@@ -53,8 +71,10 @@ public class CqlProcessor {
      */
     public class CqlSourceFileInformation {
         private VersionedIdentifier identifier;
-        private byte[] elm;
-        private byte[] jsonElm;
+        private org.hl7.elm.r1.Library elm;
+        private CqlTranslator.Format jsonFormat;
+        private Path elmFile;
+        private Path jsonElmFile;
         private List<ValidationMessage> errors = new ArrayList<>();
         private List<RelatedArtifact> relatedArtifacts = new ArrayList<>();
         private List<DataRequirement> dataRequirements = new ArrayList<>();
@@ -65,17 +85,54 @@ public class CqlProcessor {
         public void setIdentifier(VersionedIdentifier identifier) {
             this.identifier = identifier;
         }
-        public byte[] getElm() {
-            return elm;
-        }
-        public void setElm(byte[] elm) {
+        /**
+         * Sets the ELM to the translated library, which is serialized as XML, and in the given JSON format (if not
+         * null), when it is written.
+         */
+        public void setElm(org.hl7.elm.r1.Library elm, CqlTranslator.Format jsonFormat) {
             this.elm = elm;
+            this.jsonFormat = jsonFormat;
+            this.elmFile = null;
+            this.jsonElmFile = null;
+        }
+        /**
+         * Sets the ELM XML to the content of the given file (e.g. an ELM cache entry), which is read when it is written.
+         */
+        public void setElm(Path elmFile) {
+            this.elm = null;
+            this.elmFile = elmFile;
+        }
+        public boolean hasElm() {
+            return elm != null || elmFile != null;
+        }
+        /**
+         * Writes the ELM XML to the given stream, if there is any.
+         */
+        public void writeElm(OutputStream output) throws IOException {
+            if (elm != null) {
+                ElmSerializer.writeXml(elm, output);
+            }
+            else if (elmFile != null) {
+                Files.copy(elmFile, output);
+            }
         }
-        public byte[] getJsonElm() {
-            return jsonElm;
+        public void setJsonElm(Path jsonElmFile) {
+            this.jsonFormat = null;
+            this.jsonElmFile = jsonElmFile;
         }
-        public void setJsonElm(byte[] jsonElm) {
-            this.jsonElm = jsonElm;
+        public boolean hasJsonElm() {
+            return (elm != null && jsonFormat != null) || jsonElmFile != null;
+        }
+        /**
+         * Writes the ELM in the JSON format requested by the translator options to the given stream, if there is any.
+         */
+        public void writeJsonElm(OutputStream output) throws IOException {
+            if (elm != null && jsonFormat != null) {
+                ElmSerializer.writeJson(elm, jsonFormat, output);
+            }
+            else if (jsonElmFile != null) {
+                Files.copy(jsonElmFile, output);
+            }
         }
         public List<ValidationMessage> getErrors() {
             return errors;
@@ -170,7 +227,13 @@ public class CqlProcessor {
     public void execute() throws FHIRException {
         try {
             logger.logMessage("Translating CQL source");
-            fileMap = new HashMap<>();
+            fileMap = new ConcurrentHashMap<>();
+            cachedOptions = null;
+            cachedLibraryManager = null;
+            cachedEnvironment = null;
+            hasMultipleBinaryPaths = false;
+            translationEnvironments.clear();
+            elmCacheKeys.clear();
 
             // foreach folder
             for (String folder : folders) {
@@ -252,6 +315,15 @@ public class CqlProcessor {
         return cachedLibraryManager;
     }
 
+    private String cachedEnvironment;
+    /**
+     * @return The environment the libraries of the cached manager were translated in (see CqlTranslationService)
+     */
+    public String getTranslationEnvironment() {
+        checkCachedManager();
+        return cachedEnvironment;
+    }
+
     /**
      * Reads configuration file named cql-options.json from the given folder if present. Otherwise returns default options.
      * @param folder
@@ -274,31 +346,185 @@ public class CqlProcessor {
         return options;
     }
 
-    private void translateFolder(String folder) {
-        logger.logMessage(String.format("Translating CQL source in folder %s", folder));
+    /**
+     * The result of translating a file, kept between calls to execute when translations are retained
+     */
+    private static class RetainedTranslation {
+        private final String key;
+        private final CqlSourceFileInformation information;
+        private final TranslatedLibrary translatedLibrary;
+
+        RetainedTranslation(String key, CqlSourceFileInformation information, TranslatedLibrary translatedLibrary) {
+            this.key = key;
+            this.information = information;
+            this.translatedLibrary = translatedLibrary;
+        }
+    }
 
-        CqlTranslatorOptions options = getTranslatorOptions(folder);
+    // The ELM cache keys of the libraries translated or restored by the last execute, by name and version
+    private final Map<String, String> elmCacheKeys = new ConcurrentHashMap<>();
 
-        // Setup
-        // Construct DefaultLibrarySourceProvider
-        // Construct FhirLibrarySourceProvider
-        ModelManager modelManager = new ModelManager();
-        LibraryManager libraryManager = new LibraryManager(modelManager);
+    /**
+     * Returns the ELM cache key of the given library, if it was translated or restored from the ELM cache by the last
+     * execute, so that content derived from it (e.g. the data requirements of a measure) can be cached under it.
+     */
+    public String getElmCacheKey(VersionedIdentifier identifier) {
+        return elmCacheKeys.get(getLibraryKey(identifier));
+    }
+
+    private void recordElmCacheKey(VersionedIdentifier identifier, String cacheKey) {
+        if (identifier != null && cacheKey != null) {
+            elmCacheKeys.put(getLibraryKey(identifier), cacheKey);
+        }
+    }
+
+    private static String getLibraryKey(VersionedIdentifier identifier) {
+        return identifier.getId() + "|" + (identifier.getVersion() == null ? "" : identifier.getVersion());
+    }
+
+    private boolean retainTranslations;
+    private final Map<String, RetainedTranslation> retainedTranslations = new ConcurrentHashMap<>();
+    private final Map<String, ModelManager> retainedModelManagers = new ConcurrentHashMap<>();
+
+    public boolean getRetainTranslations() {
+        return retainTranslations;
+    }
+
+    /**
+     * When set, the result of translating each file and the models of each folder are kept between calls to execute,
+     * and a file is only translated again if it, a library it includes from its folder, its options or its
+     * environment has changed. Used by the watch mode of the IG refresh.
+     */
+    public void setRetainTranslations(boolean retainTranslations) {
+        this.retainTranslations = retainTranslations;
+        if (!retainTranslations) {
+            retainedTranslations.clear();
+            retainedModelManagers.clear();
+        }
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static int translationParallelism = 1;
+    private static ExecutorService translationExecutor;
+    public static synchronized int getTranslationParallelism() {
+        return translationParallelism;
+    }
+
+    /**
+     * Sets the number of threads used to translate the CQL files of a folder. A value of 1 translates on the calling thread.
+     */
+    public static synchronized void setTranslationParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        if (translationExecutor != null) {
+            translationExecutor.shutdown();
+            translationExecutor = null;
+        }
+        translationParallelism = parallelism;
+    }
+
+    // Shared by every folder and every processor, so translating many folders does not create a pool for each
+    private static synchronized ExecutorService getTranslationExecutor() {
+        if (translationExecutor == null) {
+            translationExecutor = Executors.newFixedThreadPool(translationParallelism, runnable -> {
+                Thread thread = new Thread(runnable, "cql-translator-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return translationExecutor;
+    }
+
+    /**
+     * A ModelManager that can be used from several translation threads. The models a folder declares are resolved
+     * before its files are translated, but models referenced transitively (e.g. by a library included from a
+     * package) are first resolved during translation, so every method that reads or loads models holds the lock.
+     */
+    private static class SynchronizedModelManager extends ModelManager {
+        @Override
+        public synchronized Model resolveModel(String modelName) {
+            return super.resolveModel(modelName);
+        }
+
+        @Override
+        public synchronized Model resolveModel(String modelName, String version) {
+            return super.resolveModel(modelName, version);
+        }
+
+        @Override
+        public synchronized Model resolveModel(VersionedIdentifier modelIdentifier) {
+            return super.resolveModel(modelIdentifier);
+        }
+
+        @Override
+        public synchronized Model resolveModelByUri(String namespaceUri) {
+            return super.resolveModelByUri(namespaceUri);
+        }
+
+        /**
+         * A copy of the models resolved so far, as the map itself may change while it is read.
+         */
+        @Override
+        public synchronized Map<String, Model> getModels() {
+            return new HashMap<>(super.getModels());
+        }
+    }
+
+    private ModelManager createModelManager(String folder) {
+        ModelManager modelManager = new SynchronizedModelManager();
+        // Registered first, so that models from packages and from the folder still take precedence
+        PrecompiledModelInfoProvider.register(modelManager, Paths.get(folder));
         if (packages != null) {
             modelManager.getModelInfoLoader().registerModelInfoProvider(new NpmModelInfoProvider(packages, reader, logger), true);
+        }
+        modelManager.getModelInfoLoader().registerModelInfoProvider(new DefaultModelInfoProvider(Paths.get(folder)));
+        return modelManager;
+    }
+
+    private LibraryManager createLibraryManager(ModelManager modelManager, String folder) {
+        LibraryManager libraryManager = CqlTranslationProfiler.newLibraryManager(modelManager);
+        if (packages != null) {
             libraryManager.getLibrarySourceLoader().registerProvider(new NpmLibrarySourceProvider(packages, reader, logger));
         }
         libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
         libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(Paths.get(folder)));
-        modelManager.getModelInfoLoader().registerModelInfoProvider(new DefaultModelInfoProvider(Paths.get(folder)));
 
         loadNamespaces(libraryManager);
+        return libraryManager;
+    }
+
+    private void translateFolder(String folder) {
+        logger.logMessage(String.format("Translating CQL source in folder %s", folder));
+
+        CqlTranslatorOptions options = getTranslatorOptions(folder);
+
+        // Setup
+        // Construct DefaultLibrarySourceProvider
+        // Construct FhirLibrarySourceProvider
+        ModelManager modelManager;
+        if (retainTranslations) {
+            String modelKey = folder + "\n" + getTranslationEnvironment(new File(folder).getAbsoluteFile());
+            modelManager = retainedModelManagers.computeIfAbsent(modelKey, k -> createModelManager(folder));
+        }
+        else {
+            modelManager = createModelManager(folder);
+        }
+        LibraryManager libraryManager = createLibraryManager(modelManager, folder);
 
         // foreach *.cql file
-        boolean hadCqlFiles = false;
-        for (File file : new File(folder).listFiles(getCqlFilenameFilter())) {
-            hadCqlFiles = true;
-            translateFile(modelManager, libraryManager, file, options);
+        File[] files = new File(folder).listFiles(getCqlFilenameFilter());
+        boolean hadCqlFiles = files != null && files.length > 0;
+        if (hadCqlFiles) {
+            if (getTranslationParallelism() > 1 && files.length > 1) {
+                translateFilesInParallel(modelManager, libraryManager, folder, Arrays.asList(files), options);
+            }
+            else {
+                for (File file : files) {
+                    translateFile(modelManager, libraryManager, file, options);
+                }
+            }
         }
 
         if (hadCqlFiles) {
@@ -306,6 +532,7 @@ public class CqlProcessor {
                 if (!hasMultipleBinaryPaths) {
                     cachedOptions = options;
                     cachedLibraryManager = libraryManager;
+                    cachedEnvironment = getTranslationEnvironment(new File(folder).getAbsoluteFile());
                 }
             }
             else {
@@ -313,9 +540,80 @@ public class CqlProcessor {
                     hasMultipleBinaryPaths = true;
                     cachedOptions = null;
                     cachedLibraryManager = null;
+                    cachedEnvironment = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Translates the files in dependency order, translating the files of each level of the include graph concurrently.
+     *
+     * The LibraryManager is not thread-safe, so each worker thread translates with its own LibraryManager over the
+     * shared ModelManager. The workers run on the executor shared by all folders. Every library a worker translates (including libraries resolved from packages) is added
+     * to a shared cache, and each worker's manager is seeded from that cache before a file is translated, so a
+     * library's includes are translated once and then reused by every dependent. When the translation is done the
+     * folder's LibraryManager is given all the translated libraries.
+     */
+    private void translateFilesInParallel(ModelManager modelManager, LibraryManager libraryManager, String folder, List<File> files,
+            CqlTranslatorOptions options) {
+        CqlLibraryGraph graph = CqlLibraryGraph.build(files);
+        for (CqlLibraryGraph.Declaration model : graph.getModels()) {
+            try {
+                modelManager.resolveModel(model.getName(), model.getVersion());
+            }
+            catch (Exception e) {
+                // Reported when the libraries using the model are translated
+                logger.logDebugMessage(ILoggingService.LogCategory.PROGRESS, String.format("Could not load model %s: %s", model, e.getMessage()));
+            }
+        }
+
+        Map<String, TranslatedLibrary> translatedLibraries = new ConcurrentHashMap<>();
+        // The workers' LibraryManagers, each used by one task at a time
+        Queue<LibraryManager> workerLibraryManagers = new ConcurrentLinkedQueue<>();
+        ExecutorService workers = getTranslationExecutor();
+
+        try {
+            for (List<File> level : graph.getLevels()) {
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (File file : level) {
+                    tasks.add(() -> {
+                        LibraryManager workerLibraryManager = workerLibraryManagers.poll();
+                        if (workerLibraryManager == null) {
+                            workerLibraryManager = createLibraryManager(modelManager, folder);
+                        }
+                        try {
+                            for (Map.Entry<String, TranslatedLibrary> entry : translatedLibraries.entrySet()) {
+                                workerLibraryManager.getTranslatedLibraries().putIfAbsent(entry.getKey(), entry.getValue());
+                            }
+                            translateFile(modelManager, workerLibraryManager, file, options);
+                            for (Map.Entry<String, TranslatedLibrary> entry : workerLibraryManager.getTranslatedLibraries().entrySet()) {
+                                translatedLibraries.putIfAbsent(entry.getKey(), entry.getValue());
+                            }
+                        }
+                        finally {
+                            workerLibraryManagers.add(workerLibraryManager);
+                        }
+                        return null;
+                    });
+                }
+
+                for (Future<Void> future : workers.invokeAll(tasks)) {
+                    future.get();
                 }
             }
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while translating CQL source in folder " + folder);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+
+        for (Map.Entry<String, TranslatedLibrary> entry : translatedLibraries.entrySet()) {
+            libraryManager.getTranslatedLibraries().putIfAbsent(entry.getKey(), entry.getValue());
+        }
     }
 
     private void loadNamespaces(LibraryManager libraryManager) {
@@ -366,14 +664,65 @@ public class CqlProcessor {
 
     private void translateFile(ModelManager modelManager, LibraryManager libraryManager, File file, CqlTranslatorOptions options) {
         logger.logMessage(String.format("Translating CQL source in file %s", file.toString()));
+        String filePath = file.getAbsoluteFile().toString();
+
+        String retainKey = null;
+        if (retainTranslations) {
+            try {
+                retainKey = ElmCache.getKey(file, options, getTranslationEnvironment(file.getAbsoluteFile().getParentFile()));
+                RetainedTranslation retained = retainedTranslations.get(filePath);
+                if (retained != null && retained.key.equals(retainKey)) {
+                    fileMap.put(filePath, retained.information);
+                    if (ElmCache.isEnabled()) {
+                        recordElmCacheKey(retained.information.getIdentifier(), retainKey);
+                    }
+                    if (retained.translatedLibrary != null) {
+                        VersionedIdentifier identifier = retained.translatedLibrary.getIdentifier();
+                        libraryManager.getTranslatedLibraries().put(NamespaceManager.getPath(identifier.getSystem(), identifier.getId()), retained.translatedLibrary);
+                    }
+                    logger.logMessage("CQL source unchanged; the previous translation was reused.");
+                    return;
+                }
+            }
+            catch (Exception e) {
+                logger.logMessage(String.format("Could not reuse the previous translation of file '%s': %s", file.getAbsolutePath(), e.getMessage()));
+                retainKey = null;
+            }
+        }
+
         CqlSourceFileInformation result = new CqlSourceFileInformation();
-        fileMap.put(file.getAbsoluteFile().toString(), result);
+        fileMap.put(filePath, result);
+
+        String cacheKey = null;
+        if (ElmCache.isEnabled()) {
+            try {
+                cacheKey = retainKey != null ? retainKey : ElmCache.getKey(file, options, getTranslationEnvironment(file.getAbsoluteFile().getParentFile()));
+                ElmCache.Entry cached = ElmCache.get(cacheKey);
+                if (cached != null && cached.getRequirements() != null) {
+                    restoreFromCache(result, cached);
+                    recordElmCacheKey(result.getIdentifier(), cacheKey);
+                    logger.logMessage("CQL translation restored from the ELM cache.");
+                    if (retainKey != null) {
+                        retainedTranslations.put(filePath, new RetainedTranslation(retainKey, result, null));
+                    }
+                    return;
+                }
+            }
+            catch (Exception e) {
+                logger.logMessage(String.format("Could not use the ELM cache for file '%s': %s", file.getAbsolutePath(), e.getMessage()));
+                result.getErrors().clear();
+                result.getRelatedArtifacts().clear();
+                result.getParameters().clear();
+                result.getDataRequirements().clear();
+            }
+        }
 
         try {
 
-            // translate toXML
-            CqlTranslator translator = CqlTranslator.fromFile(namespaceInfo, file, modelManager, libraryManager,
-                    options.getValidateUnits() ? ucumService : null, options);
+            // translate toXML, unless the file was already translated with these options during this run
+            CqlTranslator translator = CqlTranslationService.translate(file, options, getTranslationEnvironment(file.getAbsoluteFile().getParentFile()),
+                    () -> CqlTranslationProfiler.translate(file, () -> CqlTranslator.fromFile(namespaceInfo, file, modelManager, libraryManager,
+                            options.getValidateUnits() ? ucumService : null, options)));
 
             // record errors and warnings
             for (CqlTranslatorException exception : translator.getExceptions()) {
@@ -391,16 +740,7 @@ public class CqlProcessor {
             }
             else {
                 try {
-                    // convert to base64 bytes
-                    // NOTE: Publication tooling requires XML content
-                    result.setElm(translator.toXml().getBytes());
                     result.setIdentifier(translator.toELM().getIdentifier());
-                    if (options.getFormats().contains(CqlTranslator.Format.JSON)) {
-                        result.setJsonElm(translator.toJson().getBytes());
-                    }
-                    if (options.getFormats().contains(CqlTranslator.Format.JXSON)) {
-                        result.setJsonElm(translator.toJxson().getBytes());
-                    }
 
                     // Add the translated library to the library manager (NOTE: This should be a "cacheLibrary" call on the LibraryManager, available in 1.5.3+)
                     // Without this, the data requirements processor will try to load the current library, resulting in a re-translation
@@ -431,6 +771,21 @@ public class CqlProcessor {
                     // Extract dataRequirement data
                     result.dataRequirements.addAll(requirementsLibrary.getDataRequirement());
 
+                    // The ELM is serialized into the ELM cache entry if there is one, otherwise only the ELM library
+                    // is kept with the result and serialized when it is written, so the translator is not kept
+                    // NOTE: Publication tooling requires XML content
+                    CqlTranslator.Format jsonFormat = options.getFormats().contains(CqlTranslator.Format.JXSON) ? CqlTranslator.Format.JXSON
+                        : options.getFormats().contains(CqlTranslator.Format.JSON) ? CqlTranslator.Format.JSON : null;
+                    if (cacheKey != null && storeInCache(cacheKey, result, requirementsLibrary, translator, jsonFormat)) {
+                        recordElmCacheKey(result.getIdentifier(), cacheKey);
+                    }
+                    else {
+                        result.setElm(translator.toELM(), jsonFormat);
+                    }
+                    if (retainKey != null) {
+                        retainedTranslations.put(filePath, new RetainedTranslation(retainKey, result, translatedLibrary));
+                    }
+
                     logger.logMessage("CQL translation completed successfully.");
                 } catch (Exception ex) {
                     logger.logMessage(String.format("CQL Translation succeeded for file: '%s', but ELM generation failed with the following error: %s", file.getAbsolutePath(), ex.getMessage()));
@@ -442,6 +797,96 @@ public class CqlProcessor {
         }
     }
 
+    private final Map<File, String> translationEnvironments = new ConcurrentHashMap<>();
+
+    /**
+     * Everything besides the source and options that a translation in the folder depends on: the namespace,
+     * the packages libraries and models may be resolved from, UCUM validation, and the model info files in the folder.
+     */
+    private String getTranslationEnvironment(File folder) {
+        return translationEnvironments.computeIfAbsent(folder, f -> {
+            StringBuilder environment = new StringBuilder("namespace:");
+            if (namespaceInfo != null) {
+                environment.append(namespaceInfo.getName()).append('|').append(namespaceInfo.getUri());
+            }
+            environment.append("\npackages:");
+            if (packages != null) {
+                for (NpmPackage p : packages) {
+                    environment.append(p.name()).append('#').append(p.version()).append(';');
+                }
+            }
+            environment.append("\nucum:").append(ucumService != null);
+            File[] modelInfoFiles = f.listFiles((path, name) -> name.contains("modelinfo") && name.endsWith(".xml"));
+            if (modelInfoFiles != null) {
+                Arrays.sort(modelInfoFiles);
+                for (File modelInfoFile : modelInfoFiles) {
+                    environment.append("\nmodelinfo:").append(modelInfoFile.getName()).append(':')
+                        .append(modelInfoFile.lastModified()).append(':').append(modelInfoFile.length());
+                }
+            }
+            return environment.toString();
+        });
+    }
+
+    private void restoreFromCache(CqlSourceFileInformation result, ElmCache.Entry cached) {
+        result.setElm(cached.getXmlPath());
+        if (cached.getJsonPath() != null) {
+            result.setJsonElm(cached.getJsonPath());
+        }
+        result.setIdentifier(cached.getIdentifier());
+        for (ElmCache.Message message : cached.getMessages()) {
+            result.getErrors().add(new ValidationMessage(
+                    message.getSource() == null ? null : ValidationMessage.Source.valueOf(message.getSource()),
+                    message.getType() == null ? null : IssueType.valueOf(message.getType()),
+                    message.getLine(), message.getCol(), message.getLocation(), message.getMessage(),
+                    message.getLevel() == null ? null : IssueSeverity.valueOf(message.getLevel())));
+        }
+
+        org.hl7.fhir.r5.model.Library requirementsLibrary;
+        try {
+            requirementsLibrary = (org.hl7.fhir.r5.model.Library) new org.hl7.fhir.r5.formats.JsonParser().parse(cached.getRequirements());
+        }
+        catch (IOException e) {
+            throw new FHIRException("Error reading cached data requirements: " + e.getMessage(), e);
+        }
+        result.relatedArtifacts.addAll(requirementsLibrary.getRelatedArtifact());
+        result.parameters.addAll(requirementsLibrary.getParameter());
+        result.dataRequirements.addAll(requirementsLibrary.getDataRequirement());
+    }
+
+    /**
+     * Stores the translation in the ELM cache, writing its ELM straight into the entry, and points the result at the
+     * stored ELM. Returns false if it could not be stored.
+     */
+    private boolean storeInCache(String cacheKey, CqlSourceFileInformation result, org.hl7.fhir.r5.model.Library requirementsLibrary,
+            CqlTranslator translator, CqlTranslator.Format jsonFormat) {
+        ElmCache.Entry entry = new ElmCache.Entry();
+        entry.setIdentifier(result.getIdentifier());
+        for (ValidationMessage message : result.getErrors()) {
+            entry.getMessages().add(new ElmCache.Message(
+                    message.getSource() == null ? null : message.getSource().name(),
+                    message.getType() == null ? null : message.getType().name(),
+                    message.getLine(), message.getCol(), message.getLocation(), message.getMessage(),
+                    message.getLevel() == null ? null : message.getLevel().name()));
+        }
+        try {
+            entry.setRequirements(new org.hl7.fhir.r5.formats.JsonParser().composeString(requirementsLibrary));
+        }
+        catch (IOException e) {
+            logger.logMessage(String.format("Could not cache the data requirements of library %s: %s", result.getIdentifier().getId(), e.getMessage()));
+            return false;
+        }
+        if (!ElmCache.put(cacheKey, entry, output -> ElmSerializer.writeXml(translator.toELM(), output),
+                jsonFormat != null ? output -> ElmSerializer.writeJson(translator, jsonFormat, output) : null)) {
+            return false;
+        }
+        result.setElm(entry.getXmlPath());
+        if (entry.getJsonPath() != null) {
+            result.setJsonElm(entry.getJsonPath());
+        }
+        return true;
+    }
+
     private FilenameFilter getCqlFilenameFilter() {
         return new FilenameFilter() {
             @Override
@@ -14,6 +14,7 @@ import org.hl7.fhir.r5.model.*;
 import org.hl7.fhir.r5.model.Library;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.opencds.cqf.tooling.visitor.ElmRequirement;
+import org.opencds.cqf.tooling.visitor.ElmRequirementsCache;
 import org.opencds.cqf.tooling.visitor.ElmRequirementsContext;
 import org.opencds.cqf.tooling.visitor.ElmRequirementsVisitor;
 
@@ -26,6 +27,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DataRequirementsProcessor {
 
+    // Shared by all processors, so the requirements of a library are gathered once however many libraries include it;
+    // cleared at the end of each refresh
+    private static final ElmRequirementsCache requirementsCache = new ElmRequirementsCache();
+    public static ElmRequirementsCache getRequirementsCache() {
+        return requirementsCache;
+    }
+
     private java.util.List<ValidationMessage> validationMessages = new ArrayList<ValidationMessage>();
     public java.util.List<ValidationMessage> getValidationMessages() {
         return this.validationMessages;
@@ -42,20 +50,32 @@ public class DataRequirementsProcessor {
 
         ElmRequirementsVisitor visitor = new ElmRequirementsVisitor();
         ElmRequirementsContext context = new ElmRequirementsContext(libraryManager, options, visitor);
-
-        if (expressions == null) {
-            visitor.visitLibrary(translatedLibrary.getLibrary(), context);
+        context.setCache(requirementsCache);
+
+        String key = ElmRequirementsCache.getKey(translatedLibrary.getIdentifier(),
+                expressions == null ? "library" : "expressions:" + String.join("\n", new TreeSet<String>(expressions)));
+        List<ElmRequirement> cached = requirementsCache.get(key, translatedLibrary);
+        if (cached != null) {
+            for (ElmRequirement requirement : cached) {
+                context.getRequirements().reportRequirement(requirement);
+            }
         }
         else {
-            context.enterLibrary(translatedLibrary.getIdentifier());
-            try {
-                for (String expression : expressions) {
-                    visitor.visitElement(translatedLibrary.resolve(expression), context);
-                }
+            if (expressions == null) {
+                visitor.visitLibrary(translatedLibrary.getLibrary(), context);
             }
-            finally {
-                context.exitLibrary();
+            else {
+                context.enterLibrary(translatedLibrary.getIdentifier());
+                try {
+                    for (String expression : expressions) {
+                        visitor.visitElement(translatedLibrary.resolve(expression), context);
+                    }
+                }
+                finally {
+                    context.exitLibrary();
+                }
             }
+            requirementsCache.put(key, translatedLibrary, context.getRequirements().getRequirements());
         }
 
         return createLibrary(context, includeLogicDefinitions);
@@ -1,23 +1,139 @@
 package org.opencds.cqf.tooling.processor;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.opencds.cqf.tooling.measure.MeasureProcessor;
+import org.opencds.cqf.tooling.utilities.IOUtils;
 import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
+import org.opencds.cqf.tooling.utilities.LogUtils;
+import org.opencds.cqf.tooling.utilities.OutputStore;
 
 import ca.uhn.fhir.context.FhirContext;
 
 public class IGBundleProcessor {
     public static final String bundleFilesPathElement = "files/";    
 
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static int bundleParallelism = 1;
+    public static int getBundleParallelism() {
+        return bundleParallelism;
+    }
+
+    /**
+     * Sets the number of threads measures and plan definitions are bundled on. With 1 (the default) they are bundled
+     * one after the other on the calling thread.
+     */
+    public static void setBundleParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        bundleParallelism = parallelism;
+    }
+
+    /**
+     * Runs the task for each of the artifacts, one after the other on the calling thread or, if the bundle parallelism
+     * is greater than 1, as independent tasks on a pool of that many threads. The LogUtils warnings of each concurrent
+     * task are kept apart from those of the others. Returns once every task has completed; a task that fails does not
+     * stop the others, and the first failure, in the order of the artifacts, is rethrown.
+     */
+    public static <T> void forEachArtifact(List<T> artifacts, Consumer<T> task) {
+        int parallelism = Math.min(bundleParallelism, artifacts.size());
+        if (parallelism <= 1) {
+            artifacts.forEach(task);
+            return;
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "bundler-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (T artifact : artifacts) {
+                tasks.add(() -> {
+                    LogUtils.beginTask();
+                    try {
+                        task.accept(artifact);
+                    }
+                    finally {
+                        LogUtils.endTask();
+                    }
+                    return null;
+                });
+            }
+
+            for (Future<Void> future : workers.invokeAll(tasks)) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while bundling");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+        finally {
+            workers.shutdownNow();
+        }
+    }
+
     public static void bundleIg(ArrayList<String> refreshedLibraryNames, String igPath, Encoding encoding, Boolean includeELM,
             Boolean includeDependencies, Boolean includeTerminology, Boolean includePatientScenarios, Boolean versioned, Boolean cdsHooksIg,
             FhirContext fhirContext, String fhirUri) {
+        bundleIg(refreshedLibraryNames, null, igPath, encoding, includeELM, includeDependencies, includeTerminology, includePatientScenarios,
+                versioned, cdsHooksIg, fhirContext, fhirUri);
+    }
+
+    /**
+     * @param measureNames The names of the measures to bundle, or null to bundle every measure. Plan definitions are
+     *                     bundled for the refreshed libraries.
+     */
+    public static void bundleIg(ArrayList<String> refreshedLibraryNames, Set<String> measureNames, String igPath, Encoding encoding, Boolean includeELM,
+            Boolean includeDependencies, Boolean includeTerminology, Boolean includePatientScenarios, Boolean versioned, Boolean cdsHooksIg,
+            FhirContext fhirContext, String fhirUri) {
 
-        MeasureProcessor.bundleMeasures(refreshedLibraryNames, igPath, includeDependencies, includeTerminology, includePatientScenarios, versioned,
+        MeasureProcessor.bundleMeasures(refreshedLibraryNames, measureNames, igPath, includeDependencies, includeTerminology, includePatientScenarios, versioned,
                 fhirContext, fhirUri, encoding);
+        IOUtils.flushWrites();
 
         PlanDefinitionProcessor.bundlePlanDefinitions(refreshedLibraryNames, igPath, includeDependencies, includeTerminology, includePatientScenarios, versioned, cdsHooksIg,
                 fhirContext, fhirUri, encoding);
+        IOUtils.flushWrites();
+
+        reportOutputStore();
+    }
+
+    private static void reportOutputStore() {
+        OutputStore store = IOUtils.getOutputStore();
+        if (store == null) {
+            return;
+        }
+        LogUtils.info(store.getSummary());
+        store.resetStatistics();
+        try {
+            long pruned = store.prune();
+            if (pruned > 0) {
+                LogUtils.info(String.format("Output store: %d bytes of unused content removed", pruned));
+            }
+        }
+        catch (IOException e) {
+            LogUtils.putException("OutputStore", e);
+        }
     }
-}
\ No newline at end of file
+}
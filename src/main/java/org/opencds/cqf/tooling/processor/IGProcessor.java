@@ -3,23 +3,51 @@ package org.opencds.cqf.tooling.processor;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.io.FilenameUtils;
 import org.hl7.fhir.utilities.Utilities;
 import org.opencds.cqf.tooling.library.LibraryProcessor;
 import org.opencds.cqf.tooling.measure.MeasureProcessor;
+import org.opencds.cqf.tooling.npm.NpmPackageManager;
 import org.opencds.cqf.tooling.parameter.RefreshIGParameters;
+import org.opencds.cqf.tooling.utilities.BundleUtils;
+import org.opencds.cqf.tooling.utilities.CqlTranslationProfiler;
+import org.opencds.cqf.tooling.utilities.CqlTranslationService;
+import org.opencds.cqf.tooling.utilities.ElmCache;
 import org.opencds.cqf.tooling.utilities.IGUtils;
 import org.opencds.cqf.tooling.utilities.IOUtils;
 import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
 import org.opencds.cqf.tooling.utilities.LogUtils;
+import org.opencds.cqf.tooling.utilities.OutputStore;
+import org.opencds.cqf.tooling.utilities.PrecompiledModelInfoProvider;
+import org.opencds.cqf.tooling.utilities.ResourceIndexStore;
 
 import ca.uhn.fhir.context.FhirContext;
 
 public class IGProcessor extends BaseProcessor {
+    public static final int DEFAULT_ASYNC_WRITE_THREADS = 4;
+
     //mega ig method
     public void publishIG(RefreshIGParameters params) {
+        if (params.offlinePackageDirectory != null) {
+            NpmPackageManager.setOfflinePackageDirectory(params.offlinePackageDirectory);
+        }
+        if (params.bundleThreads != null) {
+            IGBundleProcessor.setBundleParallelism(params.bundleThreads);
+        }
+        if (params.readThreads != null) {
+            IOUtils.setReaderParallelism(params.readThreads);
+        }
+        if (params.translationThreads != null) {
+            CqlProcessor.setTranslationParallelism(params.translationThreads);
+        }
+        if (params.streamBundles != null && params.streamBundles) {
+            BundleUtils.setStreamBundles(true);
+        }
         if (params.ini != null) {
             initializeFromIni(params.ini);
         }
@@ -58,6 +86,10 @@ public class IGProcessor extends BaseProcessor {
 
         //Use case 2 while developing in Atom refresh content and run tests for either entire IG or targeted Artifact
         //refreshcontent
+        boolean watch = params.watch != null && params.watch;
+        if (watch) {
+            getCqlProcessor().setRetainTranslations(true);
+        }
         LogUtils.info("IGProcessor.publishIG - refreshIG");
         refreshIG(params);
         //validate
@@ -70,6 +102,20 @@ public class IGProcessor extends BaseProcessor {
         LogUtils.info("IGProcessor.publishIG - bundleIg");
         IGBundleProcessor.bundleIg(refreshedResourcesNames, rootDir, encoding, includeELM, includeDependencies, includeTerminology, includePatientScenarios,
         versioned, cdsHooksIg, fhirContext, fhirUri);
+        endRefresh(params);
+
+        if (watch) {
+            LogUtils.info("IGProcessor.publishIG - watch");
+            try {
+                new IGWatcher(this, params, fhirContext).watch();
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Error watching the IG for changes: " + e.getMessage(), e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         //test everything
         //IGTestProcessor.testIg(IGTestParameters);
         //Publish?
@@ -106,13 +152,35 @@ public class IGProcessor extends BaseProcessor {
             }
         }
         IOUtils.resourceDirectories.addAll(resourceDirs);
+        if (params.cacheIndex != null && params.cacheIndex) {
+            IOUtils.setResourceIndexCacheDirectory(FilenameUtils.concat(rootDir, ResourceIndexStore.CACHE_DIRECTORY_NAME));
+        }
+        if (params.asyncWrites != null && params.asyncWrites) {
+            IOUtils.setAsyncWriteThreads(DEFAULT_ASYNC_WRITE_THREADS);
+        }
+        if (params.cacheElm != null && params.cacheElm) {
+            String cacheDirectory = FilenameUtils.concat(rootDir, ResourceIndexStore.CACHE_DIRECTORY_NAME);
+            ElmCache.setCacheDirectory(FilenameUtils.concat(cacheDirectory, ElmCache.DIRECTORY_NAME));
+            PrecompiledModelInfoProvider.setCacheDirectory(FilenameUtils.concat(cacheDirectory, PrecompiledModelInfoProvider.DIRECTORY_NAME));
+        }
+        if (params.deduplicateBundles != null && params.deduplicateBundles) {
+            String cacheDirectory = FilenameUtils.concat(rootDir, ResourceIndexStore.CACHE_DIRECTORY_NAME);
+            IOUtils.setOutputStore(FilenameUtils.concat(cacheDirectory, OutputStore.DIRECTORY_NAME), getBundlesPath(rootDir));
+        }
+        if (params.translationProfilePath != null) {
+            CqlTranslationProfiler.setEnabled(true);
+        }
 
         FhirContext fhirContext = IGProcessor.getIgFhirContext(fhirVersion);
+        CqlTranslationService.reset();
+        CqlTranslationProfiler.reset();
+        DataRequirementsProcessor.getRequirementsCache().clear();
 
         IGProcessor.ensure(rootDir, includePatientScenarios, includeTerminology, IOUtils.resourceDirectories);
 
         List<String> refreshedLibraryNames;
         refreshedLibraryNames = LibraryProcessor.refreshIgLibraryContent(this, encoding, versioned, fhirContext);
+        IOUtils.flushWrites();
         // Only add libraries if this is a cds IG, else only measures.
         if (params.cdsHooksIg) {
             refreshedResourcesNames.addAll(refreshedLibraryNames);
@@ -121,6 +189,13 @@ public class IGProcessor extends BaseProcessor {
         List<String> refreshedMeasureNames;
         refreshedMeasureNames = MeasureProcessor.refreshIgMeasureContent(this, encoding, versioned, fhirContext, measureToRefreshPath);
         refreshedResourcesNames.addAll(refreshedMeasureNames);
+        IOUtils.flushWrites();
+        if (ElmCache.isEnabled()) {
+            LogUtils.info(String.format("ELM cache: %d libraries restored, %d translated", ElmCache.getHits(), ElmCache.getMisses()));
+        }
+        LogUtils.info(String.format("Model info: %d models loaded from XML, %d pre-serialized",
+            PrecompiledModelInfoProvider.getTranslatorLoads(), PrecompiledModelInfoProvider.getPrecompiledLoads()));
+        LogUtils.info(CqlTranslationService.getSummary());
 
         if (refreshedResourcesNames.isEmpty()) {
             LogUtils.info("No resources successfully refreshed.");
@@ -130,7 +205,87 @@ public class IGProcessor extends BaseProcessor {
         if (includePatientScenarios) {
             TestCaseProcessor testCaseProcessor = new TestCaseProcessor();
             testCaseProcessor.refreshTestCases(FilenameUtils.concat(rootDir, IGProcessor.testCasePathElement), encoding, fhirContext, refreshedResourcesNames);
+            IOUtils.flushWrites();
+        }
+    }
+
+    /**
+     * Refreshes and bundles the artifacts affected by a change, keeping the state of the previous refresh. Used by
+     * the watch mode (see IGWatcher) once the IG has been refreshed: only the affected libraries are refreshed, and
+     * the retained translations of unaffected libraries are reused, so only the affected libraries are translated again.
+     *
+     * @param affectedNames The names of the affected libraries, measures and plan definitions, or null if every
+     *                      artifact is affected
+     * @param measurePaths The measure resource files to refresh, ignored if every artifact is affected
+     */
+    public void refreshAffected(RefreshIGParameters params, Set<String> affectedNames, Collection<String> measurePaths, FhirContext fhirContext) {
+        Encoding encoding = params.outputEncoding;
+        Boolean versioned = params.versioned;
+        CqlTranslationService.reset();
+        CqlTranslationProfiler.reset();
+        refreshedResourcesNames.clear();
+
+        List<String> refreshedLibraryNames = LibraryProcessor.refreshIgLibraryContent(this, encoding, versioned, fhirContext, affectedNames);
+        IOUtils.flushWrites();
+        // Only add libraries if this is a cds IG, else only measures.
+        if (params.cdsHooksIg) {
+            for (String refreshedLibraryName : refreshedLibraryNames) {
+                if (isAffected(refreshedLibraryName, affectedNames)) {
+                    refreshedResourcesNames.add(refreshedLibraryName);
+                }
+            }
+        }
+
+        Set<String> measureNames = null;
+        List<String> refreshedMeasureNames;
+        if (affectedNames == null) {
+            refreshedMeasureNames = MeasureProcessor.refreshIgMeasureContent(this, encoding, versioned, fhirContext, params.measureToRefreshPath);
+        }
+        else {
+            measureNames = new HashSet<String>();
+            for (String measurePath : measurePaths) {
+                measureNames.add(FilenameUtils.getBaseName(measurePath).replace(MeasureProcessor.ResourcePrefix, ""));
+            }
+            refreshedMeasureNames = MeasureProcessor.refreshIgMeasureContent(this, encoding, versioned, fhirContext, measurePaths);
+        }
+        refreshedResourcesNames.addAll(refreshedMeasureNames);
+        IOUtils.flushWrites();
+        LogUtils.info(CqlTranslationService.getSummary());
+
+        if (refreshedResourcesNames.isEmpty()) {
+            LogUtils.info("No affected resources were refreshed.");
+            endRefresh(params);
+            return;
+        }
+
+        if (params.includePatientScenarios) {
+            TestCaseProcessor testCaseProcessor = new TestCaseProcessor();
+            testCaseProcessor.refreshTestCases(FilenameUtils.concat(rootDir, IGProcessor.testCasePathElement), encoding, fhirContext, refreshedResourcesNames);
+            IOUtils.flushWrites();
+        }
+
+        IGBundleProcessor.bundleIg(refreshedResourcesNames, measureNames, rootDir, encoding, params.includeELM, params.includeDependencies,
+            params.includeTerminology, params.includePatientScenarios, versioned, params.cdsHooksIg, fhirContext, params.fhirUri);
+        endRefresh(params);
+    }
+
+    // The profile covers the translations of the last refresh and bundle, which are not kept past it, nor are the
+    // requirements gathered from them
+    private void endRefresh(RefreshIGParameters params) {
+        if (params.translationProfilePath != null) {
+            CqlTranslationProfiler.writeReport(params.translationProfilePath);
+        }
+        CqlTranslationService.clear();
+        DataRequirementsProcessor.getRequirementsCache().clear();
+    }
+
+    // Refreshed names carry the version when resources are versioned
+    private static boolean isAffected(String refreshedName, Set<String> affectedNames) {
+        if (affectedNames == null || affectedNames.contains(refreshedName)) {
+            return true;
         }
+        int versionIndex = refreshedName.lastIndexOf('-');
+        return versionIndex > 0 && affectedNames.contains(refreshedName.substring(0, versionIndex));
     }
 
     public static FhirContext getIgFhirContext(String igVersion)
@@ -194,7 +349,7 @@ public class IGProcessor extends BaseProcessor {
         if (!directory.exists()) {
             throw new RuntimeException("Convention requires the following directory:" + pathElement);
         }
-        // TODO: This is a concept different from "resource directories". It is expected elsewhere (e.g., IOUtils.setupActivityDefinitionPaths)
+        // TODO: This is a concept different from "resource directories". It is expected elsewhere (e.g., IOUtils.getActivityDefinitionPaths)
         // that resourceDirectories contains a set of proper "resource" directories. Adding non-resource directories
         // leads to surprising results when bundling like picking up resources from the /tests directory.
         IOUtils.resourceDirectories.add(FilenameUtils.concat(igPath, pathElement));
@@ -206,7 +361,7 @@ public class IGProcessor extends BaseProcessor {
             System.out.println("No directory found by convention for: " + directory.getName());
         }
         else {
-            // TODO: This is a concept different from "resource directories". It is expected elsewhere (e.g., IOUtils.setupActivityDefinitionPaths)
+            // TODO: This is a concept different from "resource directories". It is expected elsewhere (e.g., IOUtils.getActivityDefinitionPaths)
             // that resourceDirectories contains a set of proper "resource" directories. Adding non-resource directories
             // leads to surprising results when bundling like picking up resources from the /tests directory.
             IOUtils.resourceDirectories.add(FilenameUtils.concat(igPath, pathElement));
@@ -0,0 +1,412 @@
+package org.opencds.cqf.tooling.processor;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FilenameUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.tooling.library.LibraryProcessor;
+import org.opencds.cqf.tooling.measure.MeasureProcessor;
+import org.opencds.cqf.tooling.parameter.RefreshIGParameters;
+import org.opencds.cqf.tooling.utilities.CqlLibraryGraph;
+import org.opencds.cqf.tooling.utilities.CqlTranslationContext;
+import org.opencds.cqf.tooling.utilities.CqlTranslationService;
+import org.opencds.cqf.tooling.utilities.IOUtils;
+import org.opencds.cqf.tooling.utilities.LogUtils;
+import org.opencds.cqf.tooling.utilities.ResourceIndexStore;
+import org.opencds.cqf.tooling.utilities.ResourceUtils;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Keeps a refreshed IG up to date while its source is edited (RefreshIG -watch). Watches the input, resource and
+ * CQL directories of the IG and, once a burst of changes has settled, refreshes and bundles only what the changed
+ * files affect:
+ *
+ * - a CQL library affects itself and every library that includes it, directly or indirectly
+ * - a library, measure or plan definition resource affects the artifact of the same name (and, for a library,
+ *   the libraries that include it)
+ * - a test case affects the artifact it is a test case for
+ * - anything else (terminology, cql-options.json, model info) affects every artifact
+ *
+ * Measures are affected by their own resource and by their primary library; plan definitions by the library of the
+ * same name. Only the affected libraries, measures and plan definitions are refreshed and bundled. The processor is
+ * kept between refreshes, along with its packages, models and the translations of unchanged libraries, and so are the
+ * resource index (unless resources changed) and the ELM and ValueSet closures of unchanged CQL files; a change that
+ * affects every artifact drops them all. Files written by the refresh itself are ignored.
+ */
+public class IGWatcher {
+
+    public static final long DEFAULT_QUIET_PERIOD = 500;
+
+    private final IGProcessor processor;
+    private final RefreshIGParameters params;
+    private final FhirContext fhirContext;
+    private final Path rootPath;
+    private final Set<Path> excludedPaths = new LinkedHashSet<Path>();
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+    private final Map<Path, Long> writtenFiles = new ConcurrentHashMap<Path, Long>();
+    private WatchService watchService;
+    private long quietPeriod = DEFAULT_QUIET_PERIOD;
+
+    public IGWatcher(IGProcessor processor, RefreshIGParameters params, FhirContext fhirContext) {
+        this.processor = processor;
+        this.params = params;
+        this.fhirContext = fhirContext;
+        this.rootPath = normalize(Paths.get(processor.getRootDir()));
+        excludedPaths.add(normalize(Paths.get(IGProcessor.getBundlesPath(processor.getRootDir()))));
+        excludedPaths.add(rootPath.resolve(ResourceIndexStore.CACHE_DIRECTORY_NAME));
+    }
+
+    public long getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    /**
+     * Sets how long, in milliseconds, the files must be left alone before the changes are refreshed.
+     */
+    public void setQuietPeriod(long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Watches the IG and refreshes the content affected by each change until the thread is interrupted.
+     */
+    public void watch() throws IOException, InterruptedException {
+        watchService = FileSystems.getDefault().newWatchService();
+        IOUtils.setWriteObserver(this::recordWrite);
+        try {
+            register(rootPath.resolve("input"));
+            for (String resourceDirectory : IOUtils.resourceDirectories) {
+                register(normalize(Paths.get(resourceDirectory)));
+            }
+            if (processor.getBinaryPaths() != null) {
+                for (String binaryPath : processor.getBinaryPaths()) {
+                    register(normalize(Paths.get(binaryPath)));
+                }
+            }
+            LogUtils.info(String.format("Watching %d directories of %s for changes", watchedDirectories.size(), rootPath));
+
+            while (true) {
+                Set<Path> changes = awaitChanges();
+                if (!changes.isEmpty()) {
+                    refresh(changes);
+                }
+            }
+        }
+        finally {
+            IOUtils.setWriteObserver(null);
+            watchService.close();
+        }
+    }
+
+    void refresh(Set<Path> changes) {
+        long start = System.currentTimeMillis();
+        for (Path change : changes) {
+            LogUtils.info("Changed: " + rootPath.relativize(change));
+        }
+
+        try {
+            Set<String> affectedNames = getAffectedNames(changes);
+            invalidateCaches(changes, affectedNames);
+            if (affectedNames == null) {
+                LogUtils.info("Refreshing all content");
+                processor.refreshAffected(params, null, null, fhirContext);
+            }
+            else {
+                List<String> measurePaths = getAffectedMeasurePaths(affectedNames);
+                LogUtils.info("Refreshing " + String.join(", ", affectedNames));
+                processor.refreshAffected(params, affectedNames, measurePaths, fhirContext);
+            }
+            LogUtils.info(String.format("Refresh completed in %d ms", System.currentTimeMillis() - start));
+        }
+        catch (Exception e) {
+            LogUtils.putException("IGWatcher", e);
+        }
+        finally {
+            // Also when the refresh failed before its end
+            CqlTranslationService.clear();
+            DataRequirementsProcessor.getRequirementsCache().clear();
+            LogUtils.warn("IGWatcher");
+        }
+    }
+
+    /**
+     * Drops the cached state the changes make stale. The ELM and ValueSet closures of CQL files are kept, as they are
+     * recorded with the modification times of the files they were computed from and so are only computed again for
+     * the changed files.
+     */
+    private void invalidateCaches(Set<Path> changes, Set<String> affectedNames) {
+        if (affectedNames == null) {
+            IOUtils.invalidateResourceIndex();
+            ResourceUtils.clearElmCache();
+            ResourceUtils.clearValueSetClosures();
+            ValueSetsProcessor.clearCachedValueSets();
+            return;
+        }
+
+        if (!isIndexCurrent(changes)) {
+            IOUtils.invalidateResourceIndex();
+        }
+        // Included libraries translated before the change
+        CqlTranslationContext.forgetLibraries(affectedNames);
+    }
+
+    // The resource index holds the resources, and the CQL files, of the resource directories, so it is still current
+    // after edits of CQL files it already holds or that are outside of the resource directories
+    private boolean isIndexCurrent(Set<Path> changes) {
+        Set<Path> indexedCqlPaths = null;
+        for (Path change : changes) {
+            if (!change.getFileName().toString().endsWith(".cql")) {
+                return false;
+            }
+            boolean inResourceDirectory = false;
+            for (String resourceDirectory : IOUtils.resourceDirectories) {
+                inResourceDirectory |= change.startsWith(normalize(Paths.get(resourceDirectory)));
+            }
+            if (!inResourceDirectory) {
+                continue;
+            }
+            if (indexedCqlPaths == null) {
+                indexedCqlPaths = new HashSet<Path>();
+                for (String cqlPath : IOUtils.getCqlLibraryPaths()) {
+                    indexedCqlPaths.add(normalize(Paths.get(cqlPath)));
+                }
+            }
+            if (!Files.exists(change) || !indexedCqlPaths.contains(change)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The names of the libraries, measures and plan definitions the changes affect, or null if every
+     * artifact is affected
+     */
+    private Set<String> getAffectedNames(Set<Path> changes) {
+        Path testsPath = rootPath.resolve(IGProcessor.testCasePathElement);
+        Set<String> names = new LinkedHashSet<String>();
+        Set<String> libraryNames = new LinkedHashSet<String>();
+        for (Path change : changes) {
+            String fileName = change.getFileName().toString();
+            String baseName = FilenameUtils.getBaseName(fileName);
+            if (fileName.endsWith(".cql")) {
+                libraryNames.add(baseName);
+            }
+            else if (change.startsWith(testsPath)) {
+                // input/tests/[measure|plandefinition]/[artifact name]/...
+                Path testPath = testsPath.relativize(change);
+                if (testPath.getNameCount() < 3) {
+                    return null;
+                }
+                names.add(testPath.getName(1).toString());
+            }
+            else if (baseName.startsWith(LibraryProcessor.ResourcePrefix)) {
+                libraryNames.add(baseName.substring(LibraryProcessor.ResourcePrefix.length()));
+            }
+            else if (baseName.startsWith(MeasureProcessor.ResourcePrefix)) {
+                names.add(baseName.substring(MeasureProcessor.ResourcePrefix.length()));
+            }
+            else if (baseName.startsWith(PlanDefinitionProcessor.ResourcePrefix)) {
+                names.add(baseName.substring(PlanDefinitionProcessor.ResourcePrefix.length()));
+            }
+            else {
+                return null;
+            }
+        }
+
+        if (!libraryNames.isEmpty()) {
+            CqlLibraryGraph graph = CqlLibraryGraph.build(getCqlFiles());
+            List<File> changedFiles = new ArrayList<File>();
+            for (CqlLibraryGraph.Node node : graph.getNodes()) {
+                String fileName = FilenameUtils.getBaseName(node.getFile().getName());
+                if (libraryNames.contains(node.getLibrary().getName()) || libraryNames.contains(fileName)) {
+                    changedFiles.add(node.getFile());
+                }
+            }
+            // Deleted libraries are no longer in the graph, so they are only affected by name
+            names.addAll(libraryNames);
+            for (File file : graph.getDependents(changedFiles)) {
+                names.add(graph.getNode(file).getLibrary().getName());
+            }
+        }
+        return names;
+    }
+
+    private List<File> getCqlFiles() {
+        List<File> files = new ArrayList<File>();
+        if (processor.getBinaryPaths() != null) {
+            for (String binaryPath : processor.getBinaryPaths()) {
+                File[] cqlFiles = new File(binaryPath).listFiles((directory, name) -> name.endsWith(".cql"));
+                if (cqlFiles != null) {
+                    for (File cqlFile : cqlFiles) {
+                        files.add(cqlFile.getAbsoluteFile());
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return The measures that are affected themselves or whose primary library is
+     */
+    private List<String> getAffectedMeasurePaths(Set<String> affectedNames) {
+        List<String> measurePaths = new ArrayList<String>();
+        Map<String, String> measurePathMap = IOUtils.getMeasurePathMap(fhirContext);
+        for (Map.Entry<String, IBaseResource> measureEntry : IOUtils.getMeasures(fhirContext).entrySet()) {
+            String measurePath = measurePathMap.get(measureEntry.getKey());
+            if (measurePath == null) {
+                continue;
+            }
+            // Assumption - File name matches measure.name
+            String measureName = FilenameUtils.getBaseName(measurePath).replace(MeasureProcessor.ResourcePrefix, "");
+            boolean affected = affectedNames.contains(measureName);
+            if (!affected) {
+                try {
+                    String primaryLibraryUrl = ResourceUtils.getPrimaryLibraryUrl(measureEntry.getValue(), fhirContext);
+                    affected = primaryLibraryUrl != null && affectedNames.contains(getLibraryName(primaryLibraryUrl));
+                }
+                catch (Exception e) {
+                    // A measure without a usable primary library is refreshed only when it changes itself
+                }
+            }
+            if (affected) {
+                measurePaths.add(measurePath);
+                affectedNames.add(measureName);
+            }
+        }
+        return measurePaths;
+    }
+
+    // [base]/Library/[name]|[version], or a plain library reference
+    private static String getLibraryName(String libraryUrl) {
+        String name = libraryUrl;
+        int versionIndex = name.indexOf('|');
+        if (versionIndex >= 0) {
+            name = name.substring(0, versionIndex);
+        }
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Collects the changes to relevant files, returning once no change has been seen for the quiet period.
+     */
+    private Set<Path> awaitChanges() throws InterruptedException, IOException {
+        Set<Path> changes = new LinkedHashSet<Path>();
+        WatchKey key = watchService.take();
+        while (key != null) {
+            Path directory = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    // Events were lost, so the extent of the change is unknown
+                    changes.add(rootPath);
+                    continue;
+                }
+                if (directory == null) {
+                    continue;
+                }
+
+                Path path = directory.resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                    register(path);
+                    try (Stream<Path> created = Files.walk(path)) {
+                        created.filter(this::isChange).forEach(changes::add);
+                    }
+                }
+                else if (isChange(path)) {
+                    changes.add(path);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+            key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS);
+        }
+        return changes;
+    }
+
+    private boolean isChange(Path path) {
+        String fileName = path.getFileName().toString();
+        if (fileName.startsWith(".") || Files.isDirectory(path)) {
+            return false;
+        }
+        if (!fileName.endsWith(".cql") && !fileName.endsWith(".json") && !fileName.endsWith(".xml")) {
+            return false;
+        }
+
+        Long written = writtenFiles.get(path);
+        if (written != null) {
+            try {
+                if (Files.exists(path) && Files.getLastModifiedTime(path).toMillis() == written) {
+                    return false;
+                }
+            }
+            catch (IOException e) {
+                // Treated as a change
+            }
+            writtenFiles.remove(path);
+        }
+        return true;
+    }
+
+    private void recordWrite(Path path) {
+        Path normalized = normalize(path);
+        try {
+            writtenFiles.put(normalized, Files.getLastModifiedTime(normalized).toMillis());
+        }
+        catch (IOException e) {
+            writtenFiles.remove(normalized);
+        }
+    }
+
+    private void register(Path start) throws IOException {
+        if (!Files.isDirectory(start)) {
+            return;
+        }
+
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                Path normalized = normalize(directory);
+                if (excludedPaths.contains(normalized) || (!normalized.equals(start) && normalized.getFileName().toString().startsWith("."))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (!watchedDirectories.containsValue(normalized)) {
+                    watchedDirectories.put(normalized.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), normalized);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+}
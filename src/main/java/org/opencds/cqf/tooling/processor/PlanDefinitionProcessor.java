@@ -10,6 +10,7 @@ import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class PlanDefinitionProcessor {
@@ -22,51 +23,68 @@ public class PlanDefinitionProcessor {
         
         HashSet<String> planDefinitionSourcePaths = IOUtils.getPlanDefinitionPaths(fhirContext);
 
+        // The plan definitions by the name of their library, which is their file name less the prefix
         List<String> planDefinitionPathLibraryNames = new ArrayList<String>();
+        Map<String, String> planDefinitionPathsByName = new HashMap<String, String>();
         for (String planDefinitionSourcePath : planDefinitionSourcePaths) {
             String name = FilenameUtils.getBaseName(planDefinitionSourcePath).replace(PlanDefinitionProcessor.ResourcePrefix, "");
 
             planDefinitionPathLibraryNames.add(name);
+            planDefinitionPathsByName.putIfAbsent(name, planDefinitionSourcePath);
         }
 
-        List<String> bundledPlanDefinitions = new ArrayList<String>();
-        for (String refreshedLibraryName : refreshedLibraryNames) {
-            try {
-                if (!planDefinitionPathLibraryNames.contains(refreshedLibraryName)) {
-                    continue;
-                }
+        List<String> planDefinitionNames = new ArrayList<String>();
+        for (String refreshedLibraryName : new LinkedHashSet<String>(refreshedLibraryNames)) {
+            if (planDefinitionPathsByName.containsKey(refreshedLibraryName)) {
+                planDefinitionNames.add(refreshedLibraryName);
+            }
+        }
 
+        Map<String, String> libraryPathsByFileName = new HashMap<String, String>();
+        for (String libraryPath : IOUtils.getLibraryPaths(fhirContext)) {
+            libraryPathsByFileName.putIfAbsent(FilenameUtils.getName(libraryPath), libraryPath);
+        }
+        Map<String, String> cqlLibraryPathsByFileName = new HashMap<String, String>();
+        for (String cqlLibraryPath : IOUtils.getCqlLibraryPaths()) {
+            cqlLibraryPathsByFileName.putIfAbsent(FilenameUtils.getName(cqlLibraryPath), cqlLibraryPath);
+        }
+        boolean isCdsHooksIg = cdsHooksIg != null && cdsHooksIg;
+        List<String> requestDirectories = isCdsHooksIg
+            ? IOUtils.getDirectoryPaths(FilenameUtils.concat(igPath, CDSHooksProcessor.requestsPathElement), false) : Collections.emptyList();
+        List<String> responseDirectories = isCdsHooksIg
+            ? IOUtils.getDirectoryPaths(FilenameUtils.concat(igPath, CDSHooksProcessor.responsesPathElement), false) : Collections.emptyList();
+        if (IGBundleProcessor.getBundleParallelism() > 1 && planDefinitionNames.size() > 1) {
+            // Load the shared caches once, up front, rather than on whichever tasks happen to need them first
+            IOUtils.getActivityDefinitionPaths(fhirContext);
+            if (includeTerminology) {
+                ValueSetsProcessor.getCachedValueSets(fhirContext);
+            }
+        }
+
+        Set<String> bundled = ConcurrentHashMap.newKeySet();
+        IGBundleProcessor.forEachArtifact(planDefinitionNames, refreshedLibraryName -> {
+            try {
                 Map<String, IBaseResource> resources = new HashMap<String, IBaseResource>();
 
                 String refreshedLibraryFileName = IOUtils.formatFileName(refreshedLibraryName, encoding, fhirContext);
                 String librarySourcePath;
                 try {
-                    librarySourcePath = IOUtils.getLibraryPathAssociatedWithCqlFileName(refreshedLibraryFileName, fhirContext);
+                    librarySourcePath = getLibraryPathAssociatedWithCqlFileName(refreshedLibraryFileName, libraryPathsByFileName);
                 } catch (Exception e) {
                     LogUtils.putException(refreshedLibraryName, e);
-                    continue;
+                    return;
                 } finally {
                     LogUtils.warn(refreshedLibraryName);
                 }
                 
-                String planDefinitionSourcePath = "";
-                for (String path : planDefinitionSourcePaths) {
-                    if (FilenameUtils.removeExtension(path).endsWith(refreshedLibraryName))
-                    {
-                        planDefinitionSourcePath = path;
-                        break;
-                    }
-                }
+                String planDefinitionSourcePath = planDefinitionPathsByName.get(refreshedLibraryName);
 
                 Boolean shouldPersist = ResourceUtils.safeAddResource(planDefinitionSourcePath, resources, fhirContext);
                 shouldPersist = shouldPersist
                         & ResourceUtils.safeAddResource(librarySourcePath, resources, fhirContext);
 
                 String cqlFileName = IOUtils.formatFileName(refreshedLibraryName, Encoding.CQL, fhirContext);
-                List<String> cqlLibrarySourcePaths = IOUtils.getCqlLibraryPaths().stream()
-                    .filter(path -> path.endsWith(cqlFileName))
-                    .collect(Collectors.toList());
-                String cqlLibrarySourcePath = (cqlLibrarySourcePaths.isEmpty()) ? null : cqlLibrarySourcePaths.get(0);
+                String cqlLibrarySourcePath = cqlLibraryPathsByFileName.get(cqlFileName);
                 
                 if (includeTerminology) {
                     boolean result = ValueSetsProcessor.bundleValueSets(cqlLibrarySourcePath, igPath, fhirContext, resources, encoding, includeDependencies, includeVersion);
@@ -96,19 +114,34 @@ public class PlanDefinitionProcessor {
 
                 if (shouldPersist) {
                     String bundleDestPath = FilenameUtils.concat(FilenameUtils.concat(IGProcessor.getBundlesPath(igPath), PlanDefinitionTestGroupName), refreshedLibraryName);
-                    persistBundle(igPath, bundleDestPath, refreshedLibraryName, encoding, fhirContext, new ArrayList<IBaseResource>(resources.values()), fhirUri);
-                    bundleFiles(igPath, bundleDestPath, refreshedLibraryName, planDefinitionSourcePath, librarySourcePath, fhirContext, encoding, includeTerminology, includeDependencies, includePatientScenarios, includeVersion);
-                    CDSHooksProcessor.addActivityDefinitionFilesToBundle(igPath, bundleDestPath, refreshedLibraryName, activityDefinitionPaths, fhirContext, encoding);
-                    if (cdsHooksIg != null && cdsHooksIg) { 
-                        CDSHooksProcessor.addRequestAndResponseFilesToBundle(igPath, bundleDestPath, refreshedLibraryName);
+                    try {
+                        persistBundle(igPath, bundleDestPath, refreshedLibraryName, encoding, fhirContext, new ArrayList<IBaseResource>(resources.values()), fhirUri);
+                        bundleFiles(igPath, bundleDestPath, refreshedLibraryName, planDefinitionSourcePath, librarySourcePath, fhirContext, encoding, includeTerminology, includeDependencies, includePatientScenarios, includeVersion);
+                        CDSHooksProcessor.addActivityDefinitionFilesToBundle(igPath, bundleDestPath, refreshedLibraryName, activityDefinitionPaths, fhirContext, encoding);
+                        if (isCdsHooksIg) { 
+                            CDSHooksProcessor.addRequestAndResponseFilesToBundle(bundleDestPath, refreshedLibraryName, requestDirectories, responseDirectories);
+                        }
+                    } catch (RuntimeException e) {
+                        // Keep the output of the previous run rather than deleting what was not written again
+                        IOUtils.cancelSync(bundleDestPath);
+                        throw e;
                     }
-                    bundledPlanDefinitions.add(refreshedLibraryName);
+                    IOUtils.removeStaleFiles(bundleDestPath);
+                    bundled.add(refreshedLibraryName);
                 }
             } catch (Exception e) {
                 LogUtils.putException(refreshedLibraryName, e);
             } finally {
                 LogUtils.warn(refreshedLibraryName);
             }
+        });
+
+        // Reported in the order of the refreshed libraries, however the bundling tasks were scheduled
+        List<String> bundledPlanDefinitions = new ArrayList<String>();
+        for (String planDefinitionName : planDefinitionNames) {
+            if (bundled.contains(planDefinitionName)) {
+                bundledPlanDefinitions.add(planDefinitionName);
+            }
         }
         String message = "\r\n" + bundledPlanDefinitions.size() + " PlanDefinitions successfully bundled:";
         for (String bundledPlanDefinition : bundledPlanDefinitions) {
@@ -116,15 +149,15 @@ public class PlanDefinitionProcessor {
         }
 
         ArrayList<String> failedPlanDefinitions = new ArrayList<>(planDefinitionPathLibraryNames);
-        planDefinitionPathLibraryNames.removeAll(bundledPlanDefinitions);
-        planDefinitionPathLibraryNames.retainAll(refreshedLibraryNames);
+        planDefinitionPathLibraryNames.removeAll(bundled);
+        planDefinitionPathLibraryNames.retainAll(new HashSet<String>(refreshedLibraryNames));
         message += "\r\n" + planDefinitionPathLibraryNames.size() + " PlanDefinitions refreshed, but not bundled (due to issues):";
         for (String notBundled : planDefinitionPathLibraryNames) {
             message += "\r\n     " + notBundled + " REFRESHED";
         }
 
-        failedPlanDefinitions.removeAll(bundledPlanDefinitions);
-        failedPlanDefinitions.removeAll(planDefinitionPathLibraryNames);
+        failedPlanDefinitions.removeAll(bundled);
+        failedPlanDefinitions.removeAll(new HashSet<String>(planDefinitionPathLibraryNames));
         message += "\r\n" + failedPlanDefinitions.size() + " PlanDefinitions failed refresh:";
         for (String failed : failedPlanDefinitions) {
             message += "\r\n     " + failed + " FAILED";
@@ -133,8 +166,26 @@ public class PlanDefinitionProcessor {
         LogUtils.info(message);
     }
 
+    // As IOUtils.getLibraryPathAssociatedWithCqlFileName, with the library paths indexed by file name
+    private static String getLibraryPathAssociatedWithCqlFileName(String cqlPath, Map<String, String> libraryPathsByFileName) {
+        String fileName = FilenameUtils.getName(cqlPath);
+        String libraryFileName = LibraryProcessor.ResourcePrefix + fileName;
+        for (String candidate : Arrays.asList(libraryFileName.replaceAll(".cql", ".json"), libraryFileName.replaceAll(".cql", ".xml"),
+                fileName.replaceAll(".cql", ".json"), fileName.replaceAll(".cql", ".xml"))) {
+            String libraryPath = libraryPathsByFileName.get(candidate);
+            if (libraryPath != null) {
+                return libraryPath;
+            }
+        }
+        return null;
+    }
+
     private static void persistBundle(String igPath, String bundleDestPath, String libraryName, Encoding encoding, FhirContext fhirContext, List<IBaseResource> resources, String fhirUri) {
-        IOUtils.initializeDirectory(bundleDestPath);
+        IOUtils.syncDirectory(bundleDestPath);
+        if (fhirUri == null || fhirUri.equals("")) {
+            BundleUtils.writeArtifacts(libraryName, resources, bundleDestPath, encoding, fhirContext);
+            return;
+        }
         Object bundle = BundleUtils.bundleArtifacts(libraryName, resources, fhirContext);
         IOUtils.writeBundle(bundle, bundleDestPath, encoding, fhirContext);
 
@@ -152,7 +203,7 @@ public class PlanDefinitionProcessor {
 
     private static void bundleFiles(String igPath, String bundleDestPath, String libraryName, String resourceFocusSourcePath, String librarySourcePath, FhirContext fhirContext, Encoding encoding, Boolean includeTerminology, Boolean includeDependencies, Boolean includePatientScenarios, Boolean includeVersion) {
         String bundleDestFilesPath = FilenameUtils.concat(bundleDestPath, libraryName + "-" + IGBundleProcessor.bundleFilesPathElement);
-        IOUtils.initializeDirectory(bundleDestFilesPath);
+        IOUtils.syncDirectory(bundleDestFilesPath);
 
         IOUtils.copyFile(resourceFocusSourcePath, FilenameUtils.concat(bundleDestFilesPath, FilenameUtils.getName(resourceFocusSourcePath)));
         IOUtils.copyFile(librarySourcePath, FilenameUtils.concat(bundleDestFilesPath, FilenameUtils.getName(librarySourcePath)));
@@ -169,8 +220,7 @@ public class PlanDefinitionProcessor {
             try {     
                 Map<String, IBaseResource> valuesets = ResourceUtils.getDepValueSetResources(cqlLibrarySourcePath, igPath, fhirContext, includeDependencies, includeVersion);      
                 if (!valuesets.isEmpty()) {
-                    Object bundle = BundleUtils.bundleArtifacts(ValueSetsProcessor.getId(libraryName), new ArrayList<IBaseResource>(valuesets.values()), fhirContext);
-                    IOUtils.writeBundle(bundle, bundleDestFilesPath, encoding, fhirContext);  
+                    BundleUtils.writeArtifacts(ValueSetsProcessor.getId(libraryName), new ArrayList<IBaseResource>(valuesets.values()), bundleDestFilesPath, encoding, fhirContext);
                 }  
             }  catch (Exception e) {
                 LogUtils.putException(libraryName, e.getMessage());
@@ -181,8 +231,7 @@ public class PlanDefinitionProcessor {
             Map<String, IBaseResource> depLibraries = ResourceUtils.getDepLibraryResources(librarySourcePath, fhirContext, encoding, includeVersion);
             if (!depLibraries.isEmpty()) {
                 String depLibrariesID = "library-deps-" + libraryName;
-                Object bundle = BundleUtils.bundleArtifacts(depLibrariesID, new ArrayList<IBaseResource>(depLibraries.values()), fhirContext);            
-                IOUtils.writeBundle(bundle, bundleDestFilesPath, encoding, fhirContext);  
+                BundleUtils.writeArtifacts(depLibrariesID, new ArrayList<IBaseResource>(depLibraries.values()), bundleDestFilesPath, encoding, fhirContext);
             }        
         }
 
@@ -33,8 +33,7 @@ public class TestCaseProcessor
                 List<String> testCasePaths = IOUtils.getDirectoryPaths(testArtifactPath, false);
                 for (String testCasePath : testCasePaths) {
                     try {
-                        List<String> paths = IOUtils.getFilePaths(testCasePath, true);
-                        List<IBaseResource> resources = IOUtils.readResources(paths, fhirContext);
+                        List<IBaseResource> resources = IOUtils.readResources(testCasePath, true, fhirContext);
                         ensureIds(testCasePath, resources);
                         Object bundle = BundleUtils.bundleArtifacts(getId(FilenameUtils.getName(testCasePath)), resources, fhirContext);
                         IOUtils.writeBundle(bundle, testArtifactPath, encoding, fhirContext);
@@ -54,8 +53,7 @@ public class TestCaseProcessor
         List<IBaseResource> resources = new ArrayList<IBaseResource>();
         List<String> testCasePaths = IOUtils.getDirectoryPaths(path, false); 
         for (String testCasePath : testCasePaths) {
-            List<String> paths = IOUtils.getFilePaths(testCasePath, true);
-            resources.addAll(ensureIds(testCasePath, IOUtils.readResources(paths, fhirContext)));
+            resources.addAll(ensureIds(testCasePath, IOUtils.readResources(testCasePath, true, fhirContext)));
         }         
         return resources; 
     }
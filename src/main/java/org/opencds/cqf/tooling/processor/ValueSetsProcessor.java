@@ -59,13 +59,17 @@ public class ValueSetsProcessor {
     }
 
     private static Map<String, IBaseResource> cachedValueSets = null;
-    public static Map<String, IBaseResource> getCachedValueSets(FhirContext fhirContext) {
+    public static synchronized Map<String, IBaseResource> getCachedValueSets(FhirContext fhirContext) {
         if (cachedValueSets == null) {
             IntitializeCachedValueSets(fhirContext);
         }
         return cachedValueSets;
     }
 
+    public static synchronized void clearCachedValueSets() {
+        cachedValueSets = null;
+    }
+
     private static void IntitializeCachedValueSets(FhirContext fhirContext) {
         List<String> allValueSetPaths = IOUtils.getTerminologyPaths(fhirContext).stream().collect(Collectors.toList());
         List<IBaseResource> allValueSets = IOUtils.readResources(allValueSetPaths, fhirContext); 
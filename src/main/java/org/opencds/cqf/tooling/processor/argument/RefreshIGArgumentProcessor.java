@@ -32,6 +32,17 @@ public class RefreshIGArgumentProcessor {
     public static final String[] FHIR_URI_OPTIONS = {"fs", "fhir-uri"};
     public static final String[] MEASURE_TO_REFRESH_PATH = {"mtrp", "measure-to-refresh-path"};
     public static final String[] RESOURCE_PATH_OPTIONS = {"rp", "resourcepath"};
+    public static final String[] CACHE_INDEX_OPTIONS = {"ci", "cache-index"};
+    public static final String[] ASYNC_WRITES_OPTIONS = {"aw", "async-writes"};
+    public static final String[] CACHE_ELM_OPTIONS = {"ce", "cache-elm"};
+    public static final String[] WATCH_OPTIONS = {"watch"};
+    public static final String[] TRANSLATION_PROFILE_OPTIONS = {"tp", "translation-profile"};
+    public static final String[] OFFLINE_PACKAGES_OPTIONS = {"opk", "offline-packages"};
+    public static final String[] BUNDLE_THREADS_OPTIONS = {"bt", "bundle-threads"};
+    public static final String[] READ_THREADS_OPTIONS = {"rt", "read-threads"};
+    public static final String[] TRANSLATION_THREADS_OPTIONS = {"tt", "translation-threads"};
+    public static final String[] STREAM_BUNDLES_OPTIONS = {"sb", "stream-bundles"};
+    public static final String[] DEDUPLICATE_BUNDLES_OPTIONS = {"db", "deduplicate-bundles"};
 
     @SuppressWarnings("unused")
     public OptionParser build() {
@@ -44,6 +55,11 @@ public class RefreshIGArgumentProcessor {
         OptionSpecBuilder igOutputEncodingBuilder = parser.acceptsAll(asList(IG_OUTPUT_ENCODING), "If omitted, output will be generated using JSON encoding.");
         OptionSpecBuilder fhirUriBuilder = parser.acceptsAll(asList(FHIR_URI_OPTIONS),"If omitted the final bundle will not be loaded to a FHIR server.");
         OptionSpecBuilder measureToRefreshPathBuilder = parser.acceptsAll(asList(MEASURE_TO_REFRESH_PATH), "Path to Measure to refresh.");
+        OptionSpecBuilder offlinePackagesBuilder = parser.acceptsAll(asList(OFFLINE_PACKAGES_OPTIONS), "If omitted the core package and the IG's dependencies are loaded through the package cache, downloading any that are missing, otherwise they are only loaded from the given directory of package folders ([id]#[version]) or tarballs ([id]#[version].tgz), and the refresh fails for any package that is not there.");
+        OptionSpecBuilder bundleThreadsBuilder = parser.acceptsAll(asList(BUNDLE_THREADS_OPTIONS), "If omitted measures and plan definitions are bundled one at a time, otherwise they are bundled concurrently on the given number of threads.");
+        OptionSpecBuilder readThreadsBuilder = parser.acceptsAll(asList(READ_THREADS_OPTIONS), "If omitted resource files are parsed one at a time, otherwise they are parsed on a shared pool of the given number of threads.");
+        OptionSpecBuilder translationThreadsBuilder = parser.acceptsAll(asList(TRANSLATION_THREADS_OPTIONS), "If omitted the CQL files of each folder are translated one at a time, otherwise the files of each level of the include graph are translated concurrently on a shared pool of the given number of threads.");
+        OptionSpecBuilder translationProfileBuilder = parser.acceptsAll(asList(TRANSLATION_PROFILE_OPTIONS), "If omitted CQL translation is not profiled, otherwise the parse, semantic analysis, include resolution and serialization times, ELM size and allocated bytes of each translated library are written to the given file as JSON at the end of the run.");
 
         OptionSpec<String> ini = iniBuilder.withRequiredArg().describedAs("Path to the IG ini file");
         OptionSpec<String> rootDir = rootDirBuilder.withOptionalArg().describedAs("Root directory of the IG");
@@ -51,6 +67,11 @@ public class RefreshIGArgumentProcessor {
         OptionSpec<String> resourcePath = resourcePathBuilder.withOptionalArg().describedAs("directory of resources");
         OptionSpec<String> igOutputEncoding = igOutputEncodingBuilder.withOptionalArg().describedAs("desired output encoding for resources");
         OptionSpec<String> measureToRefreshPath = measureToRefreshPathBuilder.withOptionalArg().describedAs("Path to Measure to refresh.");
+        OptionSpec<String> translationProfile = translationProfileBuilder.withRequiredArg().describedAs("Path of the CQL translation profile report");
+        OptionSpec<String> offlinePackages = offlinePackagesBuilder.withRequiredArg().describedAs("Directory of the packages the IG depends on");
+        OptionSpec<String> bundleThreads = bundleThreadsBuilder.withRequiredArg().describedAs("Number of bundling threads");
+        OptionSpec<String> readThreads = readThreadsBuilder.withRequiredArg().describedAs("Number of resource reading threads");
+        OptionSpec<String> translationThreads = translationThreadsBuilder.withRequiredArg().describedAs("Number of CQL translation threads");
 
         //TODO: FHIR user / password (and other auth options)
         OptionSpec<String> fhirUri = fhirUriBuilder.withOptionalArg().describedAs("uri of fhir server");  
@@ -62,6 +83,12 @@ public class RefreshIGArgumentProcessor {
         parser.acceptsAll(asList(INCLUDE_PATIENT_SCENARIOS_OPTIONS),"If omitted patient scenario information will not be packaged.");
         parser.acceptsAll(asList(VERSIONED_OPTIONS),"If omitted resources must be uniquely named.");
         parser.acceptsAll(asList(CDS_HOOKS_OPTIONS),"If omitted defaulted to non cds-hooks ig.");
+        parser.acceptsAll(asList(CACHE_INDEX_OPTIONS),"If omitted the resource directories are fully rescanned on every run, otherwise the resource index is kept in the .cqf-cache directory of the IG root.");
+        parser.acceptsAll(asList(ASYNC_WRITES_OPTIONS),"If omitted output files are written as they are generated, otherwise they are written on background threads and flushed at the end of each phase.");
+        parser.acceptsAll(asList(CACHE_ELM_OPTIONS),"If omitted all CQL is translated on every run, otherwise translations and pre-serialized model info are kept in the .cqf-cache directory of the IG root and unchanged libraries are not translated again.");
+        parser.acceptsAll(asList(STREAM_BUNDLES_OPTIONS),"If omitted each bundle is built and encoded in memory before it is written, otherwise bundles that are not posted to a FHIR server are written one entry at a time.");
+        parser.acceptsAll(asList(DEDUPLICATE_BUNDLES_OPTIONS),"If omitted every bundle's files are written as separate copies, otherwise each distinct file content is stored once in the .cqf-cache directory of the IG root and the files under the bundles directory are hard links to it (or copies where links are not supported).");
+        parser.acceptsAll(asList(WATCH_OPTIONS),"If omitted the IG is refreshed once, otherwise the process keeps running and refreshes and bundles the content affected by every change to the IG's CQL, resources and test cases.");
 
         OptionSpec<Void> help = parser.acceptsAll(asList(ArgUtils.HELP_OPTIONS), "Show this help page").forHelp();
 
@@ -92,8 +119,46 @@ public class RefreshIGArgumentProcessor {
         Boolean includePatientScenarios = options.has(INCLUDE_PATIENT_SCENARIOS_OPTIONS[0]);
         Boolean versioned = options.has(VERSIONED_OPTIONS[0]);
         Boolean cdsHooksIg = options.has(CDS_HOOKS_OPTIONS[0]);
+        Boolean cacheIndex = options.has(CACHE_INDEX_OPTIONS[0]);
+        Boolean asyncWrites = options.has(ASYNC_WRITES_OPTIONS[0]);
+        Boolean cacheElm = options.has(CACHE_ELM_OPTIONS[0]);
+        Boolean watch = options.has(WATCH_OPTIONS[0]);
+        Boolean streamBundles = options.has(STREAM_BUNDLES_OPTIONS[0]);
+        Boolean deduplicateBundles = options.has(DEDUPLICATE_BUNDLES_OPTIONS[0]);
         String fhirUri = (String)options.valueOf(FHIR_URI_OPTIONS[0]);
         String measureToRefreshPath = (String)options.valueOf(MEASURE_TO_REFRESH_PATH[0]);
+        String translationProfilePath = (String)options.valueOf(TRANSLATION_PROFILE_OPTIONS[0]);
+        String offlinePackageDirectory = (String)options.valueOf(OFFLINE_PACKAGES_OPTIONS[0]);
+        String bundleThreadsValue = (String)options.valueOf(BUNDLE_THREADS_OPTIONS[0]);
+        Integer bundleThreads = null;
+        if (bundleThreadsValue != null) {
+            try {
+                bundleThreads = Integer.parseInt(bundleThreadsValue);
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bundle-threads must be a number: " + bundleThreadsValue);
+            }
+        }
+        String readThreadsValue = (String)options.valueOf(READ_THREADS_OPTIONS[0]);
+        Integer readThreads = null;
+        if (readThreadsValue != null) {
+            try {
+                readThreads = Integer.parseInt(readThreadsValue);
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("read-threads must be a number: " + readThreadsValue);
+            }
+        }
+        String translationThreadsValue = (String)options.valueOf(TRANSLATION_THREADS_OPTIONS[0]);
+        Integer translationThreads = null;
+        if (translationThreadsValue != null) {
+            try {
+                translationThreads = Integer.parseInt(translationThreadsValue);
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("translation-threads must be a number: " + translationThreadsValue);
+            }
+        }
 
         ArrayList<String> paths = new ArrayList<String>();
         if (resourcePaths != null && !resourcePaths.isEmpty()) {
@@ -114,6 +179,17 @@ public class RefreshIGArgumentProcessor {
         ip.resourceDirs = paths;
         ip.fhirUri = fhirUri;
         ip.measureToRefreshPath = measureToRefreshPath;
+        ip.cacheIndex = cacheIndex;
+        ip.asyncWrites = asyncWrites;
+        ip.cacheElm = cacheElm;
+        ip.watch = watch;
+        ip.translationProfilePath = translationProfilePath;
+        ip.offlinePackageDirectory = offlinePackageDirectory;
+        ip.bundleThreads = bundleThreads;
+        ip.readThreads = readThreads;
+        ip.translationThreads = translationThreads;
+        ip.streamBundles = streamBundles;
+        ip.deduplicateBundles = deduplicateBundles;
        
         return ip;
     }
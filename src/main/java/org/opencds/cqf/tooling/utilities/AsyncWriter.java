@@ -0,0 +1,194 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performs file writes on a small pool of writer threads so that producers do not stall on disk I/O.
+ *
+ * At most queueCapacity writes are outstanding at a time; submitting beyond that blocks the producer until a write
+ * completes. Writes to the same file are chained as they are submitted, so they are applied in submission order even
+ * when several threads submit them. A failed write is reported by the next await of its file, or flush (or
+ * awaitUnder) that covers its file, and never by the writes or waits of other files.
+ */
+public class AsyncWriter {
+
+    public interface Write {
+        void run() throws IOException;
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final Semaphore capacity;
+    // The last write queued for each file, which runs after all earlier writes to it
+    private final Map<Path, CompletableFuture<Void>> pending = new ConcurrentHashMap<Path, CompletableFuture<Void>>();
+    // The first unreported failure of each file
+    private final Map<Path, RuntimeException> failures = new ConcurrentHashMap<Path, RuntimeException>();
+
+    /**
+     * @param threads The number of writer threads
+     * @param queueCapacity The maximum number of writes that may be outstanding before submit blocks
+     */
+    public AsyncWriter(int threads, int queueCapacity) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.capacity = new Semaphore(queueCapacity);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "output-writer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a write to the given file after any write to it already queued, blocking while the queue is full.
+     */
+    public void submit(Path target, Write write) {
+        Path key = normalize(target);
+        try {
+            capacity.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing write to " + target);
+        }
+
+        Runnable task = () -> {
+            try {
+                write.run();
+            }
+            catch (IOException e) {
+                failures.putIfAbsent(key, new RuntimeException("Error writing file " + key + ": " + e.getMessage(), e));
+            }
+            catch (RuntimeException e) {
+                failures.putIfAbsent(key, e);
+            }
+            finally {
+                capacity.release();
+            }
+        };
+
+        CompletableFuture<Void> queued;
+        try {
+            // Chained atomically, so concurrent submitters of the same file can not overtake each other
+            queued = pending.compute(key, (k, previous) -> previous == null
+                ? CompletableFuture.runAsync(task, executor)
+                : previous.thenRunAsync(task, executor));
+        }
+        catch (RuntimeException e) {
+            capacity.release();
+            throw e;
+        }
+        CompletableFuture<Void> future = queued;
+        future.whenComplete((result, error) -> pending.remove(key, future));
+    }
+
+    /**
+     * Waits for the pending writes to the given file, if any, and rethrows the failure of any of them.
+     */
+    public void await(Path target) {
+        Path key = normalize(target);
+        CompletableFuture<Void> future = pending.get(key);
+        await(future);
+        if (future != null) {
+            pending.remove(key, future);
+        }
+        RuntimeException failure = failures.remove(key);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for all pending writes to files under the given directory. The first failure among them is rethrown.
+     */
+    public void awaitUnder(Path directory) {
+        flush(normalize(directory));
+    }
+
+    /**
+     * Waits for all pending writes. The first failure is rethrown once every write has finished.
+     */
+    public void flush() {
+        flush(null);
+    }
+
+    private void flush(Path root) {
+        for (Map.Entry<Path, CompletableFuture<Void>> entry : pending.entrySet()) {
+            if (root == null || entry.getKey().startsWith(root)) {
+                await(entry.getValue());
+                pending.remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        RuntimeException failure = null;
+        for (Path key : failures.keySet()) {
+            if (root == null || key.startsWith(root)) {
+                RuntimeException keyFailure = failures.remove(key);
+                if (failure == null) {
+                    failure = keyFailure;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Flushes and stops the writer threads.
+     */
+    public void close() {
+        try {
+            flush();
+        }
+        finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    // Writes complete normally (their failures are recorded), so this only waits
+    private static void await(CompletableFuture<Void> future) {
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for writes to complete");
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("Error writing file: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
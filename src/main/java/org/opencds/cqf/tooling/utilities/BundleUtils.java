@@ -2,6 +2,8 @@ package org.opencds.cqf.tooling.utilities;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
@@ -9,6 +11,7 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
+import org.apache.commons.io.FilenameUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.tooling.common.CqfmSoftwareSystem;
 
@@ -17,13 +20,21 @@ import ca.uhn.fhir.context.RuntimeResourceDefinition;
 
 public class BundleUtils {
 
+    private static boolean streamBundles;
+    public static boolean getStreamBundles() {
+        return streamBundles;
+    }
+
+    /**
+     * When enabled, writeArtifacts streams bundles to their files one entry at a time (see StreamingBundleWriter)
+     * rather than building and encoding each bundle in memory. Disabled by default.
+     */
+    public static void setStreamBundles(boolean value) {
+        streamBundles = value;
+    }
+
     public static Object bundleArtifacts(String id, List<IBaseResource> resources, FhirContext fhirContext) {
-        for (IBaseResource resource : resources) {
-            if (resource.getIdElement().getIdPart() == null || resource.getIdElement().getIdPart().equals("")) {
-                ResourceUtils.setIgId(id.replace("-bundle", "-" + UUID.randomUUID()), resource, false);
-                resource.setId(resource.getClass().getSimpleName() + "/" + resource.getIdElement().getIdPart());
-            }
-        }
+        assignIds(id, resources);
         
         switch (fhirContext.getVersion().getVersion()) {
             case DSTU3:
@@ -35,6 +46,61 @@ public class BundleUtils {
         }
     }
 
+    /**
+     * Writes the transaction bundle of the given artifacts (as bundleArtifacts builds it) to the given directory, streaming
+     * it if bundle streaming is enabled.
+     */
+    public static void writeArtifacts(String id, List<IBaseResource> resources, String path, IOUtils.Encoding encoding, FhirContext fhirContext) {
+        if (!streamBundles) {
+            IOUtils.writeBundle(bundleArtifacts(id, resources, fhirContext), path, encoding, fhirContext);
+            return;
+        }
+
+        assignIds(id, resources);
+        // The id bundleArtifacts gives the bundle (see ResourceUtils.setIgId)
+        String bundleId = (id + "-bundle").replace("_", "-");
+        String outputPath = new File(path).isFile() ? path : FilenameUtils.concat(path, IOUtils.formatFileName(bundleId, encoding, fhirContext));
+        try {
+            IOUtils.writeFile(outputPath, output -> {
+                try (StreamingBundleWriter writer = new StreamingBundleWriter(output, bundleId, encoding, fhirContext)) {
+                    for (IBaseResource resource : resources) {
+                        writer.writeEntry(resource, getRequestUrl(resource, fhirContext));
+                    }
+                }
+            });
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error writing Bundle to file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The url of the PUT request for the resource in a transaction bundle
+     */
+    public static String getRequestUrl(IBaseResource resource, FhirContext fhirContext) {
+        switch (fhirContext.getVersion().getVersion()) {
+            case DSTU3:
+                return ((org.hl7.fhir.dstu3.model.Resource) resource).getId();
+            case R4:
+                return (resource.getIdElement().getResourceType() == null) ? resource.fhirType() + "/" + resource.getIdElement().getIdPart() : resource.getIdElement().getValueAsString();
+            default:
+                throw new IllegalArgumentException("Unknown fhir version: " + fhirContext.getVersion().getVersion().getFhirVersionString());
+        }
+    }
+
+    private static void assignIds(String id, List<IBaseResource> resources) {
+        for (IBaseResource resource : resources) {
+            // Resources are shared through the resource cache by the artifacts bundled concurrently
+            synchronized (resource) {
+                if (resource.getIdElement().getIdPart() == null || resource.getIdElement().getIdPart().equals("")) {
+                    ResourceUtils.setIgId(id.replace("-bundle", "-" + UUID.randomUUID()), resource, false);
+                    resource.setId(resource.getClass().getSimpleName() + "/" + resource.getIdElement().getIdPart());
+                }
+            }
+        }
+    }
+
     public static org.hl7.fhir.dstu3.model.Bundle bundleStu3Artifacts(String id, List<IBaseResource> resources)
     {
         org.hl7.fhir.dstu3.model.Bundle bundle = new org.hl7.fhir.dstu3.model.Bundle();
@@ -103,6 +169,10 @@ public class BundleUtils {
         RuntimeResourceDefinition bundleDefinition = ResourceUtils.getResourceDefinition(fhirContext, "Bundle");
         String bundleClassName = bundleDefinition.getImplementingClass().getName();
         for (String path : filePaths) {
+            // Only fully parse the files whose header says they are bundles
+            if (!"Bundle".equals(ResourceSniffer.sniffResourceType(path, fhirContext))) {
+                continue;
+            }
             IBaseResource resource = IOUtils.readResource(path, fhirContext);
             if (resource != null) {
                 if (bundleClassName.equals(resource.getClass().getName())) {
@@ -141,6 +211,35 @@ public class BundleUtils {
         }
     }
     
+    public static final int DEFAULT_EXTRACT_THREADS = 4;
+
+    /**
+     * Writes the resource of each entry of the bundle in the given file to the output directory, as extractStu3Resources
+     * and extractR4Resources do, without reading the whole bundle into memory: entries are read one at a time (see
+     * StreamingBundleReader) and encoded and written on a pool of the given number of writer threads, which only
+     * a bounded number of resources can be waiting for.
+     *
+     * @return The number of resources written
+     */
+    public static int extractResources(File bundleFile, String encoding, FhirContext fhirContext, String outputPath, int threads) {
+        AsyncWriter writer = new AsyncWriter(threads, threads * 4);
+        try {
+            int count = StreamingBundleReader.readEntries(bundleFile, fhirContext, resource -> {
+                Path target = Paths.get(outputPath, resource.getIdElement().getResourceType() + "-" + resource.getIdElement().getIdPart() + "." + encoding);
+                writer.submit(target, () -> ResourceUtils.outputResource(resource, encoding, fhirContext, outputPath));
+            });
+            writer.flush();
+            return count;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(e.getMessage());
+        }
+        finally {
+            writer.close();
+        }
+    }
+
     public static void extractStu3Resources(org.hl7.fhir.dstu3.model.Bundle bundle, String encoding, String outputPath) {
     	FhirContext context = FhirContext.forDstu3();
     	for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
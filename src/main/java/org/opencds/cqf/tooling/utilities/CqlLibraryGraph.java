@@ -0,0 +1,305 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The include dependencies between a set of CQL files, read from the library, using and include declarations at
+ * the top of each file without translating it.
+ *
+ * Only dependencies on other files in the set are edges of the graph; libraries resolved from elsewhere (packages,
+ * the FHIR library provider) are recorded as includes but do not affect the ordering. The files are grouped into
+ * levels such that every file's dependencies are in earlier levels, so the files of one level can be translated
+ * concurrently once the previous levels are done. Files that are part of an include cycle are placed in a final
+ * level, where translation will report the cycle.
+ */
+public class CqlLibraryGraph {
+
+    private static final String IDENTIFIER = "(?:\"[^\"]*\"|`[^`]*`|[A-Za-z_][A-Za-z0-9_]*)";
+    private static final String QUALIFIED_IDENTIFIER = IDENTIFIER + "(?:\\s*\\.\\s*" + IDENTIFIER + ")*";
+    private static final String VERSION = "(?:\\s+version\\s+'([^']*)')?";
+    private static final Pattern LIBRARY = Pattern.compile("\\blibrary\\s+(" + QUALIFIED_IDENTIFIER + ")" + VERSION);
+    private static final Pattern USING = Pattern.compile("\\busing\\s+(" + QUALIFIED_IDENTIFIER + ")" + VERSION);
+    private static final Pattern INCLUDE = Pattern.compile("\\binclude\\s+(" + QUALIFIED_IDENTIFIER + ")" + VERSION);
+    private static final Pattern END_OF_HEADER = Pattern.compile("\\b(?:define|context)\\b");
+    private static final Pattern LAST_IDENTIFIER = Pattern.compile("(" + IDENTIFIER + ")\\s*$");
+
+    /**
+     * A library or model name with its (optional) version.
+     */
+    public static class Declaration {
+        private final String name;
+        private final String version;
+
+        public Declaration(String name, String version) {
+            this.name = name;
+            this.version = version;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Declaration)) {
+                return false;
+            }
+            Declaration other = (Declaration) o;
+            return name.equals(other.name) && (version == null ? other.version == null : version.equals(other.version));
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + (version == null ? 0 : version.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return version == null ? name : name + "|" + version;
+        }
+    }
+
+    /**
+     * The declarations read from one CQL file.
+     */
+    public static class Node {
+        private final File file;
+        private final Declaration library;
+        private final List<Declaration> usings;
+        private final List<Declaration> includes;
+
+        Node(File file, Declaration library, List<Declaration> usings, List<Declaration> includes) {
+            this.file = file;
+            this.library = library;
+            this.usings = usings;
+            this.includes = includes;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The library declaration, or the file name if the file does not declare one
+         */
+        public Declaration getLibrary() {
+            return library;
+        }
+
+        public List<Declaration> getUsings() {
+            return usings;
+        }
+
+        public List<Declaration> getIncludes() {
+            return includes;
+        }
+    }
+
+    private final Map<File, Node> nodes;
+    private final Map<File, Set<File>> dependencies;
+    private final List<List<File>> levels;
+
+    private CqlLibraryGraph(Map<File, Node> nodes) {
+        this.nodes = nodes;
+        this.dependencies = resolveDependencies(nodes);
+        this.levels = sort(dependencies);
+    }
+
+    /**
+     * Reads the declarations of the given CQL files and orders them by their dependencies.
+     */
+    public static CqlLibraryGraph build(Collection<File> files) {
+        Map<File, Node> nodes = new LinkedHashMap<File, Node>();
+        for (File file : files) {
+            String cql;
+            try {
+                cql = FileContentReader.readString(file.toPath());
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Error reading CQL file: " + file.getPath() + ": " + e.getMessage());
+            }
+            nodes.put(file, parse(file, cql));
+        }
+        return new CqlLibraryGraph(nodes);
+    }
+
+    static Node parse(File file, String cql) {
+        String header = stripComments(cql);
+        Matcher end = END_OF_HEADER.matcher(header);
+        if (end.find()) {
+            header = header.substring(0, end.start());
+        }
+
+        Declaration library = null;
+        Matcher matcher = LIBRARY.matcher(header);
+        if (matcher.find()) {
+            library = declaration(matcher);
+        }
+        if (library == null) {
+            String name = file.getName();
+            library = new Declaration(name.endsWith(".cql") ? name.substring(0, name.length() - 4) : name, null);
+        }
+
+        return new Node(file, library, declarations(USING, header), declarations(INCLUDE, header));
+    }
+
+    public Collection<Node> getNodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    public Node getNode(File file) {
+        return nodes.get(file);
+    }
+
+    /**
+     * @return The files grouped so that each file's dependencies are all in earlier groups
+     */
+    public List<List<File>> getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return The given files and every file that includes one of them, directly or indirectly
+     */
+    public Set<File> getDependents(Collection<File> files) {
+        Set<File> dependents = new LinkedHashSet<File>(files);
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (Map.Entry<File, Set<File>> entry : dependencies.entrySet()) {
+                if (!dependents.contains(entry.getKey()) && !Collections.disjoint(entry.getValue(), dependents)) {
+                    dependents.add(entry.getKey());
+                    added = true;
+                }
+            }
+        }
+        return dependents;
+    }
+
+    /**
+     * @return The distinct models used by the files
+     */
+    public Set<Declaration> getModels() {
+        Set<Declaration> models = new LinkedHashSet<Declaration>();
+        for (Node node : nodes.values()) {
+            models.addAll(node.getUsings());
+        }
+        return models;
+    }
+
+    private static Map<File, Set<File>> resolveDependencies(Map<File, Node> nodes) {
+        Map<String, List<File>> filesByName = new LinkedHashMap<String, List<File>>();
+        for (Node node : nodes.values()) {
+            filesByName.computeIfAbsent(node.getLibrary().getName(), name -> new ArrayList<File>()).add(node.getFile());
+        }
+
+        Map<File, Set<File>> dependencies = new LinkedHashMap<File, Set<File>>();
+        for (Node node : nodes.values()) {
+            Set<File> fileDependencies = new LinkedHashSet<File>();
+            for (Declaration include : node.getIncludes()) {
+                List<File> included = filesByName.get(include.getName());
+                if (included != null) {
+                    fileDependencies.addAll(included);
+                }
+            }
+            fileDependencies.remove(node.getFile());
+            dependencies.put(node.getFile(), fileDependencies);
+        }
+        return dependencies;
+    }
+
+    private static List<List<File>> sort(Map<File, Set<File>> dependencies) {
+        List<List<File>> levels = new ArrayList<List<File>>();
+        Set<File> done = new LinkedHashSet<File>();
+        while (done.size() < dependencies.size()) {
+            List<File> level = new ArrayList<File>();
+            for (Map.Entry<File, Set<File>> entry : dependencies.entrySet()) {
+                if (!done.contains(entry.getKey()) && done.containsAll(entry.getValue())) {
+                    level.add(entry.getKey());
+                }
+            }
+
+            if (level.isEmpty()) {
+                // The rest are in or depend on a cycle
+                for (File file : dependencies.keySet()) {
+                    if (!done.contains(file)) {
+                        level.add(file);
+                    }
+                }
+            }
+
+            done.addAll(level);
+            levels.add(Collections.unmodifiableList(level));
+        }
+        return Collections.unmodifiableList(levels);
+    }
+
+    private static List<Declaration> declarations(Pattern pattern, String header) {
+        List<Declaration> declarations = new ArrayList<Declaration>();
+        Matcher matcher = pattern.matcher(header);
+        while (matcher.find()) {
+            declarations.add(declaration(matcher));
+        }
+        return Collections.unmodifiableList(declarations);
+    }
+
+    private static Declaration declaration(Matcher matcher) {
+        // Only the last part of a qualified name identifies the library, the rest is its namespace
+        Matcher last = LAST_IDENTIFIER.matcher(matcher.group(1));
+        String name = last.find() ? last.group(1) : matcher.group(1);
+        if (name.length() > 1 && (name.startsWith("\"") || name.startsWith("`"))) {
+            name = name.substring(1, name.length() - 1);
+        }
+        return new Declaration(name, matcher.group(2));
+    }
+
+    /**
+     * Replaces comments with spaces, leaving strings and quoted identifiers intact.
+     */
+    private static String stripComments(String cql) {
+        StringBuilder result = new StringBuilder(cql.length());
+        int i = 0;
+        while (i < cql.length()) {
+            char c = cql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                int end = cql.indexOf(c, i + 1);
+                while (end > 0 && cql.charAt(end - 1) == '\\') {
+                    end = cql.indexOf(c, end + 1);
+                }
+                end = end < 0 ? cql.length() : end + 1;
+                result.append(cql, i, end);
+                i = end;
+            }
+            else if (cql.startsWith("//", i)) {
+                int end = cql.indexOf('\n', i);
+                i = end < 0 ? cql.length() : end;
+                result.append(' ');
+            }
+            else if (cql.startsWith("/*", i)) {
+                int end = cql.indexOf("*/", i + 2);
+                i = end < 0 ? cql.length() : end + 2;
+                result.append(' ');
+            }
+            else {
+                result.append(c);
+                i++;
+            }
+        }
+        return result.toString();
+    }
+}
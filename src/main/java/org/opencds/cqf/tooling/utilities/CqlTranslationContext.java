@@ -0,0 +1,115 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.DefaultLibrarySourceProvider;
+import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+
+/**
+ * A ModelManager and LibraryManager shared by all translations of the CQL in one source folder during a run.
+ *
+ * The model manager loads each model (FHIR, QICore, ...) and version once, and the library manager keeps the
+ * translated form of every library it has resolved as an include, so translating N libraries no longer loads the
+ * ModelInfo N times or re-translates shared includes such as FHIRHelpers for each of them. Neither manager is
+ * thread-safe, so translations within one context are serialized; translations in different contexts run
+ * concurrently.
+ */
+public class CqlTranslationContext {
+
+    private static final Map<String, CqlTranslationContext> contexts = new ConcurrentHashMap<String, CqlTranslationContext>();
+
+    private final Path folder;
+    private final CqlTranslatorOptions options;
+    private final long optionsLastModified;
+    private final ModelManager modelManager;
+    private final LibraryManager libraryManager;
+    private int translationCount;
+
+    private CqlTranslationContext(Path folder, CqlTranslatorOptions options, long optionsLastModified) {
+        this.folder = folder;
+        this.options = options;
+        this.optionsLastModified = optionsLastModified;
+        this.modelManager = new ModelManager();
+        PrecompiledModelInfoProvider.register(modelManager, null);
+        this.libraryManager = CqlTranslationProfiler.newLibraryManager(modelManager);
+        this.libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
+        this.libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(folder));
+    }
+
+    /**
+     * Returns the shared context for the given folder, creating it with the given options on first use.
+     * The context is replaced if the folder's cql-options.json has changed since it was created.
+     */
+    public static CqlTranslationContext forFolder(String folder, CqlTranslatorOptions options) {
+        Path folderPath = Paths.get(folder).toAbsolutePath().normalize();
+        long optionsLastModified = new File(folderPath.toFile(), "cql-options.json").lastModified();
+        return contexts.compute(folderPath.toString(), (key, context) ->
+            context != null && context.optionsLastModified == optionsLastModified
+                ? context
+                : new CqlTranslationContext(folderPath, options, optionsLastModified));
+    }
+
+    /**
+     * Discards all shared contexts, e.g. when the CQL of the IG has changed.
+     */
+    public static void clear() {
+        contexts.clear();
+    }
+
+    /**
+     * Drops the given libraries (by name) from the libraries the shared contexts have translated as includes, e.g.
+     * when their CQL, or the CQL of a library they include, has changed. The models and other libraries are kept.
+     */
+    public static void forgetLibraries(Collection<String> libraryNames) {
+        for (CqlTranslationContext context : contexts.values()) {
+            context.forget(libraryNames);
+        }
+    }
+
+    // Libraries are held by path: the name, qualified with the namespace uri if there is one
+    private synchronized void forget(Collection<String> libraryNames) {
+        libraryManager.getTranslatedLibraries().keySet().removeIf(path ->
+            libraryNames.contains(path.substring(path.lastIndexOf('/') + 1)));
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    public CqlTranslatorOptions getOptions() {
+        return options;
+    }
+
+    public ModelManager getModelManager() {
+        return modelManager;
+    }
+
+    public LibraryManager getLibraryManager() {
+        return libraryManager;
+    }
+
+    /**
+     * @return The number of translations made in this context
+     */
+    public synchronized int getTranslationCount() {
+        return translationCount;
+    }
+
+    /**
+     * Translates the given CQL file with the shared managers. Throws an IllegalArgumentException if there are
+     * translation errors.
+     */
+    public synchronized CqlTranslator translate(String cqlContentPath) {
+        translationCount++;
+        return IOUtils.translate(cqlContentPath, modelManager, libraryManager, options);
+    }
+}
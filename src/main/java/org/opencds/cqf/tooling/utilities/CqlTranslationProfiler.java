@@ -0,0 +1,298 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.cqframework.cql.gen.cqlLexer;
+import org.cqframework.cql.gen.cqlParser;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Records where the time of each CQL translation goes, so that the libraries that dominate translation time can be
+ * found and regressions spotted when the translator is upgraded. Disabled by default; when enabled, every library
+ * compiled through CqlTranslationService by the CqlProcessor or IOUtils.translate (and so ResourceUtils.getElmFromCql)
+ * is profiled, and writeReport writes the results as JSON.
+ *
+ * The translator parses and analyzes a library in one call, so the parse time is measured by parsing the source
+ * separately beforehand, and the semantic analysis time is the rest of the translation less the time spent resolving
+ * included libraries (measured by the library managers created with newLibraryManager). The serialization time and
+ * ELM size are those of the ELM XML, and the allocated bytes are those of the translating thread during translation
+ * and serialization, where the JVM supports measuring them. Profiling adds the separate parse and serialization to
+ * each translation.
+ */
+public class CqlTranslationProfiler {
+
+    public static class LibraryProfile {
+        private String library;
+        private String version;
+        private String file;
+        private boolean failed;
+        private double translationMillis;
+        private double parseMillis;
+        private double semanticAnalysisMillis;
+        private double includeResolutionMillis;
+        private double serializationMillis;
+        private long elmBytes = -1;
+        private long allocatedBytes = -1;
+
+        public String getLibrary() {
+            return library;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        public double getTranslationMillis() {
+            return translationMillis;
+        }
+
+        public double getParseMillis() {
+            return parseMillis;
+        }
+
+        public double getSemanticAnalysisMillis() {
+            return semanticAnalysisMillis;
+        }
+
+        public double getIncludeResolutionMillis() {
+            return includeResolutionMillis;
+        }
+
+        public double getSerializationMillis() {
+            return serializationMillis;
+        }
+
+        /**
+         * @return The size of the ELM XML, or -1 if the translation failed
+         */
+        public long getElmBytes() {
+            return elmBytes;
+        }
+
+        /**
+         * @return The bytes allocated by the translation and serialization, or -1 if the JVM can not measure them
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+
+    private static class Report {
+        private String translatorVersion;
+        private int libraryCount;
+        private double totalTranslationMillis;
+        private List<LibraryProfile> libraries;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static final List<LibraryProfile> profiles = Collections.synchronizedList(new ArrayList<LibraryProfile>());
+    private static final ThreadLocal<long[]> includeResolution = ThreadLocal.withInitial(() -> new long[2]);
+    private static volatile boolean enabled;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        CqlTranslationProfiler.enabled = enabled;
+    }
+
+    /**
+     * Discards the profiles recorded so far.
+     */
+    public static void reset() {
+        profiles.clear();
+    }
+
+    /**
+     * @return The profiles recorded since the last reset, in the order the translations completed
+     */
+    public static List<LibraryProfile> getProfiles() {
+        synchronized (profiles) {
+            return new ArrayList<LibraryProfile>(profiles);
+        }
+    }
+
+    /**
+     * Returns a LibraryManager that records the time spent resolving included libraries.
+     */
+    public static LibraryManager newLibraryManager(ModelManager modelManager) {
+        return new LibraryManager(modelManager) {
+            @Override
+            public TranslatedLibrary resolveLibrary(VersionedIdentifier libraryIdentifier, CqlTranslatorOptions options, List<CqlTranslatorException> errors) {
+                // Only the outermost resolution is timed, as it includes the resolution of nested includes
+                long[] state = includeResolution.get();
+                if (state[1]++ > 0) {
+                    try {
+                        return super.resolveLibrary(libraryIdentifier, options, errors);
+                    }
+                    finally {
+                        state[1]--;
+                    }
+                }
+
+                long start = System.nanoTime();
+                try {
+                    return super.resolveLibrary(libraryIdentifier, options, errors);
+                }
+                finally {
+                    state[0] += System.nanoTime() - start;
+                    state[1]--;
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs the translation of the given file, profiling it if the profiler is enabled.
+     */
+    public static CqlTranslator translate(File cqlFile, CqlTranslationService.Translation translation) throws IOException {
+        if (!enabled) {
+            return translation.translate();
+        }
+
+        LibraryProfile profile = new LibraryProfile();
+        profile.file = cqlFile.getAbsoluteFile().toPath().normalize().toString();
+        long parseNanos = parse(cqlFile.toPath());
+
+        long startAllocated = getAllocatedBytes();
+        long[] state = includeResolution.get();
+        state[0] = 0;
+        long start = System.nanoTime();
+        CqlTranslator translator = translation.translate();
+        long translationNanos = System.nanoTime() - start;
+        long includeNanos = state[0];
+
+        profile.translationMillis = toMillis(translationNanos);
+        profile.parseMillis = toMillis(parseNanos);
+        profile.includeResolutionMillis = toMillis(includeNanos);
+        profile.semanticAnalysisMillis = toMillis(Math.max(0, translationNanos - parseNanos - includeNanos));
+
+        org.hl7.elm.r1.Library elm = translator.toELM();
+        profile.failed = !translator.getErrors().isEmpty() || elm == null;
+        if (elm != null && elm.getIdentifier() != null) {
+            profile.library = elm.getIdentifier().getId();
+            profile.version = elm.getIdentifier().getVersion();
+        }
+        if (!profile.failed) {
+            CountingOutputStream output = new CountingOutputStream();
+            start = System.nanoTime();
+            try {
+                ElmSerializer.writeXml(elm, output);
+                profile.serializationMillis = toMillis(System.nanoTime() - start);
+                profile.elmBytes = output.count;
+            }
+            catch (RuntimeException e) {
+                profile.failed = true;
+            }
+        }
+        if (startAllocated >= 0) {
+            long endAllocated = getAllocatedBytes();
+            profile.allocatedBytes = endAllocated >= 0 ? endAllocated - startAllocated : -1;
+        }
+
+        profiles.add(profile);
+        return translator;
+    }
+
+    /**
+     * Writes the recorded profiles to the given file as JSON, slowest translation first. Failures are reported and
+     * otherwise ignored.
+     */
+    public static void writeReport(String path) {
+        Report report = new Report();
+        report.translatorVersion = ElmCache.getTranslatorVersion();
+        report.libraries = getProfiles();
+        report.libraries.sort(Comparator.comparingDouble(LibraryProfile::getTranslationMillis).reversed());
+        report.libraryCount = report.libraries.size();
+        for (LibraryProfile profile : report.libraries) {
+            report.totalTranslationMillis += profile.translationMillis;
+        }
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        Path reportPath = Paths.get(path).toAbsolutePath();
+        try {
+            Files.createDirectories(reportPath.getParent());
+            Files.write(reportPath, gson.toJson(report).getBytes(StandardCharsets.UTF_8));
+            System.out.println(String.format("CQL translation profile of %d libraries written to %s", report.libraryCount, reportPath));
+        }
+        catch (IOException e) {
+            System.out.println(String.format("Could not write the CQL translation profile %s: %s", reportPath, e.getMessage()));
+        }
+    }
+
+    // A parse of the source as the translator parses it, with errors left to the translator to report
+    private static long parse(Path cqlFile) {
+        long start = System.nanoTime();
+        try {
+            cqlLexer lexer = new cqlLexer(CharStreams.fromPath(cqlFile));
+            lexer.removeErrorListeners();
+            cqlParser parser = new cqlParser(new CommonTokenStream(lexer));
+            parser.removeErrorListeners();
+            parser.library();
+        }
+        catch (IOException | RuntimeException e) {
+            return 0;
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+                return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,223 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.NamespaceManager;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The translations made during a run, shared by every path that translates CQL (the CqlProcessor, IOUtils.translate
+ * and ResourceUtils.getElmFromCql, and the library resolution of the measure refresh), so that each library is
+ * compiled once per set of options and the resulting translator, ELM, TranslatedLibrary and errors are reused.
+ *
+ * Translations are recorded by file (including the content of the file and of the libraries it includes from the
+ * same folder, so a changed library is compiled again along with its dependents), options and an environment string
+ * describing anything else they depend on (namespace, packages). A null environment is an environment of its own.
+ * Concurrent requests for the same translation wait for a single compilation. Call reset at the start of a run and
+ * clear at its end, so that translators are not kept between runs (or between the refreshes of the watch mode).
+ */
+public class CqlTranslationService {
+
+    public interface Translation {
+        CqlTranslator translate() throws IOException;
+    }
+
+    private static final Map<String, CompletableFuture<CqlTranslator>> translations = new ConcurrentHashMap<String, CompletableFuture<CqlTranslator>>();
+    private static final Map<String, CompletableFuture<TranslatedLibrary>> libraries = new ConcurrentHashMap<String, CompletableFuture<TranslatedLibrary>>();
+    private static final AtomicInteger compilations = new AtomicInteger();
+    private static final AtomicInteger avoidedCompilations = new AtomicInteger();
+
+    /**
+     * Returns the translation of the given file with the given options, translating it if it has not been translated yet.
+     * Translations with errors are kept too, so callers must check the translator's errors. A translation that
+     * throws is not kept.
+     *
+     * @param environment Anything else the translation depends on, such as the namespace and packages in use
+     */
+    public static CqlTranslator translate(File cqlFile, CqlTranslatorOptions options, String environment, Translation translation) throws IOException {
+        String optionsKey = getOptionsKey(options);
+        String key = getFileKey(cqlFile) + "\n" + optionsKey + "\n" + getEnvironmentKey(environment);
+        CompletableFuture<CqlTranslator> created = new CompletableFuture<CqlTranslator>();
+        CompletableFuture<CqlTranslator> future = translations.computeIfAbsent(key, k -> created);
+        if (future != created) {
+            avoidedCompilations.incrementAndGet();
+            return join(future);
+        }
+
+        CqlTranslator translator;
+        try {
+            translator = translation.translate();
+        }
+        catch (IOException | RuntimeException | Error e) {
+            translations.remove(key, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+        compilations.incrementAndGet();
+
+        TranslatedLibrary translatedLibrary = translator.getTranslatedLibrary();
+        if (translator.getErrors().isEmpty() && translatedLibrary != null && translatedLibrary.getIdentifier() != null) {
+            libraries.putIfAbsent(getLibraryKey(translatedLibrary.getIdentifier(), optionsKey, environment),
+                CompletableFuture.completedFuture(translatedLibrary));
+        }
+        created.complete(translator);
+        return translator;
+    }
+
+    /**
+     * Resolves a library through the given LibraryManager, first giving it the library if it has already been
+     * compiled with the given options in the given environment. A resolution that fails is not kept.
+     */
+    public static TranslatedLibrary resolveLibrary(LibraryManager libraryManager, VersionedIdentifier libraryIdentifier,
+            CqlTranslatorOptions options, String environment, List<CqlTranslatorException> errors) {
+        String path = NamespaceManager.getPath(libraryIdentifier.getSystem(), libraryIdentifier.getId());
+        if (libraryManager.getTranslatedLibraries().containsKey(path)) {
+            return libraryManager.resolveLibrary(libraryIdentifier, options, errors);
+        }
+
+        String libraryKey = getLibraryKey(libraryIdentifier, getOptionsKey(options), environment);
+        CompletableFuture<TranslatedLibrary> created = new CompletableFuture<TranslatedLibrary>();
+        CompletableFuture<TranslatedLibrary> future = libraries.computeIfAbsent(libraryKey, k -> created);
+        if (future != created) {
+            TranslatedLibrary translatedLibrary = join(future);
+            if (translatedLibrary != null) {
+                avoidedCompilations.incrementAndGet();
+                VersionedIdentifier translatedIdentifier = translatedLibrary.getIdentifier();
+                libraryManager.getTranslatedLibraries().put(NamespaceManager.getPath(translatedIdentifier.getSystem(), translatedIdentifier.getId()), translatedLibrary);
+                return translatedLibrary;
+            }
+            // The other resolution failed; resolve it here, so that its errors are reported to this caller
+            return libraryManager.resolveLibrary(libraryIdentifier, options, errors);
+        }
+
+        TranslatedLibrary translatedLibrary;
+        List<CqlTranslatorException> resolutionErrors = new ArrayList<CqlTranslatorException>();
+        try {
+            translatedLibrary = libraryManager.resolveLibrary(libraryIdentifier, options, resolutionErrors);
+        }
+        catch (RuntimeException | Error e) {
+            libraries.remove(libraryKey, created);
+            created.complete(null);
+            throw e;
+        }
+        compilations.incrementAndGet();
+        errors.addAll(resolutionErrors);
+        if (translatedLibrary == null || hasErrors(resolutionErrors)) {
+            libraries.remove(libraryKey, created);
+            created.complete(null);
+        }
+        else {
+            created.complete(translatedLibrary);
+        }
+        return translatedLibrary;
+    }
+
+    /**
+     * @return The number of libraries compiled through the service since the last reset
+     */
+    public static int getCompilationCount() {
+        return compilations.get();
+    }
+
+    /**
+     * @return The number of requests since the last reset that were answered with an earlier compilation
+     */
+    public static int getAvoidedCompilationCount() {
+        return avoidedCompilations.get();
+    }
+
+    public static String getSummary() {
+        return String.format("CQL translation: %d libraries compiled, %d duplicate compilations avoided",
+            getCompilationCount(), getAvoidedCompilationCount());
+    }
+
+    /**
+     * Forgets all translations and resets the counts.
+     */
+    public static void reset() {
+        clear();
+        compilations.set(0);
+        avoidedCompilations.set(0);
+    }
+
+    /**
+     * Forgets all translations, keeping the counts.
+     */
+    public static void clear() {
+        translations.clear();
+        libraries.clear();
+    }
+
+    /**
+     * Returns a string that is equal for equal translator options.
+     */
+    public static String getOptionsKey(CqlTranslatorOptions options) {
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            mapper.configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+            return mapper.writeValueAsString(options);
+        }
+        catch (JsonProcessingException e) {
+            throw new RuntimeException("Error serializing CQL translator options: " + e.getMessage(), e);
+        }
+    }
+
+    private static String getFileKey(File file) {
+        File absoluteFile = file.getAbsoluteFile();
+        return absoluteFile.toPath().normalize() + ":" + ElmCache.getSourceKey(absoluteFile);
+    }
+
+    private static String getEnvironmentKey(String environment) {
+        return environment == null ? "none" : "environment:" + environment;
+    }
+
+    private static String getLibraryKey(VersionedIdentifier identifier, String optionsKey, String environment) {
+        return (identifier.getSystem() == null ? "" : identifier.getSystem()) + "|" + identifier.getId() + "|"
+            + (identifier.getVersion() == null ? "" : identifier.getVersion()) + "\n" + optionsKey + "\n" + getEnvironmentKey(environment);
+    }
+
+    private static boolean hasErrors(List<CqlTranslatorException> exceptions) {
+        for (CqlTranslatorException exception : exceptions) {
+            if (exception.getSeverity() == CqlTranslatorException.ErrorSeverity.Error) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
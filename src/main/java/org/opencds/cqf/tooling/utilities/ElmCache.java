@@ -0,0 +1,468 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.transform.stream.StreamSource;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * A persistent, content-addressed cache of translated CQL, kept in an elm directory under the .cqf-cache directory
+ * so that unchanged libraries are not translated again on later runs.
+ *
+ * An entry is keyed by a SHA-256 hash of the CQL source, the effective translator options (which reflect
+ * cql-options.json), the translator version, an environment string supplied by the caller (e.g. the packages the
+ * libraries may be resolved from) and, recursively, the keys of the included libraries found next to the source.
+ * Changing a library therefore invalidates the entries of every library that includes it. Included libraries that
+ * are not in the source folder are identified by name and version only; they come from the translator or from the
+ * packages named in the environment.
+ *
+ * An entry is kept in three files: the ELM XML, the JSON ELM (if it was produced) and, written last so that its
+ * presence means the others are complete, the identifier, messages and data requirements. The ELM is written and
+ * read as a stream and never held by the entry. Content derived from a library's translation, such as the data
+ * requirements of a measure using it, can be stored alongside its entry, under the same key.
+ *
+ * Only successful translations are stored. Entries are never modified, so a changed key simply leaves the old entry
+ * unused; delete the directory to reclaim the space.
+ */
+public class ElmCache {
+
+    public static final String DIRECTORY_NAME = "elm";
+
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * A message reported for a library, stored with the translation so that it is reported again on a hit.
+     */
+    public static class Message {
+        private String source;
+        private String type;
+        private int line;
+        private int col;
+        private String location;
+        private String message;
+        private String level;
+
+        public Message(String source, String type, int line, int col, String location, String message, String level) {
+            this.source = source;
+            this.type = type;
+            this.line = line;
+            this.col = col;
+            this.location = location;
+            this.message = message;
+            this.level = level;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public int getCol() {
+            return col;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getLevel() {
+            return level;
+        }
+    }
+
+    /**
+     * The stored result of translating one library.
+     */
+    public static class Entry {
+        private int formatVersion = FORMAT_VERSION;
+        private String libraryId;
+        private String librarySystem;
+        private String libraryVersion;
+        private boolean hasJson;
+        private String requirements;
+        private List<Message> messages = new ArrayList<Message>();
+        private transient Path xmlPath;
+        private transient Path jsonPath;
+
+        public String getLibraryId() {
+            return libraryId;
+        }
+
+        public String getLibrarySystem() {
+            return librarySystem;
+        }
+
+        public String getLibraryVersion() {
+            return libraryVersion;
+        }
+
+        public void setIdentifier(org.hl7.elm.r1.VersionedIdentifier identifier) {
+            this.libraryId = identifier.getId();
+            this.librarySystem = identifier.getSystem();
+            this.libraryVersion = identifier.getVersion();
+        }
+
+        public org.hl7.elm.r1.VersionedIdentifier getIdentifier() {
+            return new org.hl7.elm.r1.VersionedIdentifier().withId(libraryId).withSystem(librarySystem).withVersion(libraryVersion);
+        }
+
+        /**
+         * @return The file holding the ELM XML of a stored entry
+         */
+        public Path getXmlPath() {
+            return xmlPath;
+        }
+
+        /**
+         * @return The file holding the JSON (or JXSON) ELM of a stored entry, or null if it was not produced
+         */
+        public Path getJsonPath() {
+            return hasJson ? jsonPath : null;
+        }
+
+        /**
+         * @return The JSON data requirements library produced for the translation, or null if none was stored
+         */
+        public String getRequirements() {
+            return requirements;
+        }
+
+        public void setRequirements(String requirements) {
+            this.requirements = requirements;
+        }
+
+        public List<Message> getMessages() {
+            return messages;
+        }
+    }
+
+    private static class SourceInfo {
+        private final long lastModified;
+        private final long size;
+        private final String hash;
+        private final List<CqlLibraryGraph.Declaration> includes;
+
+        SourceInfo(long lastModified, long size, String hash, List<CqlLibraryGraph.Declaration> includes) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.hash = hash;
+            this.includes = includes;
+        }
+    }
+
+    private static final Gson gson = new Gson();
+    private static final Map<String, SourceInfo> sources = new ConcurrentHashMap<String, SourceInfo>();
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+    private static volatile String cacheDirectory;
+    private static volatile String translatorVersion;
+    private static volatile JAXBContext elmContext;
+
+    public static String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Sets the directory entries are kept in, e.g. [IG root]/.cqf-cache/elm. Use null (the default) to disable the cache.
+     */
+    public static void setCacheDirectory(String directory) {
+        cacheDirectory = directory;
+    }
+
+    public static boolean isEnabled() {
+        return cacheDirectory != null;
+    }
+
+    public static int getHits() {
+        return hits.get();
+    }
+
+    public static int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the key of the translation of the given CQL file with the given options.
+     *
+     * @param environment Anything else the translation depends on, such as the namespace and packages in use
+     */
+    public static String getKey(File cqlFile, CqlTranslatorOptions options, String environment) {
+        StringBuilder key = new StringBuilder();
+        key.append("format:").append(FORMAT_VERSION).append('\n');
+        key.append("translator:").append(getTranslatorVersion()).append('\n');
+        key.append("options:").append(CqlTranslationService.getOptionsKey(options)).append('\n');
+        key.append("environment:").append(environment == null ? "" : environment).append('\n');
+        key.append("source:").append(getSourceKey(cqlFile)).append('\n');
+        return hash(key.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns a hash of the CQL file's content and, recursively, of the libraries it includes from the same folder,
+     * so that it changes when the file or any of its includes changes.
+     */
+    public static String getSourceKey(File cqlFile) {
+        return getSourceKey(cqlFile.getAbsoluteFile(), new HashSet<String>());
+    }
+
+    /**
+     * Returns the stored entry for the key, or null if there is none or it can not be read.
+     */
+    public static Entry get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        Path path = getPath(key, ".json");
+        if (Files.isRegularFile(path)) {
+            try {
+                Entry entry = gson.fromJson(FileContentReader.readString(path), Entry.class);
+                if (entry != null && entry.formatVersion == FORMAT_VERSION) {
+                    entry.xmlPath = getPath(key, ".xml");
+                    entry.jsonPath = getPath(key, ".elm.json");
+                    if (Files.isRegularFile(entry.xmlPath) && (!entry.hasJson || Files.isRegularFile(entry.jsonPath))) {
+                        hits.incrementAndGet();
+                        return entry;
+                    }
+                }
+            }
+            catch (IOException | JsonParseException e) {
+                System.out.println(String.format("Ignoring unreadable ELM cache entry %s: %s", path, e.getMessage()));
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the entry under the key, with the ELM XML and (if not null) the JSON ELM produced by the given writers,
+     * and sets the paths of the stored ELM on the entry. Failures are reported and otherwise ignored; the cache is
+     * only an optimization.
+     *
+     * @return Whether the entry was stored
+     */
+    public static boolean put(String key, Entry entry, IOUtils.ContentWriter xml, IOUtils.ContentWriter json) {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        Path path = getPath(key, ".json");
+        try {
+            Files.createDirectories(path.getParent());
+            IOUtils.writeFileAtomically(getPath(key, ".xml"), xml);
+            entry.hasJson = json != null;
+            if (json != null) {
+                IOUtils.writeFileAtomically(getPath(key, ".elm.json"), json);
+            }
+            IOUtils.writeFileAtomically(path, gson.toJson(entry).getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException | RuntimeException e) {
+            System.out.println(String.format("Could not write ELM cache entry %s: %s", path, e.getMessage()));
+            return false;
+        }
+        entry.xmlPath = getPath(key, ".xml");
+        entry.jsonPath = json != null ? getPath(key, ".elm.json") : null;
+        return true;
+    }
+
+    /**
+     * Returns the content stored under the given name alongside the entry for the key, or null if there is none.
+     */
+    public static String getDerived(String key, String name) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        Path path = getDerivedPath(key, name);
+        if (Files.isRegularFile(path)) {
+            try {
+                return FileContentReader.readString(path);
+            }
+            catch (IOException e) {
+                System.out.println(String.format("Ignoring unreadable ELM cache entry %s: %s", path, e.getMessage()));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores content derived from the translation with the given key under the given name, e.g. the data
+     * requirements of a measure, which depend on the library and on the measure's expressions.
+     */
+    public static void putDerived(String key, String name, IOUtils.ContentWriter content) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Path path = getDerivedPath(key, name);
+        try {
+            Files.createDirectories(path.getParent());
+            IOUtils.writeFileAtomically(path, content);
+        }
+        catch (IOException e) {
+            System.out.println(String.format("Could not write ELM cache entry %s: %s", path, e.getMessage()));
+        }
+    }
+
+    /**
+     * Reads an ELM library from a file holding its XML form.
+     */
+    public static org.hl7.elm.r1.Library readLibrary(Path xml) {
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(xml))) {
+            return getElmContext().createUnmarshaller()
+                .unmarshal(new StreamSource(input), org.hl7.elm.r1.Library.class).getValue();
+        }
+        catch (IOException | JAXBException e) {
+            throw new RuntimeException("Error reading ELM: " + e.getMessage(), e);
+        }
+    }
+
+    private static JAXBContext getElmContext() throws JAXBException {
+        if (elmContext == null) {
+            elmContext = JAXBContext.newInstance("org.hl7.elm.r1:org.hl7.cql_annotations.r1", ElmCache.class.getClassLoader());
+        }
+        return elmContext;
+    }
+
+    private static Path getPath(String key, String extension) {
+        return Paths.get(cacheDirectory, key.substring(0, 2), key + extension);
+    }
+
+    private static Path getDerivedPath(String key, String name) {
+        return getPath(key, "." + hash(name.getBytes(StandardCharsets.UTF_8)) + ".json");
+    }
+
+    /**
+     * The hash of the file's content followed by the keys of the libraries it includes from the same folder.
+     */
+    private static String getSourceKey(File file, Set<String> visiting) {
+        String path = file.getPath();
+        if (!visiting.add(path)) {
+            // The cycle is reported by the translator
+            return "cycle";
+        }
+
+        try {
+            SourceInfo source = getSourceInfo(file);
+            StringBuilder key = new StringBuilder(source.hash);
+            for (CqlLibraryGraph.Declaration include : source.includes) {
+                key.append("\ninclude:").append(include);
+                File includedFile = findIncludedFile(file.getParentFile(), include);
+                if (includedFile != null) {
+                    key.append(':').append(getSourceKey(includedFile, visiting));
+                }
+            }
+            return hash(key.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        finally {
+            visiting.remove(path);
+        }
+    }
+
+    private static SourceInfo getSourceInfo(File file) {
+        long lastModified = file.lastModified();
+        long size = file.length();
+        SourceInfo source = sources.get(file.getPath());
+        if (source != null && source.lastModified == lastModified && source.size == size) {
+            return source;
+        }
+
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file.toPath());
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error reading CQL file: " + file.getPath() + ": " + e.getMessage());
+        }
+        source = new SourceInfo(lastModified, size, hash(content),
+            CqlLibraryGraph.parse(file, new String(content, StandardCharsets.UTF_8)).getIncludes());
+        sources.put(file.getPath(), source);
+        return source;
+    }
+
+    // Mirrors the file names the DefaultLibrarySourceProvider looks for
+    private static File findIncludedFile(File folder, CqlLibraryGraph.Declaration include) {
+        if (folder == null) {
+            return null;
+        }
+        if (include.getVersion() != null) {
+            File versioned = new File(folder, include.getName() + "-" + include.getVersion() + ".cql");
+            if (versioned.isFile()) {
+                return versioned;
+            }
+        }
+        File unversioned = new File(folder, include.getName() + ".cql");
+        return unversioned.isFile() ? unversioned : null;
+    }
+
+    static String getTranslatorVersion() {
+        if (translatorVersion == null) {
+            Package translatorPackage = CqlTranslator.class.getPackage();
+            String version = translatorPackage == null ? null : translatorPackage.getImplementationVersion();
+            if (version == null) {
+                // Not running from a released jar, so identify the build of the translator by its location and time
+                try {
+                    URL location = CqlTranslator.class.getProtectionDomain().getCodeSource().getLocation();
+                    File translatorFile = new File(location.toURI());
+                    version = translatorFile.getPath() + ":" + translatorFile.lastModified();
+                }
+                catch (Exception e) {
+                    version = "unknown";
+                }
+            }
+            translatorVersion = version;
+        }
+        return translatorVersion;
+    }
+
+    static String hash(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest(content)) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.hl7.cql_annotations.r1.Annotation;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.ObjectFactory;
+
+/**
+ * Writes translated ELM to byte streams (a file, a GZIPOutputStream, an in-memory buffer, ...) rather than building
+ * it as a String first, as CqlTranslator.toXml() does, so that a large library is not held in memory as both a
+ * String and its bytes.
+ *
+ * The XML is the same as the translator's. The JSON forms are still produced by the translator's converters as a
+ * String (the translator does not expose a streaming JSON writer), but are only encoded into the stream.
+ */
+public class ElmSerializer {
+
+    private static volatile JAXBContext xmlContext;
+
+    /**
+     * Writes the library as ELM XML. The stream is left open.
+     */
+    public static void writeXml(Library library, OutputStream output) {
+        try {
+            Marshaller marshaller = getXmlContext().createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            marshaller.marshal(new ObjectFactory().createLibrary(library), output);
+        }
+        catch (JAXBException e) {
+            throw new RuntimeException("Error writing ELM: " + e.getMessage(), e);
+        }
+    }
+
+    public static byte[] toXmlBytes(Library library) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeXml(library, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Writes the translated library in the given JSON format (JSON or JXSON). The stream is left open.
+     */
+    public static void writeJson(CqlTranslator translator, CqlTranslator.Format format, OutputStream output) throws IOException {
+        writeJson(translator.toELM(), format, output);
+    }
+
+    /**
+     * Writes the library in the given JSON format (JSON or JXSON), as the translator would. The stream is left open.
+     */
+    public static void writeJson(Library library, CqlTranslator.Format format, OutputStream output) throws IOException {
+        Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        try {
+            switch (format) {
+                case JSON:
+                    writer.write(CqlTranslator.convertToJson(library));
+                    break;
+                case JXSON:
+                    writer.write(CqlTranslator.convertToJxson(library));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a JSON format: " + format);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Error writing ELM: " + e.getMessage(), e);
+        }
+        writer.flush();
+    }
+
+    public static byte[] toJsonBytes(CqlTranslator translator, CqlTranslator.Format format) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            writeJson(translator, format, output);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error writing ELM: " + e.getMessage(), e);
+        }
+        return output.toByteArray();
+    }
+
+    private static JAXBContext getXmlContext() throws JAXBException {
+        if (xmlContext == null) {
+            xmlContext = JAXBContext.newInstance(Library.class, Annotation.class);
+        }
+        return xmlContext;
+    }
+}
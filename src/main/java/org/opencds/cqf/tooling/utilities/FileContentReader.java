@@ -0,0 +1,56 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads file content through NIO channels with an explicit UTF-8 charset.
+ *
+ * Files are read into heap buffers rather than memory mapped: the large bundle and ELM files that would gain most
+ * from mapping are also the output files that are later replaced by an atomic rename, which fails on Windows while
+ * a mapping of the file is still alive (until it is garbage collected).
+ */
+public class FileContentReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Opens a stream over the raw bytes of the file. The caller is responsible for closing it.
+     */
+    public static InputStream newInputStream(Path path) throws IOException {
+        return new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+    }
+
+    /**
+     * Decodes the whole file as UTF-8.
+     */
+    public static CharBuffer readChars(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to read: " + path);
+            }
+
+            ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes) == -1) {
+                    break;
+                }
+            }
+            bytes.flip();
+            return StandardCharsets.UTF_8.decode(bytes);
+        }
+    }
+
+    public static String readString(Path path) throws IOException {
+        return readChars(path).toString();
+    }
+}
@@ -1,10 +1,17 @@
 package org.opencds.cqf.tooling.utilities;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -13,6 +20,11 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.apache.commons.io.FilenameUtils;
 import org.cqframework.cql.cql2elm.CqlTranslator;
@@ -25,8 +37,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.tooling.library.LibraryProcessor;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.context.RuntimeCompositeDatatypeDefinition;
-import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.parser.IParser;
 
 public class IOUtils 
@@ -114,10 +125,9 @@ public class IOUtils
             outputPath = FilenameUtils.concat(path, formatFileName(baseName, encoding, fhirContext));
             }
 
-        try (FileOutputStream writer = new FileOutputStream(outputPath))
+        try
         {
-            writer.write(parseResource(resource, encoding, fhirContext));
-            writer.flush();
+            writeFile(outputPath, parseResource(resource, encoding, fhirContext));
         }
         catch (IOException e)
         {
@@ -126,6 +136,362 @@ public class IOUtils
         }
     }
 
+    private static boolean writeIfChanged = true;
+    public static boolean getWriteIfChanged() {
+        return writeIfChanged;
+    }
+
+    /**
+     * When enabled (the default), output files whose content would not change are left untouched, changed files
+     * are replaced atomically, and output directories are updated in place rather than deleted and recreated
+     * (see syncDirectory). When disabled, every output file is rewritten on every run.
+     */
+    public static void setWriteIfChanged(boolean value) {
+        writeIfChanged = value;
+    }
+
+    private static AsyncWriter asyncWriter;
+    private static boolean asyncWriterShutdownHookAdded;
+
+    /**
+     * Sets the number of threads output files are written on. With 0 (the default) writes are made on the calling
+     * thread. Otherwise writeResource, writeBundle and copyFile queue the write and return; the queue is bounded, so
+     * a producer that gets too far ahead blocks. Pending writes are waited for by flushWrites, by removeStaleFiles
+     * for the directory they are in, by readResource for the file being read, and at JVM shutdown.
+     */
+    public static synchronized void setAsyncWriteThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads can not be negative");
+        }
+        if (asyncWriter != null) {
+            AsyncWriter previous = asyncWriter;
+            asyncWriter = null;
+            previous.close();
+        }
+        if (threads > 0) {
+            asyncWriter = new AsyncWriter(threads, threads * 16);
+            if (!asyncWriterShutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    AsyncWriter writer = asyncWriter;
+                    if (writer != null) {
+                        writer.flush();
+                    }
+                }));
+                asyncWriterShutdownHookAdded = true;
+            }
+        }
+    }
+
+    /**
+     * Waits for all queued output writes to complete, rethrowing the first failure. Does nothing when writes are
+     * synchronous.
+     */
+    public static void flushWrites() {
+        AsyncWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Writes the content to the given path. In write-if-changed mode the write is skipped if the file already
+     * has exactly this content, and is otherwise made through a temporary file that is renamed over the target.
+     * When async writes are enabled the write is queued (see setAsyncWriteThreads).
+     *
+     * @return Whether the file was written, or true if the write was queued
+     */
+    public static boolean writeFile(String outputPath, byte[] content) throws IOException {
+        Path target = Paths.get(outputPath);
+        recordWrite(target);
+        AsyncWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.submit(target, () -> writeFileNow(target, content));
+            return true;
+        }
+        return writeFileNow(target, content);
+    }
+
+    private static boolean writeFileNow(Path target, byte[] content) throws IOException {
+        OutputStore store = outputStore;
+        if (store != null && store.covers(target)) {
+            if (store.write(target, content)) {
+                notifyWritten(target);
+                return true;
+            }
+            return false;
+        }
+
+        // Never written in place, as the target may be a hard link shared with other files (see OutputStore)
+        if (writeIfChanged && contentEquals(target, content)) {
+            return false;
+        }
+        writeFileAtomically(target, content);
+        notifyWritten(target);
+        return true;
+    }
+
+    /**
+     * Writes content to an output stream, e.g. a file's content as it is produced.
+     */
+    @FunctionalInterface
+    public interface ContentWriter {
+        void write(OutputStream output) throws IOException;
+    }
+
+    /**
+     * Writes the content produced by the given writer to the given path, without holding it in memory. The content is
+     * written to a temporary file in the target's directory, which is then renamed over the target or, in
+     * write-if-changed mode, discarded if the target already has exactly this content. The write is always made on
+     * the calling thread, after any queued write to the same file.
+     *
+     * @return Whether the file was written
+     */
+    public static boolean writeFile(String outputPath, ContentWriter content) throws IOException {
+        Path target = Paths.get(outputPath);
+        recordWrite(target);
+        AsyncWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.await(target);
+        }
+
+        Path directory = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, "." + target.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                content.write(output);
+            }
+            OutputStore store = outputStore;
+            if (store != null && store.covers(target)) {
+                if (!store.move(temp, target)) {
+                    return false;
+                }
+            }
+            else if (writeIfChanged && filesEqual(temp, target)) {
+                return false;
+            }
+            else {
+                moveReplacing(temp, target);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+        notifyWritten(target);
+        return true;
+    }
+
+    private static volatile OutputStore outputStore;
+    public static OutputStore getOutputStore() {
+        return outputStore;
+    }
+
+    /**
+     * Stores the output files written under the given scope (typically the bundles directory of the IG) once per
+     * distinct content in the given directory, and makes them hard links to the stored content (see OutputStore).
+     * Pass a null directory to write output files directly again.
+     */
+    public static void setOutputStore(String directory, String scope) {
+        outputStore = directory == null ? null : new OutputStore(directory, scope);
+    }
+
+    private static volatile Consumer<Path> writeObserver;
+
+    /**
+     * Sets a callback that is given the path of every file writeFile or copyFile actually writes, once it has been
+     * written (on the writing thread when writes are asynchronous). Files left unchanged are not reported. Used by
+     * the watch mode of the IG refresh to tell its own output from edits. Pass null to remove the callback.
+     */
+    public static void setWriteObserver(Consumer<Path> observer) {
+        writeObserver = observer;
+    }
+
+    private static void notifyWritten(Path path) {
+        Consumer<Path> observer = writeObserver;
+        if (observer != null) {
+            observer.accept(path);
+        }
+    }
+
+    /**
+     * Writes the content to a temporary file in the target's directory and renames it over the target, so that
+     * readers never see a partially written file. Falls back to a plain replace where atomic moves are not supported.
+     */
+    public static void writeFileAtomically(Path target, byte[] content) throws IOException {
+        writeFileAtomically(target, output -> output.write(content));
+    }
+
+    /**
+     * Writes the content produced by the given writer as writeFileAtomically(Path, byte[]) does, without holding it
+     * in memory.
+     */
+    public static void writeFileAtomically(Path target, ContentWriter content) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, "." + target.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                content.write(output);
+            }
+            moveReplacing(temp, target);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static void moveReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static boolean contentEquals(Path path, byte[] content) throws IOException {
+        if (!Files.isRegularFile(path) || Files.size(path) != content.length) {
+            return false;
+        }
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(path))) {
+            return contentEquals(stream, new ByteArrayInputStream(content));
+        }
+    }
+
+    private static boolean filesEqual(Path first, Path second) throws IOException {
+        if (!Files.isRegularFile(second) || Files.size(first) != Files.size(second)) {
+            return false;
+        }
+        try (InputStream firstStream = new BufferedInputStream(Files.newInputStream(first));
+             InputStream secondStream = new BufferedInputStream(Files.newInputStream(second))) {
+            return contentEquals(firstStream, secondStream);
+        }
+    }
+
+    private static boolean contentEquals(InputStream first, InputStream second) throws IOException {
+        byte[] firstBuffer = new byte[8192];
+        byte[] secondBuffer = new byte[8192];
+        while (true) {
+            int firstRead = first.read(firstBuffer);
+            int secondRead = firstRead == -1 ? second.read() : readFully(second, secondBuffer, firstRead);
+            if (firstRead == -1) {
+                return secondRead == -1;
+            }
+            if (secondRead != firstRead) {
+                return false;
+            }
+            for (int i = 0; i < firstRead; i++) {
+                if (firstBuffer[i] != secondBuffer[i]) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private static int readFully(InputStream stream, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = stream.read(buffer, total, length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    // Output directories being synced, with the files written to them since
+    private static final Map<Path, Set<Path>> syncedDirectories = new ConcurrentHashMap<Path, Set<Path>>();
+
+    private static Path normalizePath(String path) {
+        return Paths.get(path).toAbsolutePath().normalize();
+    }
+
+    private static void recordWrite(Path target) {
+        if (syncedDirectories.isEmpty()) {
+            return;
+        }
+        Path file = target.toAbsolutePath().normalize();
+        for (Map.Entry<Path, Set<Path>> directory : syncedDirectories.entrySet()) {
+            if (file.startsWith(directory.getKey())) {
+                directory.getValue().add(file);
+            }
+        }
+    }
+
+    /**
+     * Prepares an output directory whose content is about to be regenerated. In write-if-changed mode the existing
+     * files are kept, so that unchanged output is not rewritten, and removeStaleFiles must be called once the
+     * directory has been written to delete whatever was not written again. Otherwise this is initializeDirectory.
+     */
+    public static void syncDirectory(String path) {
+        if (!writeIfChanged) {
+            initializeDirectory(path);
+            return;
+        }
+
+        File directory = new File(path);
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        syncedDirectories.put(normalizePath(path), ConcurrentHashMap.<Path>newKeySet());
+    }
+
+    /**
+     * Stops tracking a directory prepared with syncDirectory without deleting anything, for when regenerating it
+     * failed partway: the files of the previous run that were not written again are kept rather than removed.
+     */
+    public static void cancelSync(String path) {
+        Path root = normalizePath(path);
+        syncedDirectories.remove(root);
+        syncedDirectories.keySet().removeIf(directory -> directory.startsWith(root));
+    }
+
+    /**
+     * Deletes the files (and then empty directories) under a directory prepared with syncDirectory that have not
+     * been written since, and stops tracking it and any synced directories beneath it.
+     */
+    public static void removeStaleFiles(String path) {
+        Path root = normalizePath(path);
+        AsyncWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.awaitUnder(root);
+        }
+        Set<Path> written = syncedDirectories.remove(root);
+        syncedDirectories.keySet().removeIf(directory -> directory.startsWith(root));
+        if (written == null || !Files.isDirectory(root)) {
+            return;
+        }
+
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    if (!written.contains(file.toAbsolutePath().normalize())) {
+                        Files.delete(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    if (exc != null) {
+                        throw exc;
+                    }
+                    if (!dir.equals(root)) {
+                        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                            if (!entries.iterator().hasNext()) {
+                                Files.delete(dir);
+                            }
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error removing stale files from directory: " + path + " - " + e.getMessage());
+        }
+    }
+
     public static <T extends IBaseResource> void writeResources(Map<String, T> resources, String path, Encoding encoding, FhirContext fhirContext)
     {        
         for (Map.Entry<String, T> set : resources.entrySet())
@@ -149,10 +515,37 @@ public class IOUtils
     }
 
     public static void copyFile(String inputPath, String outputPath) {
+        Path src = Paths.get(inputPath);
+        Path dest = Paths.get(outputPath);
+        recordWrite(dest);
+        AsyncWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.submit(dest, () -> copyFileNow(src, dest));
+        }
+        else {
+            copyFileNow(src, dest);
+        }
+    }
+
+    private static void copyFileNow(Path src, Path dest) {
         try  {
-            Path src = Paths.get(inputPath);
-            Path dest = Paths.get(outputPath);
-            Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
+            OutputStore store = outputStore;
+            if (store != null && store.covers(dest)) {
+                if (store.copy(src, dest)) {
+                    notifyWritten(dest);
+                }
+            }
+            else if (!writeIfChanged || !filesEqual(src, dest)) {
+                Path temp = Files.createTempFile(dest.toAbsolutePath().getParent(), "." + dest.getFileName().toString(), ".tmp");
+                try {
+                    Files.copy(src, temp, StandardCopyOption.REPLACE_EXISTING);
+                    moveReplacing(temp, dest);
+                }
+                finally {
+                    Files.deleteIfExists(temp);
+                }
+                notifyWritten(dest);
+            }
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -161,9 +554,15 @@ public class IOUtils
     }
 
     public static String getTypeQualifiedResourceId(String path, FhirContext fhirContext) {
-        IBaseResource resource = readResource(path, fhirContext, true);
-        if (resource != null) {
-            return resource.getIdElement().getResourceType() + "/" + resource.getIdElement().getIdPart();
+        ResourceIndex.Entry header;
+        try {
+            header = ResourceSniffer.sniff(path, fhirContext);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        if (header != null) {
+            return header.getResourceType() + "/" + header.getId();
         }
 
         return null;
@@ -192,8 +591,21 @@ public class IOUtils
         return readResource(path, fhirContext, false);
     }
     
+    private static volatile ResourceCache cachedResources = new ResourceCache();
+    public static ResourceCache getResourceCache() {
+        return cachedResources;
+    }
+
+    /**
+     * Replaces the parsed resource cache with an empty one bounded by the given total source size in bytes (or
+     * ResourceCache.UNBOUNDED, the default). A bounded cache may evict resources callers have modified, so later
+     * reads no longer see those modifications.
+     */
+    public static synchronized void setResourceCacheMaximumWeight(long maximumWeight) {
+        cachedResources = new ResourceCache(maximumWeight);
+    }
+
     //users should always check for null
-    private static Map<String, IBaseResource> cachedResources = new LinkedHashMap<String, IBaseResource>();
     public static IBaseResource readResource(String path, FhirContext fhirContext, Boolean safeRead) 
     {        
         Encoding encoding = getEncoding(path);
@@ -201,38 +613,86 @@ public class IOUtils
             return null;
         }
 
-        IBaseResource resource = cachedResources.get(path);     
-        if (resource != null) {
-            return resource;
-        } 
-
         try
         {
-            IParser parser = getParser(encoding, fhirContext);
             File file = new File(path);
 
-            // if (!file.exists()) {
-            //     String[] paths = file.getParent().split("\\\\");
-            //     file = new File(Paths.get(file.getParent(), paths[paths.length - 1] + "-" + file.getName()).toString());
-            // }
-
             if (safeRead) {
                 if (!file.exists()) {
                     return null;
                 }
             }
-            resource = parser.parseResource(new FileReader(file));
-            cachedResources.put(path, resource);
+
+            return readResource(file, getParser(encoding, fhirContext));
         }
         catch (Exception e)
         {
             throw new RuntimeException(e.getMessage());
         }
-        return resource;
+    }
+
+    // The parser must match the encoding of the file and must not be in use by another thread
+    static IBaseResource readResource(File file, IParser parser) throws IOException {
+        // A queued write to the file must land before it is read
+        AsyncWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.await(file.toPath());
+        }
+
+        return cachedResources.get(file, f -> {
+            try (InputStream stream = FileContentReader.newInputStream(f.toPath())) {
+                return parser.parseResource(stream);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e.getMessage(), e);
+            }
+        });
+    }
+
+    private static int readerParallelism = 1;
+    private static ExecutorService readerExecutor;
+    private static final AtomicInteger readerThreadCount = new AtomicInteger();
+    public static synchronized int getReaderParallelism() {
+        return readerParallelism;
+    }
+
+    /**
+     * Sets the number of threads readResources uses to parse files. With 1 (the default) files are read on the
+     * calling thread. Otherwise all reads share one pool of that many threads, created on first use.
+     */
+    public static synchronized void setReaderParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        if (readerExecutor != null) {
+            readerExecutor.shutdown();
+            readerExecutor = null;
+        }
+        readerParallelism = parallelism;
+    }
+
+    // Null when reads are made on the calling thread
+    private static synchronized ParallelResourceReader getParallelResourceReader(FhirContext fhirContext) {
+        if (readerParallelism == 1) {
+            return null;
+        }
+        if (readerExecutor == null) {
+            readerExecutor = Executors.newFixedThreadPool(readerParallelism, runnable -> {
+                Thread thread = new Thread(runnable, "resource-reader-" + readerThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return new ParallelResourceReader(fhirContext, readerExecutor, readerParallelism);
     }
 
     public static List<IBaseResource> readResources(List<String> paths, FhirContext fhirContext) 
     {
+        ParallelResourceReader reader = paths.size() > 1 ? getParallelResourceReader(fhirContext) : null;
+        if (reader != null) {
+            return reader.readResources(paths);
+        }
+
         List<IBaseResource> resources = new ArrayList<>();
         for (String path : paths)
         {
@@ -244,24 +704,60 @@ public class IOUtils
         return resources;
     }
 
+    /**
+     * Walks the given directory and parses the resource files in it, overlapping the walk with parsing
+     * when the reader parallelism is greater than 1.
+     */
+    public static List<IBaseResource> readResources(String directoryPath, Boolean recursive, FhirContext fhirContext)
+    {
+        ParallelResourceReader reader = getParallelResourceReader(fhirContext);
+        if (reader != null) {
+            return reader.readResources(directoryPath, recursive);
+        }
+
+        return readResources(getFilePaths(directoryPath, recursive), fhirContext);
+    }
+
     public static List<String> getFilePaths(String directoryPath, Boolean recursive)
     {
         List<String> filePaths = new ArrayList<String>();
-        File inputDir = new File(directoryPath);
-        ArrayList<File> files = inputDir.isDirectory() ? new ArrayList<File>(Arrays.asList(Optional.ofNullable(inputDir.listFiles()).<NoSuchElementException>orElseThrow(() -> new NoSuchElementException()))) : new ArrayList<File>();
-       
-        for (File file : files) {
-            if (file.isDirectory()) {
-                //note: this is not the same as anding recursive to isDirectory as that would result in directories being added to the list if the request is not recursive.
-                if (recursive) {
-                    filePaths.addAll(getFilePaths(file.getPath(), recursive));
+        try {
+            walkFilePaths(directoryPath, recursive, filePaths::add);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading directory: " + directoryPath + " - " + e.getMessage());
+        }
+        return filePaths;
+    }
+
+    /**
+     * Passes the path of every file in the given directory to the visitor as it is found.
+     * Symbolic links are followed; links that would loop back into the walk are skipped.
+     */
+    public static void walkFilePaths(String directoryPath, boolean recursive, Consumer<String> visitor) throws IOException
+    {
+        Path root = Paths.get(directoryPath);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+
+        //note: with a depth of 1 the directories directly in the root are passed to visitFile and have to be skipped.
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), recursive ? Integer.MAX_VALUE : 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (!attributes.isDirectory()) {
+                    visitor.accept(file.toString());
                 }
+                return FileVisitResult.CONTINUE;
             }
-            else {
-               filePaths.add(file.getPath());
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (exc instanceof FileSystemLoopException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
             }
-        }
-        return filePaths;
+        });
     }
 
     public static String getResourceFileName(String resourcePath, IBaseResource resource, Encoding encoding, FhirContext fhirContext, boolean versioned) {
@@ -359,7 +855,7 @@ public class IOUtils
     }
 
     //users should protect against Encoding.UNKNOWN or Enconding.CQL
-    private static IParser getParser(Encoding encoding, FhirContext fhirContext) 
+    static IParser getParser(Encoding encoding, FhirContext fhirContext) 
     {
         switch (encoding) {
             case XML: 
@@ -422,41 +918,30 @@ public class IOUtils
         return dependencyCqlFiles;
     } 
   
-    private static Map<String, CqlTranslator> cachedTranslator = new LinkedHashMap<String, CqlTranslator>();
+    /**
+     * Translates the CQL file, or returns the translation already made during this run with the same options.
+     * Throws an IllegalArgumentException if there are translation errors.
+     */
     public static CqlTranslator translate(String cqlContentPath, ModelManager modelManager, LibraryManager libraryManager, CqlTranslatorOptions options) {
-        CqlTranslator translator = cachedTranslator.get(cqlContentPath);
-        if (translator != null) {
-            return translator;
-        }
         try {
           File cqlFile = new File(cqlContentPath);
           if(!cqlFile.getName().endsWith(".cql")) {
             throw new IllegalArgumentException("cqlContentPath must be a path to a .cql file");
           }
-          
-            // ArrayList<CqlTranslator.Options> options = new ArrayList<>();
-            // options.add(CqlTranslator.Options.EnableDateRangeOptimization);
-  
-            translator =
-                    CqlTranslator.fromFile(
-                            cqlFile,
-                            modelManager,
-                            libraryManager,
-                            null, options);
+
+            CqlTranslator translator = CqlTranslationService.translate(cqlFile, options, null,
+                    () -> CqlTranslationProfiler.translate(cqlFile, () -> CqlTranslator.fromFile(cqlFile, modelManager, libraryManager, null, options)));
 
             if (translator.getErrors().size() > 0) {
-                //System.err.println("Translation failed due to errors:");
                 ArrayList<String> errors = new ArrayList<>();
                 for (CqlTranslatorException error : translator.getErrors()) {
                     TrackBack tb = error.getLocator();
                     String lines = tb == null ? "[n/a]" : String.format("[%d:%d, %d:%d]",
                             tb.getStartLine(), tb.getStartChar(), tb.getEndLine(), tb.getEndChar());
-                    //System.err.printf("%s %s%n", lines, error.getMessage());
                     errors.add(lines + error.getMessage());
                 }
                 throw new IllegalArgumentException(errors.toString());
             }
-            cachedTranslator.put(cqlContentPath, translator);
             return translator;
         } catch (IOException e) {
             //e.printStackTrace();
@@ -467,17 +952,20 @@ public class IOUtils
 
     public static String getCqlString(String cqlContentPath) {
         File cqlFile = new File(cqlContentPath);
-        StringBuilder cql = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(cqlFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                cql.append(line).append("\n");
-            }
+        String cql;
+        try {
+            cql = FileContentReader.readString(cqlFile.toPath());
         } catch (IOException e) {
             e.printStackTrace();
             throw new IllegalArgumentException("Error reading CQL file: " + cqlFile.getName());
         }
-        return cql.toString();
+
+        // Line endings are normalized and the content always ends with a line break
+        cql = cql.replace("\r\n", "\n").replace('\r', '\n');
+        if (!cql.isEmpty() && !cql.endsWith("\n")) {
+            cql = cql + "\n";
+        }
+        return cql;
     }
 
     public static String getFileExtension(Encoding encoding) {
@@ -543,57 +1031,83 @@ public class IOUtils
         return libraryPath;
     }
 
-    private static HashSet<String> cqlLibraryPaths = new LinkedHashSet<String>();
-    public static HashSet<String> getCqlLibraryPaths() {
-        if (cqlLibraryPaths.isEmpty()) {
+    private static HashSet<String> cqlLibraryPaths;
+    private static List<String> cqlLibraryPathDirectories;
+    public static synchronized HashSet<String> getCqlLibraryPaths() {
+        if (cqlLibraryPaths == null || !resourceDirectories.equals(cqlLibraryPathDirectories)) {
             setupCqlLibraryPaths();
         }
         return cqlLibraryPaths;
     }
     private static void setupCqlLibraryPaths() {  
         //need to add a error report for bad resource paths
-        for(String dir : resourceDirectories) {
+        cqlLibraryPathDirectories = new ArrayList<String>(resourceDirectories);
+        cqlLibraryPaths = new LinkedHashSet<String>();
+        for(String dir : cqlLibraryPathDirectories) {
             List<String> filePaths = IOUtils.getFilePaths(dir, true);
             filePaths.stream().filter(path -> path.contains(".cql")).forEach(path -> cqlLibraryPaths.add(path));
         }
     }
 
-    private static HashSet<String> terminologyPaths = new LinkedHashSet<String>();
-    public static HashSet<String> getTerminologyPaths(FhirContext fhirContext) {
-        if (terminologyPaths.isEmpty()) {
-            setupTerminologyPaths(fhirContext);
-        }
-        return terminologyPaths;
-    }
-    private static void setupTerminologyPaths(FhirContext fhirContext) {
-        HashMap<String, IBaseResource> resources = new LinkedHashMap<String, IBaseResource>();
-        for(String dir : resourceDirectories) {
-            for(String path : IOUtils.getFilePaths(dir, true))
-            {
+    private static ResourceIndex resourceIndex;
+    /**
+     * Returns the index of all resources under the current resource directories, building it in a single pass
+     * on first use. The index is rebuilt if the resource directories or the FHIR version have changed.
+     */
+    public static synchronized ResourceIndex getResourceIndex(FhirContext fhirContext) {
+        if (resourceIndex == null
+                || !resourceIndex.getDirectories().equals(resourceDirectories)
+                || resourceIndex.getFhirVersion() != fhirContext.getVersion().getVersion()) {
+            ResourceIndexStore store = getResourceIndexStore(fhirContext);
+            resourceIndex = ResourceIndex.build(resourceDirectories, fhirContext, store);
+            if (store != null) {
                 try {
-                    resources.put(path, IOUtils.readResource(path, fhirContext, true));
-                } catch (Exception e) {
-                    if (path.toLowerCase().contains("valuesets") || path.toLowerCase().contains("valueset")) {
-                        System.out.println("Error reading in Terminology from path: " + path + "\n" + e);
-                    }
+                    store.save();
+                } catch (IOException e) {
+                    System.out.println(String.format("Unable to save resource index %s: %s", store.getIndexFile().getPath(), e.getMessage()));
                 }
             }
-            //TODO: move these to ResourceUtils
-            RuntimeResourceDefinition valuesetDefinition = ResourceUtils.getResourceDefinition(fhirContext, "ValueSet");
-            RuntimeCompositeDatatypeDefinition conceptDefinition = (RuntimeCompositeDatatypeDefinition)ResourceUtils.getElementDefinition(fhirContext, "CodeableConcept");
-            RuntimeCompositeDatatypeDefinition codingDefinition = (RuntimeCompositeDatatypeDefinition)ResourceUtils.getElementDefinition(fhirContext, "Coding");
-            String valuesetClassName = valuesetDefinition.getImplementingClass().getName();
-            String conceptClassName = conceptDefinition.getImplementingClass().getName();
-            String codingClassName = codingDefinition.getImplementingClass().getName();
-            resources.entrySet().stream()
-                .filter(entry -> entry.getValue() != null)
-                .filter(entry ->  
-                    valuesetClassName.equals(entry.getValue().getClass().getName())
-                    || conceptClassName.equals(entry.getValue().getClass().getName())
-                    || codingClassName.equals(entry.getValue().getClass().getName())
-                )
-                .forEach(entry -> terminologyPaths.add(entry.getKey()));
         }
+        return resourceIndex;
+    }
+
+    private static String resourceIndexCacheDirectory;
+    private static ResourceIndexStore resourceIndexStore;
+    public static synchronized String getResourceIndexCacheDirectory() {
+        return resourceIndexCacheDirectory;
+    }
+
+    /**
+     * Persists the resource index in the given directory (typically the .cqf-cache directory of the IG root),
+     * so that later runs only classify files that have changed. Pass null to stop persisting the index.
+     */
+    public static synchronized void setResourceIndexCacheDirectory(String cacheDirectory) {
+        resourceIndexCacheDirectory = cacheDirectory;
+        resourceIndexStore = null;
+        resourceIndex = null;
+    }
+
+    private static ResourceIndexStore getResourceIndexStore(FhirContext fhirContext) {
+        if (resourceIndexCacheDirectory == null) {
+            return null;
+        }
+        FhirVersionEnum fhirVersion = fhirContext.getVersion().getVersion();
+        if (resourceIndexStore == null || resourceIndexStore.getFhirVersion() != fhirVersion) {
+            resourceIndexStore = new ResourceIndexStore(resourceIndexCacheDirectory, fhirVersion);
+        }
+        return resourceIndexStore;
+    }
+
+    /**
+     * Discards the resource index (and the cql library paths) so that the next access rescans the resource directories.
+     */
+    public static synchronized void invalidateResourceIndex() {
+        resourceIndex = null;
+        cqlLibraryPaths = null;
+    }
+
+    public static HashSet<String> getTerminologyPaths(FhirContext fhirContext) {
+        return getResourceIndex(fhirContext).getPaths("ValueSet");
     }
 
     public static IBaseResource getLibraryByUrl(FhirContext fhirContext, String url) {
@@ -604,197 +1118,42 @@ public class IOUtils
         return library;
     }
 
-    private static HashSet<String> libraryPaths = new LinkedHashSet<String>();
     public static HashSet<String> getLibraryPaths(FhirContext fhirContext) {
-        if (libraryPaths.isEmpty()) {
-            setupLibraryPaths(fhirContext);
-        }
-        return libraryPaths;
+        return getResourceIndex(fhirContext).getPaths("Library");
     }
-    private static Map<String, IBaseResource> libraryUrlMap = new LinkedHashMap<String, IBaseResource>();
     public static Map<String, IBaseResource> getLibraryUrlMap(FhirContext fhirContext) {
-        if (libraryPathMap.isEmpty()) {
-            setupLibraryPaths(fhirContext);
-        }
-        return libraryUrlMap;
+        return getResourceIndex(fhirContext).getUrlMap("Library");
     }
-    private static Map<String, String> libraryPathMap = new LinkedHashMap<String, String>();
     public static Map<String, String> getLibraryPathMap(FhirContext fhirContext) {
-        if (libraryPathMap.isEmpty()) {
-            setupLibraryPaths(fhirContext);
-        }
-        return libraryPathMap;
+        return getResourceIndex(fhirContext).getPathMap("Library");
     }
-    private static Map<String, IBaseResource> libraries = new LinkedHashMap<String, IBaseResource>();
     public static Map<String, IBaseResource> getLibraries(FhirContext fhirContext) {
-        if (libraries.isEmpty()) {
-            setupLibraryPaths(fhirContext);
-        }
-        return libraries;
-    }
-    private static void setupLibraryPaths(FhirContext fhirContext) {
-        Map<String, IBaseResource> resources = new LinkedHashMap<String, IBaseResource>();
-        for(String dir : resourceDirectories) {
-            for(String path : IOUtils.getFilePaths(dir, true))
-            {
-                try {
-                    IBaseResource resource = IOUtils.readResource(path, fhirContext, true);
-                    resources.put(path, resource);
-                } catch (Exception e) {
-                    if(path.toLowerCase().contains("library")) {
-                        System.out.println("Error reading in Library from path: " + path + "\n" + e);
-                    }
-                }
-            }
-            //TODO: move these to ResourceUtils
-            RuntimeResourceDefinition libraryDefinition = ResourceUtils.getResourceDefinition(fhirContext, "Library");
-            String libraryClassName = libraryDefinition.getImplementingClass().getName();
-            // BaseRuntimeChildDefinition urlElement = libraryDefinition.getChildByNameOrThrowDataFormatException("url");
-            resources.entrySet().stream()
-                .filter(entry -> entry.getValue() != null)
-                .filter(entry ->  libraryClassName.equals(entry.getValue().getClass().getName()))
-                .forEach(entry -> {
-                    libraryPaths.add(entry.getKey());
-                    libraries.put(entry.getValue().getIdElement().getIdPart(), entry.getValue());
-                    libraryPathMap.put(entry.getValue().getIdElement().getIdPart(), entry.getKey());
-                    libraryUrlMap.put(ResourceUtils.getUrl(entry.getValue(), fhirContext), entry.getValue());
-                });
-        }
+        return getResourceIndex(fhirContext).getResources("Library");
     }
 
-    private static HashSet<String> measurePaths = new LinkedHashSet<String>();
     public static HashSet<String> getMeasurePaths(FhirContext fhirContext) {
-        if (measurePaths.isEmpty()) {
-            setupMeasurePaths(fhirContext);
-        }
-        return measurePaths;
+        return getResourceIndex(fhirContext).getPaths("Measure");
     }
-    private static Map<String, String> measurePathMap = new LinkedHashMap<String, String>();
     public static Map<String, String> getMeasurePathMap(FhirContext fhirContext) {
-        if (measurePathMap.isEmpty()) {
-            setupMeasurePaths(fhirContext);
-        }
-        return measurePathMap;
+        return getResourceIndex(fhirContext).getPathMap("Measure");
     }
-    private static Map<String, IBaseResource> measures = new LinkedHashMap<String, IBaseResource>();
     public static Map<String, IBaseResource> getMeasures(FhirContext fhirContext) {
-        if (measures.isEmpty()) {
-            setupMeasurePaths(fhirContext);
-        }
-        return measures;
-    }
-    private static void setupMeasurePaths(FhirContext fhirContext) {
-        Map<String, IBaseResource> resources = new LinkedHashMap<String, IBaseResource>();
-        for(String dir : resourceDirectories) {
-            for(String path : IOUtils.getFilePaths(dir, true))
-            {
-                try {
-                    IBaseResource resource = IOUtils.readResource(path, fhirContext, true);
-                    resources.put(path, resource);
-                } catch (Exception e) {
-                    if(path.toLowerCase().contains("measure")) {
-                        System.out.println("Error reading in Measure from path: " + path + "\n" + e);
-                    }
-                }
-            }
-            //TODO: move these to ResourceUtils
-            RuntimeResourceDefinition measureDefinition = ResourceUtils.getResourceDefinition(fhirContext, "Measure");
-            String measureClassName = measureDefinition.getImplementingClass().getName();
-            resources.entrySet().stream()
-                .filter(entry -> entry.getValue() != null)
-                .filter(entry ->  measureClassName.equals(entry.getValue().getClass().getName()))
-                .forEach(entry -> {
-                    measurePaths.add(entry.getKey());
-                    measures.put(entry.getValue().getIdElement().getIdPart(), entry.getValue());
-                    measurePathMap.put(entry.getValue().getIdElement().getIdPart(), entry.getKey());
-                });
-        }
+        return getResourceIndex(fhirContext).getResources("Measure");
     }
 
-    private static HashSet<String> measureReportPaths = new LinkedHashSet<String>();
     public static HashSet<String> getMeasureReportPaths(FhirContext fhirContext) {
-        if (measureReportPaths.isEmpty()) {
-            setupMeasureReportPaths(fhirContext);
-        }
-        return measureReportPaths;
-    }
-    private static void setupMeasureReportPaths(FhirContext fhirContext) {
-        HashMap<String, IBaseResource> resources = new LinkedHashMap<String, IBaseResource>();
-        for(String dir : resourceDirectories) {
-            for(String path : IOUtils.getFilePaths(dir, true))
-            {
-                try {
-                    resources.put(path, IOUtils.readResource(path, fhirContext, true));
-                } catch (Exception e) {
-                    //TODO: handle exception
-                }
-            }
-            //TODO: move these to ResourceUtils
-            RuntimeResourceDefinition measureReportDefinition = ResourceUtils.getResourceDefinition(fhirContext, "MeasureReport");
-            String measureReportClassName = measureReportDefinition.getImplementingClass().getName();
-            resources.entrySet().stream()
-                .filter(entry -> entry.getValue() != null)
-                .filter(entry ->  measureReportClassName.equals(entry.getValue().getClass().getName()))
-                .forEach(entry -> measureReportPaths.add(entry.getKey()));
-        }
+        return getResourceIndex(fhirContext).getPaths("MeasureReport");
     }
 
-	private static HashSet<String> planDefinitionPaths = new LinkedHashSet<String>();
     public static HashSet<String> getPlanDefinitionPaths(FhirContext fhirContext) {
-        if (planDefinitionPaths.isEmpty()) {
-            setupPlanDefinitionPaths(fhirContext);
-        }
-        return planDefinitionPaths;
-    }
-    private static void setupPlanDefinitionPaths(FhirContext fhirContext) {
-        HashMap<String, IBaseResource> resources = new LinkedHashMap<String, IBaseResource>();
-        for(String dir : resourceDirectories) {
-            for(String path : IOUtils.getFilePaths(dir, true))
-            {
-                try {
-                    resources.put(path, IOUtils.readResource(path, fhirContext, true));
-                } catch (Exception e) {
-                    System.out.println(String.format("Error setting PlanDefinition paths while reading resource at: '%s'. Error: %s", path, e.getMessage()));
-                }
-            }
-            RuntimeResourceDefinition planDefinitionDefinition = ResourceUtils.getResourceDefinition(fhirContext, "PlanDefinition");
-            String planDefinitionClassName = planDefinitionDefinition.getImplementingClass().getName();
-            resources.entrySet().stream()
-                .filter(entry -> entry.getValue() != null)
-                .filter(entry ->  planDefinitionClassName.equals(entry.getValue().getClass().getName()))
-                .forEach(entry -> planDefinitionPaths.add(entry.getKey()));
-        }
+        return getResourceIndex(fhirContext).getPaths("PlanDefinition");
     }
 
-    private static HashSet<String> activityDefinitionPaths = new LinkedHashSet<String>();
+    // BUG: resourceDirectories is being populated with all "per-convention" directories during validation. So,
+    // if you have resources in the /tests directory for example, they will be picked up from there, rather than
+    // from your resources directories.
     public static HashSet<String> getActivityDefinitionPaths(FhirContext fhirContext) {
-        if (activityDefinitionPaths.isEmpty()) {
-            System.out.println("Reading activitydefinitions");
-            setupActivityDefinitionPaths(fhirContext);
-        }
-        return activityDefinitionPaths;
-    }
-    private static void setupActivityDefinitionPaths(FhirContext fhirContext) {
-        HashMap<String, IBaseResource> resources = new LinkedHashMap<String, IBaseResource>();
-        // BUG: resourceDirectories is being populated with all "per-convention" directories during validation. So,
-        // if you have resources in the /tests directory for example, they will be picked up from there, rather than
-        // from your resources directories.
-        for(String dir : resourceDirectories) {
-            for(String path : IOUtils.getFilePaths(dir, true))
-            {
-                try {
-                    resources.put(path, IOUtils.readResource(path, fhirContext, true));
-                } catch (Exception e) {
-                    //TODO: handle exception
-                }
-            }
-            RuntimeResourceDefinition activityDefinitionDefinition = ResourceUtils.getResourceDefinition(fhirContext, "ActivityDefinition");
-            String activityDefinitionClassName = activityDefinitionDefinition.getImplementingClass().getName();
-            resources.entrySet().stream()
-                .filter(entry -> entry.getValue() != null)
-                .filter(entry ->  activityDefinitionClassName.equals(entry.getValue().getClass().getName()))
-                .forEach(entry -> activityDefinitionPaths.add(entry.getKey()));
-        }
+        return getResourceIndex(fhirContext).getPaths("ActivityDefinition");
     }
 
     public static void ensurePath(String path) throws IOException {
@@ -808,33 +1167,7 @@ public class IOUtils
         }
     }
 
-    private static HashSet<String> devicePaths = new LinkedHashSet<String>();
     public static HashSet<String> getDevicePaths(FhirContext fhirContext) {
-        if (devicePaths.isEmpty()) {
-            setupDevicePaths(fhirContext);
-        }
-        return devicePaths;
-    }
-    private static void setupDevicePaths(FhirContext fhirContext) {
-        HashMap<String, IBaseResource> resources = new LinkedHashMap<String, IBaseResource>();
-        for(String dir : resourceDirectories) {
-            for(String path : IOUtils.getFilePaths(dir, true))
-            {
-                try {
-                    resources.put(path, IOUtils.readResource(path, fhirContext, true));
-                } catch (Exception e) {
-                    if(path.toLowerCase().contains("device")) {
-                        System.out.println("Error reading in Device from path: " + path + "\n" + e);
-                    }
-                }
-            }
-            //TODO: move these to ResourceUtils
-            RuntimeResourceDefinition deviceDefinition = ResourceUtils.getResourceDefinition(fhirContext, "Device");
-            String deviceClassName = deviceDefinition.getImplementingClass().getName();
-            resources.entrySet().stream()
-                .filter(entry -> entry.getValue() != null)
-                .filter(entry ->  deviceClassName.equals(entry.getValue().getClass().getName()))
-                .forEach(entry -> devicePaths.add(entry.getKey()));
-        }
+        return getResourceIndex(fhirContext).getPaths("Device");
     }
 }
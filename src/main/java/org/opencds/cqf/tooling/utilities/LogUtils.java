@@ -1,4 +1,3 @@
-
 package org.opencds.cqf.tooling.utilities;
 
 import java.time.LocalDateTime;
@@ -11,14 +10,49 @@ public class LogUtils
 {    
     private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(LogUtils.class);
     private static final Map<String, String> resourceWarnings = new LinkedHashMap<String, String>();  
-    
+    // The warnings of the task running on the current thread (see beginTask), kept apart from those of concurrent tasks
+    private static final ThreadLocal<Map<String, String>> taskWarnings = new ThreadLocal<Map<String, String>>();
+
+    /**
+     * Starts collecting the warnings put on the current thread separately, so that warn reports only those of the
+     * task running on this thread when several tasks (e.g. the bundling of several measures) run concurrently.
+     */
+    public static void beginTask() {
+        taskWarnings.set(new LinkedHashMap<String, String>());
+    }
+
+    /**
+     * Stops collecting the warnings of the current thread separately. Warnings that were not reported by warn are
+     * kept and reported by the next call to warn outside a task.
+     */
+    public static void endTask() {
+        Map<String, String> warnings = taskWarnings.get();
+        taskWarnings.remove();
+        if (warnings != null && !warnings.isEmpty()) {
+            synchronized (resourceWarnings) {
+                resourceWarnings.putAll(warnings);
+            }
+        }
+    }
+
     public static void putException(String id, Exception e) {
         e.printStackTrace();
-        resourceWarnings.put(LocalDateTime.now().toString() + ": " + id,  e.getMessage() == null ? e.toString() : e.getMessage());
+        put(LocalDateTime.now().toString() + ": " + id,  e.getMessage() == null ? e.toString() : e.getMessage());
     }
 
     public static void putException(String id, String warning) {
-        resourceWarnings.put(LocalDateTime.now().toString() + ": " + id, warning);
+        put(LocalDateTime.now().toString() + ": " + id, warning);
+    }
+
+    private static void put(String key, String warning) {
+        Map<String, String> warnings = taskWarnings.get();
+        if (warnings != null) {
+            warnings.put(key, warning);
+            return;
+        }
+        synchronized (resourceWarnings) {
+            resourceWarnings.put(key, warning);
+        }
     }
 
     public static void info(String message) {
@@ -26,17 +60,26 @@ public class LogUtils
     }
 
     public static void warn(String libraryName) {
-        if (resourceWarnings.isEmpty()) {
+        Map<String, String> warnings = taskWarnings.get();
+        if (warnings == null) {
+            synchronized (resourceWarnings) {
+                warnings = new LinkedHashMap<String, String>(resourceWarnings);
+                resourceWarnings.clear();
+            }
+        }
+        else {
+            taskWarnings.set(new LinkedHashMap<String, String>());
+        }
+        if (warnings.isEmpty()) {
             return;
         }
         String exceptionMessage = "";
-        for (Map.Entry<String, String> resourceException : resourceWarnings.entrySet()) {
+        for (Map.Entry<String, String> resourceException : warnings.entrySet()) {
             String resourceExceptionMessage = truncateMessage(resourceException.getValue()); 
             String resource =  FilenameUtils.getBaseName(resourceException.getKey());           
             exceptionMessage += "\r\n          Resource could not be processed: " + resource + "\r\n                    "  + resourceExceptionMessage;
         }
         ourLog.warn(libraryName +" could not be processed: "  + exceptionMessage);
-        resourceWarnings.clear(); 
     } 
 
     private static String truncateMessage(String message) {   
@@ -0,0 +1,252 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A content-addressed store for output files that many artifacts share, e.g. the libraries, valuesets and FHIRHelpers
+ * copied into the files directory of every measure and plan definition bundle. Each distinct content is stored once,
+ * in a file named by its SHA-256 hash, and the output files are hard links to it (or copies where the file system
+ * does not support links, e.g. across devices).
+ *
+ * Only output files under the given scope are stored. An output file is always replaced by a new link rather than
+ * written in place, since writing in place would change every file linked to the same content.
+ */
+public class OutputStore {
+
+    public static final String DIRECTORY_NAME = "output-store";
+
+    private final Path root;
+    private final Path scope;
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong deduplicatedBytes = new AtomicLong();
+    private final AtomicInteger linkedFiles = new AtomicInteger();
+    private final AtomicInteger copiedFiles = new AtomicInteger();
+
+    /**
+     * @param directory The directory of the stored content, which should be on the same file system as the scope
+     * @param scope The directory under which output files are stored
+     */
+    public OutputStore(String directory, String scope) {
+        this.root = Paths.get(directory).toAbsolutePath().normalize();
+        this.scope = Paths.get(scope).toAbsolutePath().normalize();
+    }
+
+    public Path getDirectory() {
+        return root;
+    }
+
+    /**
+     * Whether the given output file is under the scope of the store.
+     */
+    public boolean covers(Path target) {
+        return target.toAbsolutePath().normalize().startsWith(scope);
+    }
+
+    /**
+     * Makes the target a link to the stored copy of the content, storing the content if it is new.
+     *
+     * @return Whether the target changed, i.e. was not already a link to this content
+     */
+    public boolean write(Path target, byte[] content) throws IOException {
+        Path object = getObjectPath(hash(content));
+        if (Files.exists(object)) {
+            deduplicatedBytes.addAndGet(content.length);
+        }
+        else {
+            ensureParent(object);
+            IOUtils.writeFileAtomically(object, content);
+            storedBytes.addAndGet(content.length);
+        }
+        return materialize(object, target);
+    }
+
+    /**
+     * Makes the target a link to the stored copy of the source file's content, storing the content if it is new.
+     *
+     * @return Whether the target changed, i.e. was not already a link to this content
+     */
+    public boolean copy(Path source, Path target) throws IOException {
+        Path object;
+        try (InputStream input = Files.newInputStream(source)) {
+            object = getObjectPath(hash(input));
+        }
+        long size = Files.size(source);
+        if (Files.exists(object)) {
+            deduplicatedBytes.addAndGet(size);
+        }
+        else {
+            ensureParent(object);
+            Path temp = createTempPath(object);
+            try {
+                Files.copy(source, temp);
+                IOUtils.moveReplacing(temp, object);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+            storedBytes.addAndGet(size);
+        }
+        return materialize(object, target);
+    }
+
+    /**
+     * Makes the target a link to the stored copy of the content of the given file, which is moved into the store
+     * if its content is new (and is otherwise left to the caller to delete).
+     *
+     * @return Whether the target changed, i.e. was not already a link to this content
+     */
+    public boolean move(Path source, Path target) throws IOException {
+        Path object;
+        try (InputStream input = Files.newInputStream(source)) {
+            object = getObjectPath(hash(input));
+        }
+        long size = Files.size(source);
+        if (Files.exists(object)) {
+            deduplicatedBytes.addAndGet(size);
+        }
+        else {
+            ensureParent(object);
+            IOUtils.moveReplacing(source, object);
+            storedBytes.addAndGet(size);
+        }
+        return materialize(object, target);
+    }
+
+    private boolean materialize(Path object, Path target) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(object, target)) {
+            return false;
+        }
+
+        Path temp = createTempPath(target);
+        try {
+            try {
+                Files.createLink(temp, object);
+                linkedFiles.incrementAndGet();
+            }
+            catch (UnsupportedOperationException | FileSystemException e) {
+                Files.deleteIfExists(temp);
+                Files.copy(object, temp);
+                copiedFiles.incrementAndGet();
+            }
+            IOUtils.moveReplacing(temp, target);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the stored content no output file links to any more. Only possible where the file system reports
+     * link counts, and otherwise does nothing.
+     *
+     * @return The number of bytes deleted
+     */
+    public long prune() throws IOException {
+        if (!Files.isDirectory(root) || !Files.getFileStore(root).supportsFileAttributeView("unix")) {
+            return 0;
+        }
+
+        long pruned = 0;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> objects = Files.newDirectoryStream(prefix)) {
+                    for (Path object : objects) {
+                        if (((Number) Files.getAttribute(object, "unix:nlink")).intValue() <= 1) {
+                            pruned += Files.size(object);
+                            Files.delete(object);
+                        }
+                    }
+                }
+            }
+        }
+        return pruned;
+    }
+
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * The number of bytes of output that were linked to content already in the store rather than stored again.
+     */
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.get();
+    }
+
+    public int getLinkedFiles() {
+        return linkedFiles.get();
+    }
+
+    public int getCopiedFiles() {
+        return copiedFiles.get();
+    }
+
+    public String getSummary() {
+        return String.format("Output store: %d bytes stored, %d bytes deduplicated, %d files linked, %d files copied",
+            getStoredBytes(), getDeduplicatedBytes(), getLinkedFiles(), getCopiedFiles());
+    }
+
+    public void resetStatistics() {
+        storedBytes.set(0);
+        deduplicatedBytes.set(0);
+        linkedFiles.set(0);
+        copiedFiles.set(0);
+    }
+
+    private Path getObjectPath(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static void ensureParent(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+    }
+
+    // A path that does not exist yet, next to the given path
+    private static Path createTempPath(Path path) {
+        Path absolute = path.toAbsolutePath();
+        return absolute.getParent().resolve("." + absolute.getFileName().toString() + "." + UUID.randomUUID() + ".tmp");
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hash(byte[] content) {
+        return toHex(newDigest().digest(content));
+    }
+
+    private static String hash(InputStream input) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
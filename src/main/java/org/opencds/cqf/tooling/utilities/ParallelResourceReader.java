@@ -0,0 +1,215 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Discovers and parses resource files on the workers of a shared executor (see IOUtils.setReaderParallelism).
+ *
+ * Paths are produced on the calling thread (by a Files.walkFileTree walk or from a list) and handed to the workers
+ * through a bounded queue, so discovery and parsing overlap and the walk can not run arbitrarily far ahead of the
+ * parsers. The executor is not owned by the reader, so concurrent reads (e.g. from bundling threads) share its
+ * threads rather than each starting a pool of their own. HAPI parsers are not thread-safe, so each worker creates
+ * its own parsers from the shared FhirContext and never hands them to another thread. Parsed resources go through
+ * the IOUtils resource cache and are returned in the order their paths were produced.
+ */
+public class ParallelResourceReader {
+
+    private static final PathItem END_OF_PATHS = new PathItem(-1, null);
+
+    private final FhirContext fhirContext;
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * @param executor The executor the parsing workers run on, which must not run the calling thread's own tasks
+     * @param parallelism The number of parsing workers, typically the number of threads of the executor
+     */
+    public ParallelResourceReader(FhirContext fhirContext, ExecutorService executor, int parallelism) {
+        if (fhirContext == null) {
+            throw new IllegalArgumentException("fhirContext is required");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is required");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.fhirContext = fhirContext;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Parses the given files. Files that are not json or xml are skipped.
+     */
+    public List<IBaseResource> readResources(List<String> paths) {
+        return read(sink -> paths.forEach(sink));
+    }
+
+    /**
+     * Walks the given directory and parses the files found while the walk is still in progress.
+     * Files that are not json or xml are skipped.
+     */
+    public List<IBaseResource> readResources(String directoryPath, boolean recursive) {
+        return read(sink -> IOUtils.walkFilePaths(directoryPath, recursive, sink));
+    }
+
+    private interface PathProducer {
+        void produce(Consumer<String> sink) throws IOException;
+    }
+
+    private static class PathItem {
+        private final int index;
+        private final String path;
+
+        PathItem(int index, String path) {
+            this.index = index;
+            this.path = path;
+        }
+    }
+
+    private List<IBaseResource> read(PathProducer producer) {
+        BlockingQueue<PathItem> queue = new ArrayBlockingQueue<PathItem>(parallelism * 4);
+        Map<Integer, IBaseResource> results = new ConcurrentHashMap<Integer, IBaseResource>();
+        AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        List<Future<?>> workers = new ArrayList<Future<?>>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            workers.add(executor.submit(new Worker(queue, results, failure)));
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        try {
+            producer.produce(path -> put(queue, new PathItem(count.getAndIncrement(), path)));
+        }
+        catch (IOException e) {
+            failure.compareAndSet(null, new RuntimeException(e.getMessage()));
+        }
+        catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+        finally {
+            try {
+                for (int i = 0; i < parallelism; i++) {
+                    queue.put(END_OF_PATHS);
+                }
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            }
+            catch (InterruptedException e) {
+                workers.forEach(worker -> worker.cancel(true));
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, new RuntimeException("Interrupted while reading resources"));
+            }
+            catch (ExecutionException e) {
+                failure.compareAndSet(null, new RuntimeException(e.getCause().getMessage(), e.getCause()));
+            }
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        List<IBaseResource> resources = new ArrayList<IBaseResource>(results.size());
+        for (int i = 0; i < count.get(); i++) {
+            IBaseResource resource = results.get(i);
+            if (resource != null) {
+                resources.add(resource);
+            }
+        }
+        return resources;
+    }
+
+    private static void put(BlockingQueue<PathItem> queue, PathItem item) {
+        try {
+            queue.put(item);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading resources");
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final BlockingQueue<PathItem> queue;
+        private final Map<Integer, IBaseResource> results;
+        private final AtomicReference<RuntimeException> failure;
+        // Confined to this worker's thread
+        private final Map<Encoding, IParser> parsers = new EnumMap<Encoding, IParser>(Encoding.class);
+
+        Worker(BlockingQueue<PathItem> queue, Map<Integer, IBaseResource> results, AtomicReference<RuntimeException> failure) {
+            this.queue = queue;
+            this.results = results;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    PathItem item = queue.take();
+                    if (item == END_OF_PATHS) {
+                        return;
+                    }
+                    // Keep draining after a failure so the producer is never blocked on a full queue
+                    if (failure.get() != null) {
+                        continue;
+                    }
+
+                    try {
+                        IBaseResource resource = read(item.path);
+                        if (resource != null) {
+                            results.put(item.index, resource);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private IBaseResource read(String path) {
+            Encoding encoding = IOUtils.getEncoding(path);
+            if (encoding != Encoding.JSON && encoding != Encoding.XML) {
+                return null;
+            }
+
+            IParser parser = parsers.computeIfAbsent(encoding, e -> IOUtils.getParser(e, fhirContext));
+            try {
+                return IOUtils.readResource(new File(path), parser);
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+    }
+}
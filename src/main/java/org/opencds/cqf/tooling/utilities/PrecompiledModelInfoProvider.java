@@ -0,0 +1,240 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.cqframework.cql.cql2elm.ModelInfoProvider;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.elm_modelinfo.r1.ModelInfo;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.jsontype.BasicPolymorphicTypeValidator;
+
+/**
+ * Serves the models that ship with the CQL translator (System, FHIR, QICore, ...) from a process-wide cache, so
+ * that the ModelInfo of each model is read through JAXB at most once per process rather than once for every
+ * ModelManager.
+ *
+ * When a cache directory is set (e.g. [IG root]/.cqf-cache/modelinfo), each model is also kept there in a compact,
+ * pre-serialized form (gzipped JSON, read without JAXB) keyed by the translator version, so that later runs do not
+ * load the model XML at all. An entry is written the first time a model is loaded, and only if it reads back
+ * identically.
+ *
+ * Only the translator's own models are served. A folder with its own model info file for a model leaves that model
+ * to the DefaultModelInfoProvider, and providers registered with priority after this one (e.g. the
+ * NpmModelInfoProvider) still take precedence.
+ */
+public class PrecompiledModelInfoProvider implements ModelInfoProvider {
+
+    public static final String DIRECTORY_NAME = "modelinfo";
+
+    private static final Map<String, ModelInfo> models = new ConcurrentHashMap<String, ModelInfo>();
+    private static final Set<String> unavailableModels = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger translatorLoads = new AtomicInteger();
+    private static final AtomicInteger precompiledLoads = new AtomicInteger();
+    private static volatile String cacheDirectory;
+    private static volatile ObjectMapper mapper;
+
+    private final Path folder;
+
+    /**
+     * @param folder The CQL folder the models are used in, or null if model info files in a folder are not used
+     */
+    public PrecompiledModelInfoProvider(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Registers a provider with the given model manager. Register it before any other priority provider, so that
+     * those still take precedence.
+     */
+    public static void register(ModelManager modelManager, Path folder) {
+        modelManager.getModelInfoLoader().registerModelInfoProvider(new PrecompiledModelInfoProvider(folder), true);
+    }
+
+    public static String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Sets the directory the pre-serialized models are kept in. Use null (the default) to only cache them in memory.
+     */
+    public static void setCacheDirectory(String directory) {
+        cacheDirectory = directory;
+    }
+
+    /**
+     * @return The number of models loaded from the translator's model info XML
+     */
+    public static int getTranslatorLoads() {
+        return translatorLoads.get();
+    }
+
+    /**
+     * @return The number of models loaded from their pre-serialized form
+     */
+    public static int getPrecompiledLoads() {
+        return precompiledLoads.get();
+    }
+
+    /**
+     * Discards the models cached in memory.
+     */
+    public static void clear() {
+        models.clear();
+        unavailableModels.clear();
+    }
+
+    @Override
+    public ModelInfo load(VersionedIdentifier modelIdentifier) {
+        if (modelIdentifier == null || modelIdentifier.getId() == null || hasFolderModelInfo(modelIdentifier.getId())) {
+            return null;
+        }
+
+        String key = modelIdentifier.getId() + "|" + (modelIdentifier.getSystem() == null ? "" : modelIdentifier.getSystem())
+            + "|" + (modelIdentifier.getVersion() == null ? "" : modelIdentifier.getVersion());
+        ModelInfo modelInfo = models.get(key);
+        if (modelInfo != null || unavailableModels.contains(key)) {
+            return modelInfo;
+        }
+        return resolve(key, modelIdentifier);
+    }
+
+    private static synchronized ModelInfo resolve(String key, VersionedIdentifier modelIdentifier) {
+        ModelInfo modelInfo = models.get(key);
+        if (modelInfo != null || unavailableModels.contains(key)) {
+            return modelInfo;
+        }
+
+        modelInfo = readPrecompiled(key);
+        if (modelInfo != null) {
+            precompiledLoads.incrementAndGet();
+        }
+        else {
+            modelInfo = loadFromTranslator(modelIdentifier);
+            if (modelInfo == null) {
+                unavailableModels.add(key);
+                return null;
+            }
+            translatorLoads.incrementAndGet();
+            writePrecompiled(key, modelInfo);
+        }
+
+        models.put(key, modelInfo);
+        return modelInfo;
+    }
+
+    // A new ModelManager only has the translator's own providers, so this never comes back to a cached model
+    private static ModelInfo loadFromTranslator(VersionedIdentifier modelIdentifier) {
+        try {
+            return new ModelManager().getModelInfoLoader().getModelInfo(new VersionedIdentifier()
+                .withId(modelIdentifier.getId())
+                .withSystem(modelIdentifier.getSystem())
+                .withVersion(modelIdentifier.getVersion()));
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Mirrors the file names the DefaultModelInfoProvider looks for
+    private boolean hasFolderModelInfo(String modelName) {
+        if (folder == null) {
+            return false;
+        }
+        String prefix = modelName.toLowerCase() + "-modelinfo";
+        File[] modelInfoFiles = folder.toFile().listFiles((path, name) -> name.toLowerCase().startsWith(prefix) && name.endsWith(".xml"));
+        return modelInfoFiles != null && modelInfoFiles.length > 0;
+    }
+
+    private static Path getPath(String key) {
+        String name = ElmCache.hash((ElmCache.getTranslatorVersion() + "\n" + key).getBytes(StandardCharsets.UTF_8));
+        return Paths.get(cacheDirectory, name + ".json.gz");
+    }
+
+    private static ModelInfo readPrecompiled(String key) {
+        if (cacheDirectory == null) {
+            return null;
+        }
+
+        Path path = getPath(key);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(path))) {
+            return getMapper().readValue(input, ModelInfo.class);
+        }
+        catch (IOException | RuntimeException e) {
+            System.out.println(String.format("Ignoring unreadable model info cache entry %s: %s", path, e.getMessage()));
+            return null;
+        }
+    }
+
+    private static void writePrecompiled(String key, ModelInfo modelInfo) {
+        if (cacheDirectory == null) {
+            return;
+        }
+
+        Path path = getPath(key);
+        try {
+            byte[] content = serialize(modelInfo);
+            if (!Arrays.equals(content, serialize(getMapper().readValue(content, ModelInfo.class)))) {
+                System.out.println(String.format("Model info %s can not be pre-serialized; it will be loaded from XML on every run", key));
+                return;
+            }
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream output = new GZIPOutputStream(compressed)) {
+                output.write(content);
+            }
+            Files.createDirectories(path.getParent());
+            IOUtils.writeFileAtomically(path, compressed.toByteArray());
+        }
+        catch (IOException | RuntimeException e) {
+            System.out.println(String.format("Could not write model info cache entry %s: %s", path, e.getMessage()));
+        }
+    }
+
+    private static byte[] serialize(ModelInfo modelInfo) throws IOException {
+        return getMapper().writeValueAsBytes(modelInfo);
+    }
+
+    // The generated model info classes are read and written through their fields, with the concrete class of
+    // each abstract type info and type specifier recorded alongside it
+    private static ObjectMapper getMapper() {
+        if (mapper == null) {
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+            objectMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+            objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+            objectMapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+            objectMapper.activateDefaultTyping(BasicPolymorphicTypeValidator.builder()
+                    .allowIfSubType("org.hl7.elm_modelinfo.r1.")
+                    .allowIfSubType("java.util.")
+                    .allowIfSubType("javax.xml.namespace.")
+                    .build(),
+                ObjectMapper.DefaultTyping.NON_CONCRETE_AND_ARRAYS);
+            mapper = objectMapper;
+        }
+        return mapper;
+    }
+}
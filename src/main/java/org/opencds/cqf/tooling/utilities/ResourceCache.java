@@ -0,0 +1,141 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.function.Function;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * A thread-safe cache of parsed resources.
+ *
+ * Entries are keyed by the canonical path of the source file together with its last-modified time and size,
+ * so an edited file produces a new key and is re-parsed on the next read. Stale entries are never served.
+ *
+ * By default the cache is unbounded, so every read of an unchanged file returns the same instance for the whole
+ * run, and changes callers make to that instance (e.g. assigning ids while bundling) are seen by later readers.
+ * A cache bounded by the total size (in bytes) of the source files it holds may evict an entry, after which the
+ * next read returns a fresh parse without those changes, so it should only be used where cached resources are
+ * not modified.
+ */
+public class ResourceCache {
+
+    public static final long UNBOUNDED = -1;
+
+    private final Cache<Key, IBaseResource> cache;
+
+    public ResourceCache() {
+        this(UNBOUNDED);
+    }
+
+    /**
+     * @param maximumWeight The maximum total size, in bytes, of the source files whose parsed resources are retained,
+     *                      or UNBOUNDED
+     */
+    public ResourceCache(long maximumWeight) {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
+        if (maximumWeight == UNBOUNDED) {
+            this.cache = builder.build();
+        }
+        else {
+            this.cache = builder
+                .maximumWeight(maximumWeight)
+                .weigher((Key key, IBaseResource resource) -> (int) Math.min(Math.max(key.getSize(), 1), Integer.MAX_VALUE))
+                .build();
+        }
+    }
+
+    /**
+     * Returns the cached resource for the current state of the given file, invoking the loader to parse it
+     * if there is no entry for that state. A loader returning null results in no entry being cached.
+     */
+    public IBaseResource get(File file, Function<File, IBaseResource> loader) throws IOException {
+        Objects.requireNonNull(loader, "loader can not be null");
+        return cache.get(Key.of(file), key -> loader.apply(file));
+    }
+
+    public IBaseResource getIfPresent(File file) throws IOException {
+        return cache.getIfPresent(Key.of(file));
+    }
+
+    public void put(File file, IBaseResource resource) throws IOException {
+        cache.put(Key.of(file), resource);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Performs any pending eviction or maintenance work on the calling thread.
+     */
+    public void cleanUp() {
+        cache.cleanUp();
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * @return Hit, miss, load and eviction statistics for the lifetime of this cache
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public static final class Key {
+        private final String canonicalPath;
+        private final long lastModified;
+        private final long size;
+
+        private Key(String canonicalPath, long lastModified, long size) {
+            this.canonicalPath = canonicalPath;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        public static Key of(File file) throws IOException {
+            return new Key(file.getCanonicalPath(), file.lastModified(), file.length());
+        }
+
+        public String getCanonicalPath() {
+            return canonicalPath;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return lastModified == other.lastModified && size == other.size && canonicalPath.equals(other.canonicalPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(canonicalPath, lastModified, size);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (modified: %d, size: %d)", canonicalPath, lastModified, size);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+/**
+ * An index of the resources found under a set of resource directories, built in a single pass.
+ *
+ * Every file is classified once by resource type, id, canonical url and version using the ResourceSniffer, which
+ * does not build the HAPI model. The per-type path sets and maps served by IOUtils (getLibraryPaths,
+ * getMeasurePathMap, etc.) are derived from this index, so refreshing an IG no longer walks and parses the whole
+ * tree once per resource type. Resources themselves are only parsed when a resource map is requested.
+ */
+public class ResourceIndex {
+
+    public static class Entry {
+        private final String path;
+        private final String resourceType;
+        private final String id;
+        private final String url;
+        private final String version;
+
+        public Entry(String path, String resourceType, String id, String url, String version) {
+            this.path = path;
+            this.resourceType = resourceType;
+            this.id = id;
+            this.url = url;
+            this.version = version;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+    }
+
+    private final List<String> directories;
+    private final FhirContext fhirContext;
+    private final Map<String, Entry> entriesByPath = new LinkedHashMap<String, Entry>();
+    private final Map<String, List<Entry>> entriesByType = new LinkedHashMap<String, List<Entry>>();
+
+    private final Map<String, LinkedHashSet<String>> pathsByType = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> pathMapsByType = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, IBaseResource>> resourcesByType = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, IBaseResource>> urlMapsByType = new ConcurrentHashMap<>();
+
+    private ResourceIndex(List<String> directories, FhirContext fhirContext) {
+        this.directories = Collections.unmodifiableList(new ArrayList<String>(directories));
+        this.fhirContext = fhirContext;
+    }
+
+    public static ResourceIndex build(List<String> directories, FhirContext fhirContext) {
+        return build(directories, fhirContext, null);
+    }
+
+    /**
+     * @param store Optional. When given, unchanged files are classified from the stored index rather than read.
+     *              The caller is responsible for saving the store.
+     */
+    public static ResourceIndex build(List<String> directories, FhirContext fhirContext, ResourceIndexStore store) {
+        ResourceIndex index = new ResourceIndex(directories, fhirContext);
+        for (String dir : index.directories) {
+            for (String path : IOUtils.getFilePaths(dir, true)) {
+                if (index.entriesByPath.containsKey(path)) {
+                    continue;
+                }
+
+                Entry entry = null;
+                try {
+                    entry = store == null ? classify(path, fhirContext) : store.classify(path, p -> classify(p, fhirContext));
+                } catch (Exception e) {
+                    logReadError(path, e);
+                }
+
+                if (entry != null) {
+                    index.add(entry);
+                }
+            }
+        }
+        return index;
+    }
+
+    private static Entry classify(String path, FhirContext fhirContext) throws IOException {
+        return ResourceSniffer.sniff(path, fhirContext);
+    }
+
+    private static void logReadError(String path, Exception e) {
+        String lowerCasePath = path.toLowerCase();
+        for (String type : new String[] { "Library", "Measure", "ValueSet", "PlanDefinition", "Device" }) {
+            if (lowerCasePath.contains(type.toLowerCase())) {
+                System.out.println(String.format("Error reading in %s from path: %s\n%s", type, path, e));
+                return;
+            }
+        }
+    }
+
+    private void add(Entry entry) {
+        entriesByPath.put(entry.getPath(), entry);
+        entriesByType.computeIfAbsent(entry.getResourceType(), type -> new ArrayList<Entry>()).add(entry);
+    }
+
+    /**
+     * @return The resource directories, in order, that this index was built from
+     */
+    public List<String> getDirectories() {
+        return directories;
+    }
+
+    public FhirVersionEnum getFhirVersion() {
+        return fhirContext.getVersion().getVersion();
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entriesByPath.values());
+    }
+
+    public List<Entry> getEntries(String resourceType) {
+        List<Entry> entries = entriesByType.get(resourceType);
+        return entries == null ? Collections.<Entry>emptyList() : Collections.unmodifiableList(entries);
+    }
+
+    public Entry getEntry(String path) {
+        return entriesByPath.get(path);
+    }
+
+    /**
+     * @return The paths of all files of the given resource type. An empty result is cached like any other.
+     */
+    public LinkedHashSet<String> getPaths(String resourceType) {
+        return pathsByType.computeIfAbsent(resourceType, type -> {
+            LinkedHashSet<String> paths = new LinkedHashSet<String>();
+            for (Entry entry : getEntries(type)) {
+                paths.add(entry.getPath());
+            }
+            return paths;
+        });
+    }
+
+    /**
+     * @return A map from resource id to file path for all files of the given resource type
+     */
+    public Map<String, String> getPathMap(String resourceType) {
+        return pathMapsByType.computeIfAbsent(resourceType, type -> {
+            Map<String, String> pathMap = new LinkedHashMap<String, String>();
+            for (Entry entry : getEntries(type)) {
+                pathMap.put(entry.getId(), entry.getPath());
+            }
+            return pathMap;
+        });
+    }
+
+    /**
+     * @return A map from resource id to resource for all files of the given resource type
+     */
+    public Map<String, IBaseResource> getResources(String resourceType) {
+        return resourcesByType.computeIfAbsent(resourceType, type -> {
+            Map<String, IBaseResource> resources = new LinkedHashMap<String, IBaseResource>();
+            for (Entry entry : getEntries(type)) {
+                IBaseResource resource = IOUtils.readResource(entry.getPath(), fhirContext, true);
+                if (resource != null) {
+                    resources.put(entry.getId(), resource);
+                }
+            }
+            return resources;
+        });
+    }
+
+    /**
+     * @return A map from canonical url to resource for all files of the given resource type
+     */
+    public Map<String, IBaseResource> getUrlMap(String resourceType) {
+        return urlMapsByType.computeIfAbsent(resourceType, type -> {
+            Map<String, IBaseResource> urlMap = new LinkedHashMap<String, IBaseResource>();
+            for (Entry entry : getEntries(type)) {
+                IBaseResource resource = IOUtils.readResource(entry.getPath(), fhirContext, true);
+                if (resource != null) {
+                    urlMap.put(entry.getUrl(), resource);
+                }
+            }
+            return urlMap;
+        });
+    }
+}
@@ -0,0 +1,231 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+/**
+ * A persistent record of how the files under the resource directories were classified, kept in a
+ * .cqf-cache directory (typically under the IG root) so that later runs can skip classifying unchanged files.
+ *
+ * Each record holds the path, last-modified time, size and SHA-256 content hash of a file along with the resource
+ * type, id, url and version found in it (files that are not resources are recorded without a type). A file whose
+ * time and size match its record is not opened at all. A file whose time or size changed but whose content hash
+ * did not (e.g. after a fresh checkout) is not re-classified either. The stored index is discarded if its format
+ * or FHIR version do not match, or if it can not be read.
+ *
+ * The store is enabled by the -cache-index flag of RefreshIG. BundleIg (IgBundler) has no such flag because it does
+ * not use the resource index: it parses every file under the resource paths of its ig.json to bundle it, so there
+ * is no classification for a stored index to save.
+ */
+public class ResourceIndexStore {
+
+    public static final String CACHE_DIRECTORY_NAME = ".cqf-cache";
+    public static final String INDEX_FILE_NAME = "resource-index.json";
+
+    private static final int FORMAT_VERSION = 1;
+
+    public interface Classifier {
+        ResourceIndex.Entry classify(String path) throws IOException;
+    }
+
+    private static class Record {
+        String path;
+        long lastModified;
+        long size;
+        String hash;
+        String resourceType;
+        String id;
+        String url;
+        String version;
+
+        ResourceIndex.Entry toEntry() {
+            return resourceType == null ? null : new ResourceIndex.Entry(path, resourceType, id, url, version);
+        }
+    }
+
+    private static class StoredIndex {
+        int formatVersion;
+        String fhirVersion;
+        List<Record> records;
+    }
+
+    private final File indexFile;
+    private final FhirVersionEnum fhirVersion;
+    private final Gson gson = new Gson();
+    private Map<String, Record> records;
+    private boolean dirty;
+    private int hits;
+    private int misses;
+
+    /**
+     * @param cacheDirectory The directory the index file is kept in. It is created when the index is first saved.
+     */
+    public ResourceIndexStore(String cacheDirectory, FhirVersionEnum fhirVersion) {
+        this.indexFile = new File(cacheDirectory, INDEX_FILE_NAME);
+        this.fhirVersion = fhirVersion;
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    public FhirVersionEnum getFhirVersion() {
+        return fhirVersion;
+    }
+
+    /**
+     * @return The number of files classified from the stored index, and by the classifier, since this store was created
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the classification of the file at the given path, taken from the stored index if the file is unchanged
+     * and otherwise from the classifier. A null result means the file is not a resource.
+     */
+    public ResourceIndex.Entry classify(String path, Classifier classifier) throws IOException {
+        Map<String, Record> records = getRecords();
+        File file = new File(path);
+        long lastModified = file.lastModified();
+        long size = file.length();
+
+        Record record = records.get(path);
+        if (record != null && record.lastModified == lastModified && record.size == size) {
+            hits++;
+            return record.toEntry();
+        }
+
+        String hash = hash(file);
+        if (record != null && hash.equals(record.hash)) {
+            record.lastModified = lastModified;
+            record.size = size;
+            dirty = true;
+            hits++;
+            return record.toEntry();
+        }
+
+        misses++;
+        ResourceIndex.Entry entry = classifier.classify(path);
+        record = new Record();
+        record.path = path;
+        record.lastModified = lastModified;
+        record.size = size;
+        record.hash = hash;
+        if (entry != null) {
+            record.resourceType = entry.getResourceType();
+            record.id = entry.getId();
+            record.url = entry.getUrl();
+            record.version = entry.getVersion();
+        }
+        records.put(path, record);
+        dirty = true;
+        return entry;
+    }
+
+    /**
+     * Writes the index if anything changed since it was loaded, dropping the records of files that no longer exist.
+     * The index file is replaced atomically where the file system supports it.
+     */
+    public void save() throws IOException {
+        Map<String, Record> records = getRecords();
+        for (Iterator<Record> i = records.values().iterator(); i.hasNext();) {
+            if (!new File(i.next().path).isFile()) {
+                i.remove();
+                dirty = true;
+            }
+        }
+        if (!dirty) {
+            return;
+        }
+
+        StoredIndex stored = new StoredIndex();
+        stored.formatVersion = FORMAT_VERSION;
+        stored.fhirVersion = fhirVersion.name();
+        stored.records = new ArrayList<Record>(records.values());
+
+        Path target = indexFile.toPath();
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        IOUtils.writeFileAtomically(target, gson.toJson(stored).getBytes(StandardCharsets.UTF_8));
+        dirty = false;
+    }
+
+    private Map<String, Record> getRecords() {
+        if (records == null) {
+            records = load();
+        }
+        return records;
+    }
+
+    private Map<String, Record> load() {
+        Map<String, Record> loaded = new LinkedHashMap<String, Record>();
+        if (!indexFile.isFile()) {
+            return loaded;
+        }
+
+        try (Reader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            StoredIndex stored = gson.fromJson(reader, StoredIndex.class);
+            if (stored == null || stored.formatVersion != FORMAT_VERSION || !fhirVersion.name().equals(stored.fhirVersion)
+                    || stored.records == null) {
+                dirty = true;
+                return loaded;
+            }
+            for (Record record : stored.records) {
+                if (record != null && record.path != null && record.hash != null) {
+                    loaded.put(record.path, record);
+                }
+            }
+        }
+        catch (IOException | JsonParseException e) {
+            System.out.println(String.format("Discarding unreadable resource index %s: %s", indexFile.getPath(), e.getMessage()));
+            loaded.clear();
+            dirty = true;
+        }
+        return loaded;
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+
+        byte[] buffer = new byte[65536];
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+}
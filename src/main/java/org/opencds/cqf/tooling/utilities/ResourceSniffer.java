@@ -0,0 +1,229 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
+
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+
+/**
+ * Determines the resourceType, id, url and version of a FHIR resource file without building the HAPI model.
+ *
+ * JSON files are read with a streaming token scan of the top-level object and XML files with a StAX read of the
+ * root element's direct children. Reading stops as soon as the fields the resource type can have have been found,
+ * so classifying a large Bundle costs little more than reading its first few elements.
+ */
+public class ResourceSniffer {
+
+    private static final String FHIR_NAMESPACE = "http://hl7.org/fhir";
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+
+    /**
+     * Sniffs the resource header of the file at the given path.
+     *
+     * @param path The path to a .json or .xml file
+     * @param fhirContext Optional. When given, the resourceType must be known to the context, and fields the
+     *                    resource type does not define (e.g. url on a Bundle) are not searched for.
+     * @return The header of the resource, or null if the file is not a (recognized) FHIR resource
+     */
+    public static ResourceIndex.Entry sniff(String path, FhirContext fhirContext) throws IOException {
+        Encoding encoding = IOUtils.getEncoding(path);
+        if (encoding != Encoding.JSON && encoding != Encoding.XML) {
+            return null;
+        }
+
+        File file = new File(path);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            return encoding == Encoding.JSON ? sniffJson(path, stream, fhirContext) : sniffXml(path, stream, fhirContext);
+        }
+        catch (XMLStreamException e) {
+            throw new IOException(String.format("Error reading XML resource header from %s: %s", path, e.getMessage()), e);
+        }
+    }
+
+    public static ResourceIndex.Entry sniff(String path) throws IOException {
+        return sniff(path, null);
+    }
+
+    /**
+     * Returns the resourceType of the file at the given path, or null if it can not be determined.
+     * This method does not throw; unreadable files are treated as not being resources.
+     */
+    public static String sniffResourceType(String path, FhirContext fhirContext) {
+        try {
+            ResourceIndex.Entry entry = sniff(path, fhirContext);
+            return entry == null ? null : entry.getResourceType();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class Header {
+        private final Set<String> remaining = new HashSet<String>();
+        private String resourceType;
+        private String id;
+        private String url;
+        private String version;
+
+        Header() {
+            remaining.add("id");
+            remaining.add("url");
+            remaining.add("version");
+        }
+
+        // Returns false if the resource type is not valid for the context
+        boolean setResourceType(String resourceType, FhirContext fhirContext) {
+            if (resourceType == null || resourceType.isEmpty()) {
+                return false;
+            }
+            this.resourceType = resourceType;
+            if (fhirContext == null) {
+                return true;
+            }
+
+            BaseRuntimeElementCompositeDefinition<?> definition;
+            try {
+                definition = fhirContext.getResourceDefinition(resourceType);
+            }
+            catch (DataFormatException e) {
+                return false;
+            }
+
+            // Fields seen before resourceType are discarded if the type does not define them
+            if (definition.getChildByName("url") == null) {
+                remaining.remove("url");
+                url = null;
+            }
+            if (definition.getChildByName("version") == null) {
+                remaining.remove("version");
+                version = null;
+            }
+            return true;
+        }
+
+        boolean wants(String name) {
+            return remaining.contains(name);
+        }
+
+        void set(String name, String value) {
+            switch (name) {
+                case "id": id = value; break;
+                case "url": url = value; break;
+                case "version": version = value; break;
+                default: return;
+            }
+            remaining.remove(name);
+        }
+
+        boolean isComplete() {
+            return resourceType != null && remaining.isEmpty();
+        }
+
+        ResourceIndex.Entry toEntry(String path) {
+            return resourceType == null ? null : new ResourceIndex.Entry(path, resourceType, id, url, version);
+        }
+    }
+
+    private static ResourceIndex.Entry sniffJson(String path, InputStream stream, FhirContext fhirContext) throws IOException {
+        Header header = new Header();
+        try (JsonParser parser = jsonFactory.createParser(stream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+
+                if (name.equals("resourceType")) {
+                    if (!header.setResourceType(parser.getValueAsString(), fhirContext)) {
+                        return null;
+                    }
+                }
+                else if (value == JsonToken.VALUE_STRING && header.wants(name)) {
+                    header.set(name, parser.getText());
+                }
+
+                if (header.isComplete()) {
+                    break;
+                }
+            }
+        }
+
+        return header.toEntry(path);
+    }
+
+    private static ResourceIndex.Entry sniffXml(String path, InputStream stream, FhirContext fhirContext) throws XMLStreamException {
+        Header header = new Header();
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(stream);
+        try {
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 1) {
+                        if (!FHIR_NAMESPACE.equals(reader.getNamespaceURI())
+                                || !header.setResourceType(reader.getLocalName(), fhirContext)) {
+                            return null;
+                        }
+                    }
+                    else if (depth == 2 && header.wants(reader.getLocalName())) {
+                        header.set(reader.getLocalName(), reader.getAttributeValue(null, "value"));
+                    }
+
+                    if (header.isComplete()) {
+                        break;
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (depth == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        return header.toEntry(path);
+    }
+}
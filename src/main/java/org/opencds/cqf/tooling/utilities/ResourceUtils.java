@@ -5,20 +5,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.FilenameUtils;
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.CqlTranslatorOptionsMapper;
-import org.cqframework.cql.cql2elm.DefaultLibrarySourceProvider;
-import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
-import org.cqframework.cql.cql2elm.LibraryManager;
-import org.cqframework.cql.cql2elm.ModelManager;
 import org.hl7.elm.r1.IncludeDef;
 import org.hl7.elm.r1.ValueSetDef;
 import org.hl7.fhir.instance.model.api.IBase;
@@ -272,24 +272,132 @@ public class ResourceUtils
         }
     }
 
+    // The transitive ValueSet closure of a CQL library, or the error computing it, along with the CQL files (and their
+    // modification times) and the cached ValueSets it was computed from
+    private static class ValueSetClosure {
+      private final Map<String, IBaseResource> valueSets;
+      private final Exception error;
+      private final Map<String, Long> sources;
+      private final Map<String, IBaseResource> cachedValueSets;
+
+      ValueSetClosure(Map<String, IBaseResource> valueSets, Exception error, Map<String, Long> sources, Map<String, IBaseResource> cachedValueSets) {
+        this.valueSets = valueSets;
+        this.error = error;
+        this.sources = sources;
+        this.cachedValueSets = cachedValueSets;
+      }
+
+      boolean isCurrent(Map<String, IBaseResource> currentValueSets) {
+        if (cachedValueSets != currentValueSets) {
+          return false;
+        }
+        for (Entry<String, Long> source : sources.entrySet()) {
+          if (new File(source.getKey()).lastModified() != source.getValue()) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+
+    private static final Map<String, CompletableFuture<ValueSetClosure>> valueSetClosures = new ConcurrentHashMap<String, CompletableFuture<ValueSetClosure>>();
+    // The closures the current thread is computing, to tell a circular include from a closure computed elsewhere
+    private static final ThreadLocal<Set<String>> computingClosures = ThreadLocal.withInitial(HashSet::new);
+
+    /**
+     * Discards the memoized ValueSet closures, e.g. when the CQL or terminology of the IG has changed.
+     */
+    public static void clearValueSetClosures() {
+      valueSetClosures.clear();
+    }
+
+    /**
+     * Returns the ValueSets referenced by the given CQL library (and, if includeDependencies is set, by the libraries
+     * it includes, transitively), keyed by url. The closure of each library is computed once and shared by every
+     * Measure and PlanDefinition that depends on it, for as long as neither the CQL files it was computed from nor
+     * the cached ValueSets change. The returned map must not be modified.
+     */
     public static Map<String, IBaseResource> getDepValueSetResources(String cqlContentPath, String igPath, FhirContext fhirContext, boolean includeDependencies, Boolean includeVersion) throws Exception {
+      ValueSetClosure closure = getValueSetClosure(cqlContentPath, igPath, fhirContext, includeDependencies, includeVersion);
+      if (closure.error != null) {
+        throw closure.error;
+      }
+      return closure.valueSets;
+    }
+
+    private static ValueSetClosure getValueSetClosure(String cqlContentPath, String igPath, FhirContext fhirContext, boolean includeDependencies, Boolean includeVersion) {
+      String path = cqlContentPath == null ? "" : Paths.get(cqlContentPath).toAbsolutePath().normalize().toString();
+      String baseKey = String.join("|", path, Boolean.toString(includeDependencies), String.valueOf(includeVersion), fhirContext.getVersion().getVersion().name());
+      Map<String, IBaseResource> cachedValueSets = ValueSetsProcessor.getCachedValueSets(fhirContext);
+      while (true) {
+        String key = baseKey + "|" + new File(path).lastModified();
+        CompletableFuture<ValueSetClosure> created = new CompletableFuture<ValueSetClosure>();
+        // Only inserts the future: the closure is computed outside the map, as it computes those of the includes
+        CompletableFuture<ValueSetClosure> future = valueSetClosures.computeIfAbsent(key, k -> created);
+        if (future == created) {
+          // Closures of earlier versions of the file
+          valueSetClosures.keySet().removeIf(k -> k.startsWith(baseKey + "|") && !k.equals(key));
+          Set<String> computing = computingClosures.get();
+          computing.add(key);
+          try {
+            created.complete(computeValueSetClosure(cqlContentPath, igPath, fhirContext, includeDependencies, includeVersion, cachedValueSets));
+          } catch (RuntimeException | Error e) {
+            valueSetClosures.remove(key, created);
+            created.completeExceptionally(e);
+            throw e;
+          } finally {
+            computing.remove(key);
+          }
+        }
+        else if (computingClosures.get().contains(key)) {
+          throw new IllegalArgumentException("Circular include of CQL library " + cqlContentPath);
+        }
+
+        ValueSetClosure closure = future.join();
+        if (closure.isCurrent(cachedValueSets)) {
+          return closure;
+        }
+        valueSetClosures.remove(key, future);
+      }
+    }
+
+    private static ValueSetClosure computeValueSetClosure(String cqlContentPath, String igPath, FhirContext fhirContext, boolean includeDependencies, Boolean includeVersion,
+        Map<String, IBaseResource> cachedValueSets) {
+      Map<String, Long> sources = new HashMap<String, Long>();
+      if (cqlContentPath != null) {
+        sources.put(cqlContentPath, new File(cqlContentPath).lastModified());
+      }
+      try {
+        Map<String, IBaseResource> valueSets = computeDepValueSetResources(cqlContentPath, igPath, fhirContext, includeDependencies, includeVersion, cachedValueSets, sources);
+        return new ValueSetClosure(Collections.unmodifiableMap(valueSets), null, sources, cachedValueSets);
+      } catch (Exception e) {
+        return new ValueSetClosure(null, e, sources, cachedValueSets);
+      }
+    }
+
+    private static Map<String, IBaseResource> computeDepValueSetResources(String cqlContentPath, String igPath, FhirContext fhirContext, boolean includeDependencies, Boolean includeVersion,
+        Map<String, IBaseResource> cachedValueSets, Map<String, Long> sources) throws Exception {
       Map<String, IBaseResource> valueSetResources = new HashMap<String, IBaseResource>();
-        List<String> valueSetDefIDs = getDepELMValueSetDefIDs(cqlContentPath);
+      List<String> valueSetDefIDs = getDepELMValueSetDefIDs(cqlContentPath);
       HashSet<String> dependencies = new HashSet<>();
-        
+
       for (String valueSetUrl : valueSetDefIDs) {
-          ValueSetsProcessor.getCachedValueSets(fhirContext).entrySet().stream()
-          .filter(entry -> entry.getKey().equals(valueSetUrl))
-          .forEach(entry -> valueSetResources.putIfAbsent(entry.getKey(), entry.getValue()));
+          if (cachedValueSets.containsKey(valueSetUrl)) {
+            valueSetResources.putIfAbsent(valueSetUrl, cachedValueSets.get(valueSetUrl));
+          }
       }
       dependencies.addAll(valueSetDefIDs);
 
       if (includeDependencies) {
          List<String> dependencyCqlPaths = IOUtils.getDependencyCqlPaths(cqlContentPath, includeVersion);
          for (String path : dependencyCqlPaths) {
-            Map<String, IBaseResource> dependencyValueSets = getDepValueSetResources(path, igPath, fhirContext, includeDependencies, includeVersion);
-            dependencies.addAll(dependencyValueSets.keySet());
-            for (Entry<String, IBaseResource> entry : dependencyValueSets.entrySet()) {
+            ValueSetClosure dependencyClosure = getValueSetClosure(path, igPath, fhirContext, includeDependencies, includeVersion);
+            sources.putAll(dependencyClosure.sources);
+            if (dependencyClosure.error != null) {
+              throw dependencyClosure.error;
+            }
+            dependencies.addAll(dependencyClosure.valueSets.keySet());
+            for (Entry<String, IBaseResource> entry : dependencyClosure.valueSets.entrySet()) {
               valueSetResources.putIfAbsent(entry.getKey(), entry.getValue());
             }
          }
@@ -379,47 +487,60 @@ public class ResourceUtils
       return options;
   }
 
-    private static Map<String, org.hl7.elm.r1.Library> cachedElm = new HashMap<String, org.hl7.elm.r1.Library>();
+    // The ELM of a CQL file, with the modification time of the file it was translated from
+    private static class CachedElm {
+      private final org.hl7.elm.r1.Library elm;
+      private final long lastModified;
+
+      CachedElm(org.hl7.elm.r1.Library elm, long lastModified) {
+        this.elm = elm;
+        this.lastModified = lastModified;
+      }
+    }
+
+    private static Map<String, CachedElm> cachedElm = new ConcurrentHashMap<String, CachedElm>();
     public static org.hl7.elm.r1.Library getElmFromCql(String cqlContentPath) {
-      org.hl7.elm.r1.Library elm = cachedElm.get(cqlContentPath);
-      if (elm != null) {
-        return elm;
+      long lastModified = new File(cqlContentPath).lastModified();
+      CachedElm cached = cachedElm.get(cqlContentPath);
+      if (cached != null && cached.lastModified == lastModified) {
+        return cached.elm;
       }
+      org.hl7.elm.r1.Library elm;
 
       String folder = IOUtils.getParentDirectoryPath(cqlContentPath);
-
       CqlTranslatorOptions options = getTranslatorOptions(folder);
 
-      // Setup
-      // Construct DefaultLibrarySourceProvider
-      // Construct FhirLibrarySourceProvider
-      ModelManager modelManager = new ModelManager();
-      LibraryManager libraryManager = new LibraryManager(modelManager);
-      // if (packages != null) {
-      //     libraryManager.getLibrarySourceLoader().registerProvider(new NpmLibrarySourceProvider(packages, reader, logger));
-      // }
-      libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
-      libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(Paths.get(folder)));
-
-      // loadNamespaces(libraryManager);
-
-      // foreach *.cql file
-      // for (File file : new File(folder).listFiles(getCqlFilenameFilter())) {
-      //     translateFile(modelManager, libraryManager, file, options);
-      // }
-
-  
-      // ModelManager modelManager = new ModelManager();
-      // GenericLibrarySourceProvider sourceProvider = new GenericLibrarySourceProvider(folder);
-      // LibraryManager libraryManager = new LibraryManager(modelManager);
-      // libraryManager.getLibrarySourceLoader().registerProvider(sourceProvider);
-
-      CqlTranslator translator = IOUtils.translate(cqlContentPath, modelManager, libraryManager, options);      
+      String cacheKey = null;
+      if (ElmCache.isEnabled()) {
+        cacheKey = ElmCache.getKey(new File(cqlContentPath), options, null);
+        ElmCache.Entry cached = ElmCache.get(cacheKey);
+        if (cached != null) {
+          elm = ElmCache.readLibrary(cached.getXmlPath());
+          cachedElm.put(cqlContentPath, new CachedElm(elm, lastModified));
+          return elm;
+        }
+      }
+
+      // The model and library managers are shared by every library in the folder, so models are loaded and
+      // included libraries are translated once rather than once per call
+      CqlTranslationContext context = CqlTranslationContext.forFolder(folder, options);
+      CqlTranslator translator = context.translate(cqlContentPath);
       elm = translator.toELM(); 
-      cachedElm.put(cqlContentPath, elm);
+      if (cacheKey != null) {
+        ElmCache.Entry entry = new ElmCache.Entry();
+        entry.setIdentifier(elm.getIdentifier());
+        org.hl7.elm.r1.Library translated = elm;
+        ElmCache.put(cacheKey, entry, output -> ElmSerializer.writeXml(translated, output), null);
+      }
+      cachedElm.put(cqlContentPath, new CachedElm(elm, lastModified));
       return elm; 
     }  
 
+    public static void clearElmCache() {
+      cachedElm.clear();
+      CqlTranslationContext.clear();
+    }
+
     public static Boolean safeAddResource(String path, Map<String, IBaseResource> resources, FhirContext fhirContext) {
       Boolean added = true;
       try {
@@ -0,0 +1,213 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.function.Consumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Reads the entry resources of a Bundle file one at a time, so that a bundle of any size can be split into its
+ * resources with only one of them in memory. The file is walked with a token-level JSON reader (or a StAX reader
+ * for XML) up to the resource of each entry, whose content alone is then parsed into the HAPI model. Everything else
+ * in the bundle (its metadata, and the request, response and search of each entry) is skipped.
+ */
+public class StreamingBundleReader {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Gives the consumer the resource of each entry of the bundle in the given json or xml file, in order, on the
+     * calling thread. A file that does not hold a Bundle has no entries.
+     *
+     * @return The number of resources read
+     */
+    public static int readEntries(File bundleFile, FhirContext fhirContext, Consumer<IBaseResource> consumer) throws IOException {
+        Encoding encoding = IOUtils.getEncoding(bundleFile.getPath());
+        if (encoding != Encoding.JSON && encoding != Encoding.XML) {
+            throw new IllegalArgumentException("The path to a bundle file of type json or xml is required: " + bundleFile.getPath());
+        }
+
+        IParser parser = IOUtils.getParser(encoding, fhirContext);
+        try (InputStream input = FileContentReader.newInputStream(bundleFile.toPath())) {
+            if (encoding == Encoding.JSON) {
+                return readJsonEntries(input, parser, consumer);
+            }
+            return readXmlEntries(input, parser, consumer);
+        }
+        catch (XMLStreamException e) {
+            throw new IOException(String.format("Error reading bundle %s: %s", bundleFile.getPath(), e.getMessage()), e);
+        }
+    }
+
+    private static int readJsonEntries(InputStream input, IParser parser, Consumer<IBaseResource> consumer) throws IOException {
+        int count = 0;
+        try (JsonParser json = jsonFactory.createParser(input)) {
+            if (json.nextToken() != JsonToken.START_OBJECT) {
+                return 0;
+            }
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                JsonToken value = json.nextToken();
+                if (field.equals("resourceType") && !"Bundle".equals(json.getText())) {
+                    return 0;
+                }
+                if (!field.equals("entry") || value != JsonToken.START_ARRAY) {
+                    json.skipChildren();
+                    continue;
+                }
+
+                while (json.nextToken() == JsonToken.START_OBJECT) {
+                    while (json.nextToken() == JsonToken.FIELD_NAME) {
+                        String entryField = json.getCurrentName();
+                        JsonToken entryValue = json.nextToken();
+                        if (entryField.equals("resource") && entryValue == JsonToken.START_OBJECT) {
+                            StringWriter resource = new StringWriter();
+                            try (JsonGenerator generator = jsonFactory.createGenerator(resource)) {
+                                generator.copyCurrentStructure(json);
+                            }
+                            consumer.accept(parser.parseResource(resource.toString()));
+                            count++;
+                        }
+                        else {
+                            json.skipChildren();
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int readXmlEntries(InputStream input, IParser parser, Consumer<IBaseResource> consumer) throws XMLStreamException {
+        int count = 0;
+        XMLStreamReader xml = xmlInputFactory.createXMLStreamReader(input);
+        try {
+            if (xml.nextTag() != XMLStreamConstants.START_ELEMENT || !xml.getLocalName().equals("Bundle")) {
+                return 0;
+            }
+            // Children of the Bundle
+            while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (!xml.getLocalName().equals("entry")) {
+                    skipElement(xml);
+                    continue;
+                }
+                // Children of the entry
+                while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (!xml.getLocalName().equals("resource")) {
+                        skipElement(xml);
+                        continue;
+                    }
+                    // The resource element holds the resource itself
+                    while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        consumer.accept(parser.parseResource(copyElement(xml)));
+                        count++;
+                    }
+                }
+            }
+        }
+        finally {
+            xml.close();
+        }
+        return count;
+    }
+
+    // Skips the element the reader is on, leaving the reader on its end
+    private static void skipElement(XMLStreamReader xml) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    // Copies the element the reader is on as a document of its own, leaving the reader on its end
+    private static String copyElement(XMLStreamReader xml) throws XMLStreamException {
+        StringWriter output = new StringWriter();
+        XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(output);
+        int depth = 0;
+        do {
+            switch (xml.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String prefix = xml.getPrefix() == null ? "" : xml.getPrefix();
+                    String namespace = xml.getNamespaceURI() == null ? "" : xml.getNamespaceURI();
+                    writer.writeStartElement(prefix, xml.getLocalName(), namespace);
+                    boolean declared = false;
+                    for (int i = 0; i < xml.getNamespaceCount(); i++) {
+                        String namespacePrefix = xml.getNamespacePrefix(i) == null ? "" : xml.getNamespacePrefix(i);
+                        writer.writeNamespace(namespacePrefix, xml.getNamespaceURI(i));
+                        declared |= namespacePrefix.equals(prefix);
+                    }
+                    // The namespace of the copied element is typically declared by the bundle
+                    if (depth == 0 && !declared && !namespace.isEmpty()) {
+                        writer.writeNamespace(prefix, namespace);
+                    }
+                    for (int i = 0; i < xml.getAttributeCount(); i++) {
+                        String attributeNamespace = xml.getAttributeNamespace(i);
+                        if (attributeNamespace == null || attributeNamespace.isEmpty()) {
+                            writer.writeAttribute(xml.getAttributeLocalName(i), xml.getAttributeValue(i));
+                        }
+                        else {
+                            writer.writeAttribute(xml.getAttributePrefix(i), attributeNamespace, xml.getAttributeLocalName(i), xml.getAttributeValue(i));
+                        }
+                    }
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(xml.getText());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(xml.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(xml.getText());
+                    break;
+                default:
+                    break;
+            }
+            if (depth > 0) {
+                xml.next();
+            }
+        } while (depth > 0);
+        writer.close();
+        return output.toString();
+    }
+}
@@ -0,0 +1,109 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
+
+import com.google.gson.Gson;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Writes a transaction Bundle to a stream one entry at a time, so that only the entry being written is held in its
+ * encoded form rather than the whole bundle. The bundle's id and type are written when the writer is created, each
+ * entry is encoded by writeEntry as a PUT of its resource, and close ends the bundle and closes the stream.
+ *
+ * The output is the same Bundle the HAPI parser produces for the equivalent model, though not necessarily the same
+ * bytes: JSON entries are indented to their depth in the bundle, XML entries are written as encoded.
+ */
+public class StreamingBundleWriter implements Closeable {
+
+    private static final Gson gson = new Gson();
+
+    private final Writer writer;
+    private final Encoding encoding;
+    // Confined to the writing thread
+    private final IParser parser;
+    private int entryCount;
+
+    /**
+     * Starts a transaction bundle with the given id (if not null) on the output.
+     */
+    public StreamingBundleWriter(OutputStream output, String id, Encoding encoding, FhirContext fhirContext) throws IOException {
+        if (encoding != Encoding.JSON && encoding != Encoding.XML) {
+            throw new IllegalArgumentException("Bundles can only be written as json or xml: " + encoding);
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        this.encoding = encoding;
+        this.parser = IOUtils.getParser(encoding, fhirContext).setPrettyPrint(true);
+
+        if (encoding == Encoding.JSON) {
+            writer.write("{\n  \"resourceType\": \"Bundle\",\n");
+            if (id != null) {
+                writer.write("  \"id\": " + gson.toJson(id) + ",\n");
+            }
+            writer.write("  \"type\": \"transaction\"");
+        }
+        else {
+            writer.write("<Bundle xmlns=\"http://hl7.org/fhir\">\n");
+            if (id != null) {
+                writer.write("   <id value=\"" + escapeXml(id) + "\"/>\n");
+            }
+            writer.write("   <type value=\"transaction\"/>\n");
+        }
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Encodes the resource and writes it to the bundle as an entry with a PUT request to the given url.
+     */
+    public void writeEntry(IBaseResource resource, String requestUrl) throws IOException {
+        String encoded = parser.encodeResourceToString(resource);
+        if (encoding == Encoding.JSON) {
+            writer.write(entryCount == 0 ? ",\n  \"entry\": [ {\n    \"resource\": " : ", {\n    \"resource\": ");
+            // Line breaks in JSON string values are escaped, so every line of the encoding is structure to indent
+            writer.write(encoded.replace("\n", "\n    "));
+            writer.write(",\n    \"request\": {\n      \"method\": \"PUT\",\n      \"url\": " + gson.toJson(requestUrl) + "\n    }\n  }");
+        }
+        else {
+            writer.write("   <entry>\n      <resource>\n");
+            writer.write(encoded);
+            writer.write("\n      </resource>\n      <request>\n         <method value=\"PUT\"/>\n         <url value=\""
+                + escapeXml(requestUrl) + "\"/>\n      </request>\n   </entry>\n");
+        }
+        entryCount++;
+    }
+
+    /**
+     * Ends the bundle and closes the output.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (encoding == Encoding.JSON) {
+                writer.write(entryCount == 0 ? "\n}" : " ]\n}");
+            }
+            else {
+                writer.write("</Bundle>");
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,108 @@
+package org.opencds.cqf.tooling.visitor;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+/**
+ * The requirements reported by visiting a definition (and everything it references), kept so that a library shared
+ * by many dependents (e.g. FHIRHelpers or a common library) is visited once rather than once per dependent.
+ *
+ * Entries are keyed by library identifier, version and the visited definitions, and refer weakly to the
+ * TranslatedLibrary they were gathered from; an entry is only used for that same TranslatedLibrary, so a library
+ * translated again (or resolved through a different library manager) is visited again rather than answered with
+ * stale elements, and the entries of a library that is no longer used are dropped.
+ */
+public class ElmRequirementsCache {
+
+    private static class Entry extends WeakReference<TranslatedLibrary> {
+        private final String key;
+        private final List<ElmRequirement> requirements;
+
+        Entry(String key, TranslatedLibrary library, List<ElmRequirement> requirements, ReferenceQueue<TranslatedLibrary> queue) {
+            super(library, queue);
+            this.key = key;
+            this.requirements = requirements;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ReferenceQueue<TranslatedLibrary> collectedLibraries = new ReferenceQueue<TranslatedLibrary>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public static String getKey(VersionedIdentifier libraryIdentifier, String definitions) {
+        return (libraryIdentifier.getSystem() == null ? "" : libraryIdentifier.getSystem()) + "|" + libraryIdentifier.getId()
+            + "|" + (libraryIdentifier.getVersion() == null ? "" : libraryIdentifier.getVersion()) + "\n" + definitions;
+    }
+
+    /**
+     * Returns the requirements stored under the key for the given library, or null if there are none.
+     */
+    public List<ElmRequirement> get(String key, TranslatedLibrary library) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.get() == library) {
+            hits.incrementAndGet();
+            return entry.requirements;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, TranslatedLibrary library, Iterable<ElmRequirement> requirements) {
+        List<ElmRequirement> list = new ArrayList<ElmRequirement>();
+        for (ElmRequirement requirement : requirements) {
+            list.add(requirement);
+        }
+        removeCollectedEntries();
+        entries.put(key, new Entry(key, library, Collections.unmodifiableList(list), collectedLibraries));
+    }
+
+    /**
+     * @return The number of entries, including any whose library has been collected but not yet removed
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The reference to the library of the entry with the given key, or null if there is none
+     */
+    Reference<TranslatedLibrary> getReference(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Removes the entries whose library has been collected (done on every put).
+     */
+    void removeCollectedEntries() {
+        Reference<? extends TranslatedLibrary> reference;
+        while ((reference = collectedLibraries.poll()) != null) {
+            Entry entry = (Entry) reference;
+            entries.remove(entry.key, entry);
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        entries.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+}
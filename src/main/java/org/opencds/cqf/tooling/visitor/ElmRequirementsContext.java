@@ -55,6 +55,18 @@ public class ElmRequirementsContext {
         return visitor;
     }
 
+    private ElmRequirementsCache cache;
+    public ElmRequirementsCache getCache() {
+        return cache;
+    }
+    /*
+    When set, the requirements of definitions referenced in other libraries are taken from (and added to) the cache
+    rather than gathered by visiting those libraries.
+     */
+    public void setCache(ElmRequirementsCache cache) {
+        this.cache = cache;
+    }
+
     public ElmRequirementsContext(LibraryManager libraryManager, CqlTranslatorOptions options, ElmRequirementsVisitor visitor) {
         if (libraryManager == null) {
             throw new IllegalArgumentException("Library Manager required");
@@ -73,6 +85,39 @@ public class ElmRequirementsContext {
         requirements.reportRequirement(getCurrentLibraryIdentifier(), element);
     }
 
+    /*
+    Reports the requirements of definitions in an included library, gathered in a separate context (so that they do
+    not depend on what this context has already visited) and cached. Requirements this context has already reported
+    are skipped, as a visit would skip them.
+     */
+    private void reportCachedRequirements(TranslatedLibrary targetLibrary, String definitions, List<? extends Element> defs) {
+        String key = ElmRequirementsCache.getKey(targetLibrary.getIdentifier(), definitions);
+        List<ElmRequirement> cached = cache.get(key, targetLibrary);
+        if (cached == null) {
+            ElmRequirementsContext definitionContext = new ElmRequirementsContext(libraryManager, options, visitor);
+            definitionContext.setCache(cache);
+            definitionContext.enterLibrary(targetLibrary.getIdentifier());
+            try {
+                for (Element def : defs) {
+                    if (!definitionContext.visited.contains(def)) {
+                        visitor.visitElement(def, definitionContext);
+                    }
+                }
+            }
+            finally {
+                definitionContext.exitLibrary();
+            }
+            cache.put(key, targetLibrary, definitionContext.getRequirements().getRequirements());
+            cached = cache.get(key, targetLibrary);
+        }
+
+        for (ElmRequirement requirement : cached) {
+            if (visited.add(requirement.getElement())) {
+                requirements.reportRequirement(requirement);
+            }
+        }
+    }
+
     public void reportUsingDef(UsingDef usingDef) {
         reportRequirement(usingDef);
     }
@@ -207,7 +252,10 @@ public class ElmRequirementsContext {
         TranslatedLibrary targetLibrary = prepareLibraryVisit(getCurrentLibraryIdentifier(), expressionRef.getLibraryName());
         try {
             ExpressionDef ed = targetLibrary.resolveExpressionRef(expressionRef.getName());
-            if (!visited.contains(ed)) {
+            if (!visited.contains(ed) && cache != null && expressionRef.getLibraryName() != null) {
+                reportCachedRequirements(targetLibrary, "expression:" + expressionRef.getName(), Collections.singletonList(ed));
+            }
+            else if (!visited.contains(ed)) {
                 visitor.visitElement(ed, this);
 
                 // TODO: Report context?
@@ -223,6 +271,16 @@ public class ElmRequirementsContext {
         try {
             // TODO: Needs full operator resolution to be able to distinguish overloads.
             // For now, reports all overloads
+            if (cache != null && functionRef.getLibraryName() != null) {
+                List<ExpressionDef> overloads = new ArrayList<ExpressionDef>();
+                for (ExpressionDef def : targetLibrary.getLibrary().getStatements().getDef()) {
+                    if (def instanceof FunctionDef && def.getName().equals(functionRef.getName())) {
+                        overloads.add(def);
+                    }
+                }
+                reportCachedRequirements(targetLibrary, "function:" + functionRef.getName(), overloads);
+                return;
+            }
             for (ExpressionDef def : targetLibrary.getLibrary().getStatements().getDef()) {
                 if (def instanceof FunctionDef && def.getName().equals(functionRef.getName())) {
                     if (!visited.contains(def)) {
@@ -0,0 +1,107 @@
+package org.opencds.cqf.tooling.measure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
+import org.hl7.fhir.r5.model.Expression;
+import org.hl7.fhir.r5.model.Measure;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencds.cqf.tooling.processor.CqlProcessor;
+import org.opencds.cqf.tooling.utilities.CqlTranslationService;
+import org.opencds.cqf.tooling.utilities.ElmCache;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class MeasureRefreshCacheTests {
+
+    private static final String DATA_REQUIREMENT_URL = "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-dataRequirement";
+
+    private static final ILoggingService logger = new ILoggingService() {
+        @Override
+        public void logMessage(String message) {
+        }
+
+        @Override
+        public void logDebugMessage(LogCategory category, String message) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cql;
+
+    @Before
+    public void setUp() throws IOException {
+        cql = folder.newFolder("cql");
+        write("Common.cql", "library Common version '1.0.0'\n\nusing FHIR version '4.0.1'\n\ninclude FHIRHelpers version '4.0.1'\n\n"
+            + "context Patient\n\ndefine \"Encounters\": [Encounter]\n");
+        write("Screening.cql", "library Screening version '1.0.0'\n\nusing FHIR version '4.0.1'\n\ninclude FHIRHelpers version '4.0.1'\n"
+            + "include Common version '1.0.0'\n\ncontext Patient\n\ndefine \"Initial Population\": exists Common.\"Encounters\"\n\n"
+            + "define \"Numerator\": exists [Observation]\n");
+        ElmCache.setCacheDirectory(folder.newFolder("cache").getPath());
+    }
+
+    @After
+    public void tearDown() {
+        ElmCache.setCacheDirectory(null);
+        CqlTranslationService.reset();
+    }
+
+    private void write(String name, String content) throws IOException {
+        Files.write(new File(cql, name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Measure newMeasure() {
+        Measure measure = new Measure();
+        measure.setId("screening");
+        measure.addLibrary("http://example.org/fhir/Library/Screening|1.0.0");
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        group.addPopulation().setCriteria(new Expression().setLanguage("text/cql").setExpression("Initial Population"));
+        group.addPopulation().setCriteria(new Expression().setLanguage("text/cql").setExpression("Numerator"));
+        return measure;
+    }
+
+    // A run of the IG refresh: the CQL is translated (or restored) and the measure refreshed from its library
+    private Measure refresh() {
+        CqlTranslationService.reset();
+        CqlProcessor cqlProcessor = new CqlProcessor(null, Collections.singletonList(cql.getPath()), null, logger, null, null, null);
+        cqlProcessor.execute();
+        MeasureProcessor measureProcessor = new MeasureProcessor();
+        measureProcessor.fhirContext = FhirContext.forR4();
+        return measureProcessor.refreshGeneratedContent(newMeasure(), cqlProcessor);
+    }
+
+    @Test
+    public void TestWarmRunDoesNotTranslate() {
+        Measure cold = refresh();
+        assertTrue(CqlTranslationService.getCompilationCount() > 0);
+        assertTrue(cold.getExtensionsByUrl(DATA_REQUIREMENT_URL).size() > 0);
+
+        Measure warm = refresh();
+        assertEquals("The translator was invoked on a warm run", 0, CqlTranslationService.getCompilationCount());
+        assertEquals(cold.getExtensionsByUrl(DATA_REQUIREMENT_URL).size(), warm.getExtensionsByUrl(DATA_REQUIREMENT_URL).size());
+        assertEquals(cold.getRelatedArtifact().size(), warm.getRelatedArtifact().size());
+    }
+
+    @Test
+    public void TestChangedIncludeIsTranslatedAgain() throws IOException {
+        refresh();
+
+        write("Common.cql", "library Common version '1.0.0'\n\nusing FHIR version '4.0.1'\n\ninclude FHIRHelpers version '4.0.1'\n\n"
+            + "context Patient\n\ndefine \"Encounters\": [Encounter] union [Encounter]\n");
+        refresh();
+        assertTrue(CqlTranslationService.getCompilationCount() > 0);
+    }
+}
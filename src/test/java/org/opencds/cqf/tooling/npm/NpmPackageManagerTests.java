@@ -1,6 +1,7 @@
 package org.opencds.cqf.tooling.npm;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -8,9 +9,15 @@ import java.io.InputStream;
 import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class NpmPackageManagerTests implements IWorkerContext.ILoggingService {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     /*
     NOTE: This test depends on the dev package cache for the [sample-ig](https://github.com/FHIR/sample-ig)
     Running the IG publisher on a clone of this IG locally will create and cache the package
@@ -67,6 +74,21 @@ public class NpmPackageManagerTests implements IWorkerContext.ILoggingService {
         assertTrue(is != null);
     }
 
+    @Test
+    public void TestOfflineReportsMissingPackages() throws IOException {
+        NpmPackageManager.setOfflinePackageDirectory(folder.getRoot().getPath());
+        try {
+            NpmPackageManager.fromStream(NpmPackageManagerTests.class.getResourceAsStream("myig.xml"), "4.0.1");
+            fail("Expected the missing core package to be reported");
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("hl7.fhir.r4.core#4.0.1 is not available offline"));
+        }
+        finally {
+            NpmPackageManager.setOfflinePackageDirectory(null);
+        }
+    }
+
     @Override
     public void logMessage(String msg) {
         System.out.println(msg);
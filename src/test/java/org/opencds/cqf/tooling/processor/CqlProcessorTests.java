@@ -0,0 +1,125 @@
+package org.opencds.cqf.tooling.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CqlProcessorTests {
+
+    private static final ILoggingService logger = new ILoggingService() {
+        @Override
+        public void logMessage(String message) {
+        }
+
+        @Override
+        public void logDebugMessage(LogCategory category, String message) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final int defaultParallelism = CqlProcessor.getTranslationParallelism();
+
+    @After
+    public void tearDown() {
+        CqlProcessor.setTranslationParallelism(defaultParallelism);
+    }
+
+    private static File write(File directory, String name, String content) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static CqlProcessor execute(File directory) {
+        CqlProcessor processor = new CqlProcessor(null, Collections.singletonList(directory.getPath()), null, logger, null, null, null);
+        processor.execute();
+        return processor;
+    }
+
+    private static boolean hasErrors(CqlProcessor.CqlSourceFileInformation information) {
+        for (ValidationMessage message : information.getErrors()) {
+            if (message.getLevel() == IssueSeverity.ERROR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long countTranslatorThreads() {
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().startsWith("cql-translator-")).count();
+    }
+
+    @Test
+    public void TestBrokenLibraryOnlyFailsItsDependents() throws IOException {
+        CqlProcessor.setTranslationParallelism(4);
+        File directory = folder.newFolder("cql");
+        File common = write(directory, "Common.cql", "library Common version '1.0.0'\n\ndefine \"Broken\": (\n");
+        File measure = write(directory, "Measure.cql", "library Measure version '1.0.0'\n\ninclude Common version '1.0.0'\n\ndefine \"Result\": Common.\"Broken\"\n");
+        File first = write(directory, "First.cql", "library First version '1.0.0'\n\ndefine \"One\": 1\n");
+        File second = write(directory, "Second.cql", "library Second version '1.0.0'\n\ninclude First version '1.0.0'\n\ndefine \"Two\": First.\"One\" + 1\n");
+
+        CqlProcessor processor = execute(directory);
+
+        CqlProcessor.CqlSourceFileInformation commonInformation = processor.getFileInformation(common.getAbsolutePath());
+        CqlProcessor.CqlSourceFileInformation measureInformation = processor.getFileInformation(measure.getAbsolutePath());
+        assertTrue(hasErrors(commonInformation));
+        assertTrue(hasErrors(measureInformation));
+        assertFalse(measureInformation.hasElm());
+
+        CqlProcessor.CqlSourceFileInformation firstInformation = processor.getFileInformation(first.getAbsolutePath());
+        CqlProcessor.CqlSourceFileInformation secondInformation = processor.getFileInformation(second.getAbsolutePath());
+        assertFalse(hasErrors(firstInformation));
+        assertFalse(hasErrors(secondInformation));
+        assertTrue(secondInformation.hasElm());
+        assertEquals("Second", secondInformation.getIdentifier().getId());
+    }
+
+    @Test(timeout = 60000)
+    public void TestCircularIncludesAreReportedNotDeadlocked() throws IOException {
+        CqlProcessor.setTranslationParallelism(4);
+        File directory = folder.newFolder("cql");
+        File a = write(directory, "A.cql", "library A version '1.0.0'\n\ninclude B version '1.0.0'\n\ndefine \"A\": 1\n");
+        File b = write(directory, "B.cql", "library B version '1.0.0'\n\ninclude A version '1.0.0'\n\ndefine \"B\": 2\n");
+
+        CqlProcessor processor = execute(directory);
+
+        assertTrue(hasErrors(processor.getFileInformation(a.getAbsolutePath())));
+        assertTrue(hasErrors(processor.getFileInformation(b.getAbsolutePath())));
+    }
+
+    @Test
+    public void TestFoldersShareOneTranslationPool() throws IOException {
+        CqlProcessor.setTranslationParallelism(2);
+        long threads = -1;
+        for (int i = 0; i < 8; i++) {
+            File directory = folder.newFolder("cql-" + i);
+            for (int j = 0; j < 4; j++) {
+                write(directory, "L" + j + ".cql", "library L" + j + " version '1.0.0'\n\ndefine \"Value\": " + j + "\n");
+            }
+            CqlProcessor processor = execute(directory);
+            assertNotNull(processor.getFileInformation(new File(directory, "L3.cql").getAbsolutePath()).getIdentifier());
+            if (threads < 0) {
+                threads = countTranslatorThreads();
+            }
+            // No folder adds threads of its own
+            assertTrue(countTranslatorThreads() <= threads);
+        }
+    }
+}
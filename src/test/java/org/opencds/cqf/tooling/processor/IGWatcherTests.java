@@ -0,0 +1,119 @@
+package org.opencds.cqf.tooling.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencds.cqf.tooling.parameter.RefreshIGParameters;
+import org.opencds.cqf.tooling.utilities.CqlTranslationContext;
+import org.opencds.cqf.tooling.utilities.CqlTranslationService;
+import org.opencds.cqf.tooling.utilities.IOUtils;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class IGWatcherTests {
+
+    // An IG of CQL and Library resources, without packages
+    private static class TestIGProcessor extends IGProcessor {
+        private CqlProcessor cqlProcessor;
+
+        TestIGProcessor(File root, File cql) {
+            rootDir = root.getPath();
+            fhirVersion = "4.0.1";
+            canonicalBase = "http://example.org/fhir";
+            setBinaryPaths(Collections.singletonList(cql.getAbsolutePath()));
+        }
+
+        @Override
+        public CqlProcessor getCqlProcessor() {
+            if (cqlProcessor == null) {
+                cqlProcessor = new CqlProcessor(null, getBinaryPaths(), null, this, null, null, canonicalBase);
+                cqlProcessor.setRetainTranslations(true);
+            }
+            return cqlProcessor;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cql;
+    private File libraries;
+    private IGWatcher watcher;
+
+    @Before
+    public void setUp() throws IOException {
+        cql = folder.newFolder("input", "cql");
+        libraries = folder.newFolder("input", "resources", "library");
+        writeCql("Common", "library Common version '1.0.0'\n\ndefine \"One\": 1\n");
+        writeCql("Screening", "library Screening version '1.0.0'\n\ninclude Common version '1.0.0'\n\ndefine \"Two\": Common.\"One\" + 1\n");
+        writeCql("Other", "library Other version '1.0.0'\n\ndefine \"Three\": 3\n");
+        for (String name : new String[] { "Common", "Screening", "Other" }) {
+            writeLibrary(name);
+        }
+        IOUtils.resourceDirectories.clear();
+        IOUtils.resourceDirectories.add(new File(folder.getRoot(), "input/resources").getPath());
+        IOUtils.invalidateResourceIndex();
+
+        RefreshIGParameters params = new RefreshIGParameters();
+        params.outputEncoding = IOUtils.Encoding.JSON;
+        params.versioned = false;
+        params.cdsHooksIg = false;
+        params.includePatientScenarios = false;
+        watcher = new IGWatcher(new TestIGProcessor(folder.getRoot(), cql), params, FhirContext.forR4());
+    }
+
+    @After
+    public void tearDown() {
+        IOUtils.resourceDirectories.clear();
+        IOUtils.invalidateResourceIndex();
+        CqlTranslationService.reset();
+        CqlTranslationContext.clear();
+    }
+
+    private File writeCql(String name, String content) throws IOException {
+        File file = new File(cql, name + ".cql");
+        boolean existed = file.exists();
+        long previous = file.lastModified();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        if (existed) {
+            // Past the resolution of the file system's modification times
+            file.setLastModified(previous + 2000);
+        }
+        return file;
+    }
+
+    private void writeLibrary(String name) throws IOException {
+        Files.write(new File(libraries, "library-" + name + ".json").toPath(),
+            ("{ \"resourceType\": \"Library\", \"id\": \"" + name + "\", \"name\": \"" + name + "\", \"version\": \"1.0.0\", \"status\": \"draft\" }")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readLibrary(String name) throws IOException {
+        return new String(Files.readAllBytes(new File(libraries, "library-" + name + ".json").toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void TestChangedLibraryRefreshesOnlyItsDependents() throws IOException {
+        String other = readLibrary("Other");
+        File common = writeCql("Common", "library Common version '1.0.0'\n\ndefine \"One\": 1 + 0\n");
+
+        watcher.refresh(Collections.singleton(common.toPath().toAbsolutePath().normalize()));
+
+        assertTrue(readLibrary("Common").contains("text/cql"));
+        assertTrue(readLibrary("Screening").contains("text/cql"));
+        assertEquals(other, readLibrary("Other"));
+        assertFalse(readLibrary("Other").contains("text/cql"));
+    }
+}
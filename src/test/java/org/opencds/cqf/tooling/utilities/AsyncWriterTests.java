@@ -0,0 +1,104 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncWriterTests {
+
+    private static final int SUBMITTERS = 4;
+    private static final int WRITES_PER_SUBMITTER = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void TestConcurrentWritesToOneFileKeepSubmissionOrder() throws Exception {
+        Path target = new File(folder.getRoot(), "bundle.json").toPath();
+        AsyncWriter writer = new AsyncWriter(4, 8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> submitters = new ArrayList<>();
+        try {
+            for (int t = 0; t < SUBMITTERS; t++) {
+                String name = "submitter-" + t;
+                Thread submitter = new Thread(() -> {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < WRITES_PER_SUBMITTER; i++) {
+                        byte[] line = (name + " " + i + "\n").getBytes(StandardCharsets.UTF_8);
+                        // Appends that overlapped or ran out of order would show in the file
+                        writer.submit(target, () -> Files.write(target, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+                    }
+                });
+                submitters.add(submitter);
+                submitter.start();
+            }
+            start.countDown();
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+            writer.flush();
+        }
+        finally {
+            writer.close();
+        }
+
+        List<String> lines = Files.readAllLines(target, StandardCharsets.UTF_8);
+        assertEquals(SUBMITTERS * WRITES_PER_SUBMITTER, lines.size());
+        int[] next = new int[SUBMITTERS];
+        for (String line : lines) {
+            String[] parts = line.split(" ");
+            int submitter = Integer.parseInt(parts[0].substring("submitter-".length()));
+            assertEquals(next[submitter]++, Integer.parseInt(parts[1]));
+        }
+        assertEquals(0, writer.getPendingCount());
+    }
+
+    @Test
+    public void TestFailuresAreReportedForTheirOwnFile() throws IOException {
+        File failing = folder.newFolder("failing");
+        File other = folder.newFolder("other");
+        Path failed = new File(failing, "missing/bundle.json").toPath();
+        Path written = new File(other, "bundle.json").toPath();
+        AsyncWriter writer = new AsyncWriter(1, 1);
+        try {
+            writer.submit(failed, () -> Files.write(failed, "content".getBytes(StandardCharsets.UTF_8)));
+            // Neither later writes nor waits for other files report it
+            writer.submit(written, () -> Files.write(written, "content".getBytes(StandardCharsets.UTF_8)));
+            writer.await(written);
+            writer.awaitUnder(other.toPath());
+            assertTrue(Files.isRegularFile(written));
+
+            try {
+                writer.awaitUnder(failing.toPath());
+                fail("Expected the failed write to be reported");
+            }
+            catch (RuntimeException e) {
+                assertTrue(e.getMessage().contains("bundle.json"));
+            }
+            // Reported once
+            writer.flush();
+        }
+        finally {
+            writer.close();
+        }
+    }
+}
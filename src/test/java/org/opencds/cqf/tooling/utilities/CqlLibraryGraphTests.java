@@ -0,0 +1,145 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CqlLibraryGraphTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static int levelOf(CqlLibraryGraph graph, File file) {
+        List<List<File>> levels = graph.getLevels();
+        for (int i = 0; i < levels.size(); i++) {
+            if (levels.get(i).contains(file)) {
+                return i;
+            }
+        }
+        throw new AssertionError(file + " is not in any level");
+    }
+
+    @Test
+    public void TestLevelsFollowIncludes() throws IOException {
+        File a = write("A.cql", "library A version '1.0.0'\nusing FHIR version '4.0.1'\ninclude B version '1.0.0' called B\ninclude FHIRHelpers version '4.0.1'\n");
+        File b = write("B.cql", "library B version '1.0.0'\ninclude C called C\n");
+        File c = write("C.cql", "library C\n");
+        File d = write("D.cql", "library D\nusing FHIR version '4.0.1'\n");
+
+        CqlLibraryGraph graph = CqlLibraryGraph.build(Arrays.asList(a, b, c, d));
+
+        assertEquals(Arrays.asList(Arrays.asList(c, d), Collections.singletonList(b), Collections.singletonList(a)), graph.getLevels());
+        assertEquals(Collections.singleton(new CqlLibraryGraph.Declaration("FHIR", "4.0.1")), graph.getModels());
+        assertEquals(Arrays.asList(new CqlLibraryGraph.Declaration("B", "1.0.0"), new CqlLibraryGraph.Declaration("FHIRHelpers", "4.0.1")),
+            graph.getNode(a).getIncludes());
+    }
+
+    @Test
+    public void TestIgnoresCommentsAndReadsQualifiedNames() throws IOException {
+        File a = write("A.cql", "// include Commented called X\nlibrary \"A\"\n/* include AlsoCommented\n called Y */\n"
+            + "include org.example.\"B\" version '1.0' called B\n\ndefine \"include C\": 'include D'\n");
+        File b = write("B.cql", "library org.example.B version '1.0'\n");
+        File c = write("C.cql", "library C\n");
+
+        CqlLibraryGraph graph = CqlLibraryGraph.build(Arrays.asList(a, b, c));
+
+        assertEquals("A", graph.getNode(a).getLibrary().getName());
+        assertEquals("B", graph.getNode(b).getLibrary().getName());
+        assertEquals(Collections.singletonList(new CqlLibraryGraph.Declaration("B", "1.0")), graph.getNode(a).getIncludes());
+        assertEquals(2, graph.getLevels().size());
+        assertEquals(1, levelOf(graph, a));
+    }
+
+    @Test
+    public void TestCommentMarkersInQuotedIdentifiersAreKept() throws IOException {
+        File a = write("A.cql", "library A\ninclude \"Odd // Name\" version '1.0' called O\ninclude `Other /* Name` called P\n");
+
+        CqlLibraryGraph graph = CqlLibraryGraph.build(Collections.singletonList(a));
+
+        assertEquals(Arrays.asList(new CqlLibraryGraph.Declaration("Odd // Name", "1.0"), new CqlLibraryGraph.Declaration("Other /* Name", null)),
+            graph.getNode(a).getIncludes());
+    }
+
+    @Test
+    public void TestCyclesAreTranslatedLast() throws IOException {
+        File a = write("A.cql", "library A\ninclude B\n");
+        File b = write("B.cql", "library B\ninclude A\n");
+        File c = write("C.cql", "include C\n");
+
+        CqlLibraryGraph graph = CqlLibraryGraph.build(Arrays.asList(a, b, c));
+
+        assertEquals("C", graph.getNode(c).getLibrary().getName());
+        assertEquals(Arrays.asList(Collections.singletonList(c), Arrays.asList(a, b)), graph.getLevels());
+    }
+
+    @Test
+    public void TestDependentsAreTransitive() throws IOException {
+        File a = write("A.cql", "library A\ninclude B\n");
+        File b = write("B.cql", "library B\ninclude C\n");
+        File c = write("C.cql", "library C\n");
+        File d = write("D.cql", "library D\ninclude C\n");
+        File e = write("E.cql", "library E\n");
+
+        CqlLibraryGraph graph = CqlLibraryGraph.build(Arrays.asList(a, b, c, d, e));
+
+        assertEquals(new HashSet<File>(Arrays.asList(a, b, c, d)), graph.getDependents(Collections.singletonList(c)));
+        assertEquals(new HashSet<File>(Arrays.asList(a, b)), graph.getDependents(Collections.singletonList(b)));
+        assertEquals(Collections.singleton(e), graph.getDependents(Collections.singletonList(e)));
+    }
+
+    @Test
+    public void TestDependentsOfACycle() throws IOException {
+        File a = write("A.cql", "library A\ninclude B\n");
+        File b = write("B.cql", "library B\ninclude A\n");
+        File c = write("C.cql", "library C\ninclude A\n");
+        File d = write("D.cql", "library D\n");
+
+        CqlLibraryGraph graph = CqlLibraryGraph.build(Arrays.asList(a, b, c, d));
+
+        assertEquals(new HashSet<File>(Arrays.asList(a, b, c)), graph.getDependents(Collections.singletonList(a)));
+        assertEquals(new HashSet<File>(Arrays.asList(a, b, c)), graph.getDependents(Collections.singletonList(b)));
+        assertEquals(Collections.singleton(c), graph.getDependents(Collections.singletonList(c)));
+    }
+
+    @Test
+    public void TestOrdersOpioidLibraries() throws URISyntaxException {
+        File directory = new File(CqlLibraryGraphTests.class.getResource("OpioidCDS/cql").toURI());
+        List<File> files = new ArrayList<File>();
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".cql")) {
+                files.add(file);
+            }
+        }
+
+        CqlLibraryGraph graph = CqlLibraryGraph.build(files);
+
+        File helpers = new File(directory, "FHIRHelpers.cql");
+        File common = new File(directory, "OpioidCDSCommon.cql");
+        File rec01 = new File(directory, "OpioidCDSREC01.cql");
+        assertEquals(0, levelOf(graph, helpers));
+        assertTrue(levelOf(graph, common) > levelOf(graph, new File(directory, "OpioidCDSCommonConfig.cql")));
+        assertTrue(levelOf(graph, rec01) > levelOf(graph, common));
+        assertTrue(levelOf(graph, rec01) > levelOf(graph, new File(directory, "OpioidCDSRoutines.cql")));
+        assertEquals(files.size(), graph.getLevels().stream().mapToInt(List::size).sum());
+    }
+}
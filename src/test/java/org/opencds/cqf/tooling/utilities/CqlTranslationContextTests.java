@@ -0,0 +1,90 @@
+package org.opencds.cqf.tooling.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.DefaultLibrarySourceProvider;
+import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class CqlTranslationContextTests {
+
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int ITERATIONS = 3;
+
+    private static final String[] FOLDERS = {
+        "src/test/resources/org/opencds/cqf/tooling/utilities/OpioidCDS/cql",
+        "src/test/resources/org/opencds/cqf/tooling/utilities/CompositeMeasures/cql"
+    };
+
+    private interface Run {
+        void translate(String folder, List<File> files) throws IOException;
+    }
+
+    @After
+    public void tearDown() {
+        CqlTranslationContext.clear();
+    }
+
+    private static CqlTranslatorOptions options() {
+        CqlTranslatorOptions options = CqlTranslatorOptions.defaultOptions();
+        if (!options.getFormats().contains(CqlTranslator.Format.XML)) {
+            options.getFormats().add(CqlTranslator.Format.XML);
+        }
+        return options;
+    }
+
+    private static void time(String name, String folder, List<File> files, Run run) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            run.translate(folder, files);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.translate(folder, files);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-28s %10.2f ms/run", name, elapsed / 1e6 / ITERATIONS));
+    }
+
+    // Compares a new ModelManager and LibraryManager per library (the previous ResourceUtils.getElmFromCql path)
+    // with the managers of a shared context. Each shared run starts from a new context, so it includes loading the models once.
+    @Ignore("Timing comparison, run on demand")
+    @Test
+    public void TestTimeTranslationWithSharedContext() throws IOException {
+        for (String folder : FOLDERS) {
+            List<File> files = new ArrayList<File>();
+            for (String path : IOUtils.getFilePaths(folder, false)) {
+                if (path.endsWith(".cql")) {
+                    files.add(new File(path));
+                }
+            }
+            System.out.println(String.format("%s: %d libraries", folder, files.size()));
+
+            time("managers per library", folder, files, (directory, cqlFiles) -> {
+                for (File file : cqlFiles) {
+                    ModelManager modelManager = new ModelManager();
+                    LibraryManager libraryManager = new LibraryManager(modelManager);
+                    libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
+                    libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(Paths.get(directory)));
+                    CqlTranslator.fromFile(file, modelManager, libraryManager, null, options());
+                }
+            });
+            time("shared translation context", folder, files, (directory, cqlFiles) -> {
+                CqlTranslationContext.clear();
+                CqlTranslationContext context = CqlTranslationContext.forFolder(directory, options());
+                for (File file : cqlFiles) {
+                    CqlTranslator.fromFile(file, context.getModelManager(), context.getLibraryManager(), null, context.getOptions());
+                }
+            });
+        }
+    }
+}
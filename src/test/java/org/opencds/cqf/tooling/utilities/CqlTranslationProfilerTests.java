@@ -0,0 +1,94 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.DefaultLibrarySourceProvider;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class CqlTranslationProfilerTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void enable() {
+        CqlTranslationProfiler.reset();
+        CqlTranslationProfiler.setEnabled(true);
+    }
+
+    @After
+    public void disable() {
+        CqlTranslationProfiler.setEnabled(false);
+        CqlTranslationProfiler.reset();
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void TestProfilesTranslations() throws IOException {
+        write("Common.cql", "library Common version '1.0.0'\n\ndefine One: 1\n");
+        File file = write("Test.cql", "library Test version '1.0.0'\ninclude Common version '1.0.0'\n\ndefine X: Common.One + 1\n");
+
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = CqlTranslationProfiler.newLibraryManager(modelManager);
+        libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(folder.getRoot().toPath()));
+        CqlTranslator translator = CqlTranslationProfiler.translate(file, () -> CqlTranslator.fromFile(file, modelManager, libraryManager));
+
+        List<CqlTranslationProfiler.LibraryProfile> profiles = CqlTranslationProfiler.getProfiles();
+        assertEquals(1, profiles.size());
+        CqlTranslationProfiler.LibraryProfile profile = profiles.get(0);
+        assertEquals("Test", profile.getLibrary());
+        assertEquals("1.0.0", profile.getVersion());
+        assertFalse(profile.isFailed());
+        assertTrue(profile.getParseMillis() > 0);
+        assertTrue(profile.getIncludeResolutionMillis() > 0);
+        assertTrue(profile.getTranslationMillis() >= profile.getIncludeResolutionMillis());
+        assertEquals(ElmSerializer.toXmlBytes(translator.toELM()).length, profile.getElmBytes());
+    }
+
+    @Test
+    public void TestWritesReport() throws IOException {
+        File file = write("Test.cql", "library Test version '1.0.0'\n\ndefine X: 1\n");
+        ModelManager modelManager = new ModelManager();
+        CqlTranslationProfiler.translate(file, () -> CqlTranslator.fromFile(file, modelManager, new LibraryManager(modelManager)));
+
+        File report = new File(folder.getRoot(), "reports/translation-profile.json");
+        CqlTranslationProfiler.writeReport(report.getPath());
+
+        JsonObject json = new JsonParser().parse(new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8)).getAsJsonObject();
+        assertEquals(1, json.get("libraryCount").getAsInt());
+        assertEquals("Test", json.getAsJsonArray("libraries").get(0).getAsJsonObject().get("library").getAsString());
+    }
+
+    @Test
+    public void TestDisabledRecordsNothing() throws IOException {
+        CqlTranslationProfiler.setEnabled(false);
+        File file = write("Test.cql", "library Test version '1.0.0'\n\ndefine X: 1\n");
+        ModelManager modelManager = new ModelManager();
+        CqlTranslationProfiler.translate(file, () -> CqlTranslator.fromFile(file, modelManager, new LibraryManager(modelManager)));
+
+        assertTrue(CqlTranslationProfiler.getProfiles().isEmpty());
+    }
+}
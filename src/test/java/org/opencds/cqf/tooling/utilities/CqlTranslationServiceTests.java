@@ -0,0 +1,157 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.DefaultLibrarySourceProvider;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CqlTranslationServiceTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ModelManager modelManager = new ModelManager();
+    private final CqlTranslatorOptions options = CqlTranslatorOptions.defaultOptions();
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        CqlTranslationService.reset();
+        file = write("Test.cql", "library Test version '1.0.0'\n\ndefine X: 1\n");
+    }
+
+    @After
+    public void tearDown() {
+        CqlTranslationService.reset();
+    }
+
+    private File write(String name, String content) throws IOException {
+        File written = new File(folder.getRoot(), name);
+        Files.write(written.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return written;
+    }
+
+    private CqlTranslator translate(String environment) throws IOException {
+        return CqlTranslationService.translate(file, options, environment,
+            () -> CqlTranslator.fromFile(file, modelManager, new LibraryManager(modelManager), null, options));
+    }
+
+    private LibraryManager newLibraryManager() {
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(folder.getRoot().toPath()));
+        return libraryManager;
+    }
+
+    @Test
+    public void TestNullEnvironmentDoesNotReuseOtherEnvironments() throws IOException {
+        CqlTranslator withEnvironment = translate("ig");
+        CqlTranslator withoutEnvironment = translate(null);
+
+        assertNotSame(withEnvironment, withoutEnvironment);
+        assertSame(withoutEnvironment, translate(null));
+        assertEquals(2, CqlTranslationService.getCompilationCount());
+    }
+
+    @Test(timeout = 60000)
+    public void TestConcurrentCallersCompileOnce() throws Exception {
+        AtomicInteger translations = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Callable<CqlTranslator> call = () -> {
+            start.await();
+            return CqlTranslationService.translate(file, options, "ig", () -> {
+                translations.incrementAndGet();
+                return CqlTranslator.fromFile(file, modelManager, new LibraryManager(modelManager), null, options);
+            });
+        };
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CqlTranslator>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(callers.submit(call));
+            }
+            start.countDown();
+            CqlTranslator first = results.get(0).get(30, TimeUnit.SECONDS);
+            for (Future<CqlTranslator> result : results) {
+                assertSame(first, result.get(30, TimeUnit.SECONDS));
+            }
+        }
+        finally {
+            callers.shutdownNow();
+        }
+        assertEquals(1, translations.get());
+        assertEquals(1, CqlTranslationService.getCompilationCount());
+    }
+
+    @Test
+    public void TestFailedTranslationIsNotKept() throws IOException {
+        try {
+            CqlTranslationService.translate(file, options, "ig", () -> {
+                throw new IOException("Unreadable");
+            });
+            fail("Expected the failure to be reported");
+        }
+        catch (IOException e) {
+            assertEquals("Unreadable", e.getMessage());
+        }
+
+        translate("ig");
+        assertEquals(1, CqlTranslationService.getCompilationCount());
+    }
+
+    @Test
+    public void TestResolutionDoesNotReuseLibrariesOfOtherSystems() throws IOException {
+        TranslatedLibrary translatedLibrary = translate("ig").getTranslatedLibrary();
+
+        List<CqlTranslatorException> errors = new ArrayList<CqlTranslatorException>();
+        TranslatedLibrary resolved = CqlTranslationService.resolveLibrary(newLibraryManager(),
+            new VersionedIdentifier().withId("Test").withVersion("1.0.0"), options, "ig", errors);
+        assertSame(translatedLibrary, resolved);
+
+        resolved = CqlTranslationService.resolveLibrary(newLibraryManager(),
+            new VersionedIdentifier().withSystem("http://example.org/fhir").withId("Test").withVersion("1.0.0"), options, "ig", errors);
+        assertNotSame(translatedLibrary, resolved);
+        assertEquals(2, CqlTranslationService.getCompilationCount());
+    }
+
+    @Test
+    public void TestClearDropsTranslationsAndKeepsCounts() throws IOException {
+        CqlTranslator before = translate("ig");
+        translate("ig");
+
+        CqlTranslationService.clear();
+        assertEquals(1, CqlTranslationService.getCompilationCount());
+        assertEquals(1, CqlTranslationService.getAvoidedCompilationCount());
+
+        assertNotSame(before, translate("ig"));
+        assertEquals(2, CqlTranslationService.getCompilationCount());
+    }
+}
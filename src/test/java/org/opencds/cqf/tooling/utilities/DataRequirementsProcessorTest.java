@@ -6,21 +6,30 @@ import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
 import org.fhir.ucum.UcumEssenceService;
 import org.fhir.ucum.UcumException;
 import org.fhir.ucum.UcumService;
+import org.hl7.elm.r1.Element;
 import org.hl7.elm.r1.Library;
 //import org.hl7.fhir.r5.formats.IParser;
 import ca.uhn.fhir.parser.IParser;
 import org.junit.Test;
 import org.opencds.cqf.tooling.processor.DataRequirementsProcessor;
+import org.opencds.cqf.tooling.visitor.ElmRequirement;
+import org.opencds.cqf.tooling.visitor.ElmRequirementsCache;
+import org.opencds.cqf.tooling.visitor.ElmRequirementsContext;
+import org.opencds.cqf.tooling.visitor.ElmRequirementsVisitor;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class DataRequirementsProcessorTest {
@@ -128,6 +137,46 @@ public class DataRequirementsProcessorTest {
         }
     }
 
+    private static Set<Element> gatherRequirements(TranslatedLibrary library, CqlTranslatorOptions options, ElmRequirementsCache cache) {
+        ElmRequirementsVisitor visitor = new ElmRequirementsVisitor();
+        ElmRequirementsContext context = new ElmRequirementsContext(libraryManager, options, visitor);
+        context.setCache(cache);
+        visitor.visitLibrary(library.getLibrary(), context);
+
+        Set<Element> elements = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        for (ElmRequirement requirement : context.getRequirements().getRequirements()) {
+            elements.add(requirement.getElement());
+        }
+        return elements;
+    }
+
+    @Test
+    public void TestRetranslatedLibrariesAreNotAnsweredFromCache() throws IOException {
+        CqlTranslatorOptions cqlTranslatorOptions = new CqlTranslatorOptions();
+        ElmRequirementsCache cache = new ElmRequirementsCache();
+        CqlTranslator first = createTranslator("CompositeMeasures/cql/EXM124-9.0.000.cql", cqlTranslatorOptions);
+        assertTrue(first.getErrors().isEmpty());
+        cacheLibrary(first.getTranslatedLibrary());
+        Set<Element> firstElements = gatherRequirements(first.getTranslatedLibrary(), cqlTranslatorOptions, cache);
+        int misses = cache.getMisses();
+        int hits = cache.getHits();
+        assertTrue(misses > 0);
+
+        // New managers, so the library and its includes are translated again
+        CqlTranslator second = createTranslator("CompositeMeasures/cql/EXM124-9.0.000.cql", cqlTranslatorOptions);
+        cacheLibrary(second.getTranslatedLibrary());
+        Set<Element> secondElements = gatherRequirements(second.getTranslatedLibrary(), cqlTranslatorOptions, cache);
+
+        assertEquals(2 * misses, cache.getMisses());
+        assertEquals(2 * hits, cache.getHits());
+        assertEquals(firstElements.size(), secondElements.size());
+        for (Element element : secondElements) {
+            assertFalse(firstElements.contains(element));
+        }
+        assertEquals(gatherRequirements(first.getTranslatedLibrary(), cqlTranslatorOptions, null), firstElements);
+        assertEquals(gatherRequirements(second.getTranslatedLibrary(), cqlTranslatorOptions, null), secondElements);
+    }
+
     private static void setup(String relativePath) {
         modelManager = new ModelManager();
         libraryManager = new LibraryManager(modelManager);
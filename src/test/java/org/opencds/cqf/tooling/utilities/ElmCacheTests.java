@@ -0,0 +1,108 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ElmCacheTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void disableCache() {
+        ElmCache.setCacheDirectory(null);
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void TestKeyFollowsSourceAndIncludes() throws IOException {
+        File main = write("Main.cql", "library Main version '1.0.0'\ninclude Common version '1.0.0' called Common\ninclude FHIRHelpers version '4.0.1'\n");
+        write("Common-1.0.0.cql", "library Common version '1.0.0'\n");
+        CqlTranslatorOptions options = CqlTranslatorOptions.defaultOptions();
+
+        String key = ElmCache.getKey(main, options, null);
+        assertEquals(key, ElmCache.getKey(main, options, null));
+        assertNotEquals(key, ElmCache.getKey(main, options, "packages:example#1.0.0"));
+
+        write("Common-1.0.0.cql", "library Common version '1.0.0'\n\ndefine X: 1\n");
+        String changedInclude = ElmCache.getKey(main, options, null);
+        assertNotEquals(key, changedInclude);
+
+        write("Main.cql", "library Main version '1.0.0'\ninclude Common version '1.0.0' called Common\ninclude FHIRHelpers version '4.0.1'\n\ndefine Y: 2\n");
+        assertNotEquals(changedInclude, ElmCache.getKey(main, options, null));
+    }
+
+    @Test
+    public void TestKeyFollowsOptions() throws IOException {
+        File main = write("Main.cql", "library Main\n");
+        CqlTranslatorOptions options = CqlTranslatorOptions.defaultOptions();
+        String key = ElmCache.getKey(main, options, null);
+
+        options.getFormats().add(CqlTranslator.Format.JSON);
+        assertNotEquals(key, ElmCache.getKey(main, options, null));
+    }
+
+    @Test
+    public void TestStoresEntries() throws IOException {
+        File main = write("Main.cql", "library Main version '1.0.0'\n");
+        String key = ElmCache.getKey(main, CqlTranslatorOptions.defaultOptions(), null);
+        byte[] xml = "<library xmlns=\"urn:hl7-org:elm:r1\"/>".getBytes(StandardCharsets.UTF_8);
+
+        ElmCache.Entry entry = new ElmCache.Entry();
+        entry.setIdentifier(new org.hl7.elm.r1.VersionedIdentifier().withId("Main").withVersion("1.0.0"));
+        entry.getMessages().add(new ElmCache.Message("Publisher", "INFORMATIONAL", 1, 1, "Main", "note", "INFORMATION"));
+
+        ElmCache.put(key, entry, output -> output.write(xml), null);
+        assertNull(ElmCache.get(key));
+
+        ElmCache.setCacheDirectory(folder.newFolder("cache").getPath());
+        int misses = ElmCache.getMisses();
+        assertNull(ElmCache.get(key));
+        assertEquals(misses + 1, ElmCache.getMisses());
+
+        ElmCache.put(key, entry, output -> output.write(xml), null);
+        int hits = ElmCache.getHits();
+        ElmCache.Entry cached = ElmCache.get(key);
+        assertEquals(hits + 1, ElmCache.getHits());
+        assertEquals("Main", cached.getIdentifier().getId());
+        assertEquals("1.0.0", cached.getIdentifier().getVersion());
+        assertArrayEquals(xml, Files.readAllBytes(cached.getXmlPath()));
+        assertNull(cached.getJsonPath());
+        assertEquals(1, cached.getMessages().size());
+        assertEquals("note", cached.getMessages().get(0).getMessage());
+    }
+
+    @Test
+    public void TestEntryWithMissingElmIsAMiss() throws IOException {
+        File main = write("Main.cql", "library Main version '1.0.0'\n");
+        String key = ElmCache.getKey(main, CqlTranslatorOptions.defaultOptions(), null);
+        ElmCache.setCacheDirectory(folder.newFolder("cache").getPath());
+
+        ElmCache.Entry entry = new ElmCache.Entry();
+        entry.setIdentifier(new org.hl7.elm.r1.VersionedIdentifier().withId("Main").withVersion("1.0.0"));
+        ElmCache.put(key, entry, output -> output.write("<library/>".getBytes(StandardCharsets.UTF_8)),
+            output -> output.write("{}".getBytes(StandardCharsets.UTF_8)));
+        Files.delete(ElmCache.get(key).getJsonPath());
+
+        assertNull(ElmCache.get(key));
+    }
+}
@@ -0,0 +1,58 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.junit.Test;
+
+public class ElmSerializerTests {
+
+    private static CqlTranslator translate() {
+        ModelManager modelManager = new ModelManager();
+        return CqlTranslator.fromText("library Test version '1.0.0'\n\ndefine X: 1 + 1\n", modelManager, new LibraryManager(modelManager));
+    }
+
+    @Test
+    public void TestXmlMatchesTranslator() {
+        CqlTranslator translator = translate();
+
+        assertArrayEquals(translator.toXml().getBytes(StandardCharsets.UTF_8), ElmSerializer.toXmlBytes(translator.toELM()));
+    }
+
+    @Test
+    public void TestWritesToCompressedStreams() throws IOException {
+        CqlTranslator translator = translate();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream output = new GZIPOutputStream(compressed)) {
+            ElmSerializer.writeXml(translator.toELM(), output);
+        }
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            byte[] buffer = new byte[8192];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                xml.write(buffer, 0, read);
+            }
+        }
+        assertEquals(translator.toXml(), new String(xml.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void TestJsonMatchesTranslator() {
+        CqlTranslator translator = translate();
+
+        assertEquals(translator.toJson(), new String(ElmSerializer.toJsonBytes(translator, CqlTranslator.Format.JSON), StandardCharsets.UTF_8));
+        assertEquals(translator.toJxson(), new String(ElmSerializer.toJsonBytes(translator, CqlTranslator.Format.JXSON), StandardCharsets.UTF_8));
+    }
+}
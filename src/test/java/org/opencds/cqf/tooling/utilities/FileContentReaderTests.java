@@ -0,0 +1,142 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+public class FileContentReaderTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void TestLargeFileCanBeReplacedAfterReading() throws IOException {
+        // Larger than the old memory map threshold, with multi-byte characters across buffer boundaries
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 9 * 1024 * 1024) {
+            builder.append("{ \"title\": \"Prüfung – ✓\" }\n");
+        }
+        String content = builder.toString();
+        File file = write("bundle.json", content);
+
+        byte[] bytes;
+        try (InputStream stream = FileContentReader.newInputStream(file.toPath())) {
+            bytes = readAll(stream);
+        }
+        assertArrayEquals(content.getBytes(StandardCharsets.UTF_8), bytes);
+        assertEquals(content, FileContentReader.readString(file.toPath()));
+
+        // As write-if-changed output does, straight after the reads
+        IOUtils.writeFileAtomically(file.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+        assertEquals("{}", FileContentReader.readString(file.toPath()));
+    }
+
+    private interface Read {
+        Object run(File file) throws IOException;
+    }
+
+    private static Object time(String name, File file, Read read) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            read.run(file);
+        }
+        Object result = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            result = read.run(file);
+        }
+        System.out.println(String.format("%-24s %8.2f ms/op", name, (System.nanoTime() - start) / 1e6 / 10));
+        return result;
+    }
+
+    // Compares the previous IOUtils read paths (a FileReader for resources, line by line for CQL and ELM) with the
+    // FileContentReader they were replaced with
+    @Ignore("Timing comparison, run on demand")
+    @Test
+    public void TestTimeReadPaths() throws IOException {
+        IParser parser = FhirContext.forR4().newJsonParser();
+        StringBuilder bundle = new StringBuilder("{ \"resourceType\": \"Bundle\", \"id\": \"timing\", \"type\": \"transaction\", \"entry\": [");
+        for (int i = 0; i < 5000; i++) {
+            bundle.append(i > 0 ? "," : "").append(String.format("{ \"resource\": { \"resourceType\": \"Patient\", \"id\": \"p%d\", "
+                + "\"name\": [ { \"family\": \"Family%d\" } ], \"birthDate\": \"1970-01-01\" }, \"request\": { \"method\": \"PUT\", \"url\": \"Patient/p%d\" } }", i, i, i));
+        }
+        File bundleFile = write("bundle.json", bundle.append("] }").toString());
+        StringBuilder elm = new StringBuilder("<library xmlns=\"urn:hl7-org:elm:r1\">\n");
+        for (int i = 0; i < 200000; i++) {
+            elm.append(String.format("  <def name=\"Expression %d\" context=\"Patient\"/>\n", i));
+        }
+        File elmFile = write("library.xml", elm.append("</library>\n").toString());
+
+        Object fileReaderBundle = time("bundle, FileReader", bundleFile, file -> {
+            try (Reader reader = new FileReader(file)) {
+                return parser.parseResource(reader);
+            }
+        });
+        Object channelBundle = time("bundle, channel", bundleFile, file -> {
+            try (InputStream stream = FileContentReader.newInputStream(file.toPath())) {
+                return parser.parseResource(stream);
+            }
+        });
+        assertEquals(parser.encodeResourceToString((IBaseResource) fileReaderBundle), parser.encodeResourceToString((IBaseResource) channelBundle));
+
+        Object lines = time("elm, line by line", elmFile, file -> {
+            StringBuilder content = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    content.append(line).append("\n");
+                }
+            }
+            return content.toString();
+        });
+        assertEquals(lines, time("elm, channel", elmFile, file -> FileContentReader.readString(file.toPath())));
+    }
+
+    @Test
+    public void TestEmptyFile() throws IOException {
+        File file = write("empty.cql", "");
+
+        assertEquals("", FileContentReader.readString(file.toPath()));
+        assertEquals("", IOUtils.getCqlString(file.getPath()));
+    }
+
+    @Test
+    public void TestCqlLineEndingsAreNormalized() throws IOException {
+        File file = write("Library.cql", "library Test\r\nusing FHIR version '4.0.1'\rdefine X: 1");
+
+        assertEquals("library Test\nusing FHIR version '4.0.1'\ndefine X: 1\n", IOUtils.getCqlString(file.getPath()));
+    }
+}
@@ -0,0 +1,116 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutputStoreTests {
+
+    private static final byte[] content = "{ \"resourceType\": \"Library\", \"id\": \"FHIRHelpers\" }".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File bundles;
+    private OutputStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        bundles = folder.newFolder("bundles");
+        IOUtils.setOutputStore(new File(folder.getRoot(), OutputStore.DIRECTORY_NAME).getPath(), bundles.getPath());
+        store = IOUtils.getOutputStore();
+    }
+
+    @After
+    public void tearDown() {
+        IOUtils.setOutputStore(null, null);
+    }
+
+    private Path newFile(String directory, String name) {
+        File parent = new File(bundles, directory);
+        parent.mkdirs();
+        return new File(parent, name).toPath();
+    }
+
+    @Test
+    public void TestStoresSharedContentOnce() throws IOException {
+        Path first = newFile("measure-a-files", "library-FHIRHelpers.json");
+        Path second = newFile("measure-b-files", "library-FHIRHelpers.json");
+
+        assertTrue(IOUtils.writeFile(first.toString(), content));
+        assertTrue(IOUtils.writeFile(second.toString(), content));
+
+        assertArrayEquals(content, Files.readAllBytes(first));
+        assertArrayEquals(content, Files.readAllBytes(second));
+        assertEquals(content.length, store.getStoredBytes());
+        assertEquals(content.length, store.getDeduplicatedBytes());
+        assertEquals(2, store.getLinkedFiles() + store.getCopiedFiles());
+        if (store.getLinkedFiles() == 2) {
+            assertTrue(Files.isSameFile(first, second));
+        }
+    }
+
+    @Test
+    public void TestSkipsUnchangedFiles() throws IOException {
+        Path target = newFile("measure-a-files", "library-FHIRHelpers.json");
+        IOUtils.writeFile(target.toString(), content);
+        if (store.getLinkedFiles() == 1) {
+            assertFalse(IOUtils.writeFile(target.toString(), content));
+        }
+
+        byte[] changed = "{ \"resourceType\": \"Library\", \"id\": \"Common\" }".getBytes(StandardCharsets.UTF_8);
+        assertTrue(IOUtils.writeFile(target.toString(), changed));
+        assertArrayEquals(changed, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void TestCopiesAndStreamsThroughStore() throws IOException {
+        Path source = folder.newFile("FHIRHelpers.json").toPath();
+        Files.write(source, content);
+        Path copied = newFile("measure-a-files", "library-FHIRHelpers.json");
+        Path streamed = newFile("measure-b-files", "library-FHIRHelpers.json");
+
+        IOUtils.copyFile(source.toString(), copied.toString());
+        IOUtils.writeFile(streamed.toString(), output -> output.write(content));
+
+        assertArrayEquals(content, Files.readAllBytes(copied));
+        assertArrayEquals(content, Files.readAllBytes(streamed));
+        assertEquals(content.length, store.getDeduplicatedBytes());
+    }
+
+    @Test
+    public void TestIgnoresFilesOutsideScope() throws IOException {
+        Path outside = folder.getRoot().toPath().resolve("library-FHIRHelpers.json");
+        IOUtils.writeFile(outside.toString(), content);
+
+        assertFalse(store.covers(outside));
+        assertArrayEquals(content, Files.readAllBytes(outside));
+        assertEquals(0, store.getStoredBytes());
+    }
+
+    @Test
+    public void TestPrunesUnusedContent() throws IOException {
+        Path target = newFile("measure-a-files", "library-FHIRHelpers.json");
+        IOUtils.writeFile(target.toString(), content);
+        if (store.getLinkedFiles() != 1 || !Files.getFileStore(store.getDirectory()).supportsFileAttributeView("unix")) {
+            return;
+        }
+        assertEquals(0, store.prune());
+
+        Files.delete(target);
+        assertEquals(content.length, store.prune());
+    }
+}
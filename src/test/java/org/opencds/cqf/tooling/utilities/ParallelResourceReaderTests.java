@@ -0,0 +1,103 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class ParallelResourceReaderTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @After
+    public void tearDown() {
+        IOUtils.setReaderParallelism(1);
+        IOUtils.setAsyncWriteThreads(0);
+    }
+
+    private String getResourcesPath() throws URISyntaxException {
+        return new File(ParallelResourceReaderTests.class.getResource("CompositeMeasures/resources").toURI()).getAbsolutePath();
+    }
+
+    private static List<String> getIds(List<IBaseResource> resources) {
+        return resources.stream().map(r -> r.getIdElement().getIdPart()).collect(Collectors.toList());
+    }
+
+    @Test
+    public void TestConcurrentReadsShareOneSmallPool() throws Exception {
+        String resourcesPath = getResourcesPath();
+        List<String> expected = getIds(IOUtils.readResources(IOUtils.getFilePaths(resourcesPath, true), fhirContext));
+
+        // As many concurrent readers as bundling threads, far more than the reading threads they share
+        IOUtils.setReaderParallelism(2);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<List<String>>> reads = Collections.nCopies(16, () -> getIds(IOUtils.readResources(resourcesPath, true, fhirContext)));
+            List<Future<List<String>>> results = callers.invokeAll(new ArrayList<>(reads), 60, TimeUnit.SECONDS);
+            for (Future<List<String>> result : results) {
+                assertEquals(expected, result.get());
+            }
+        }
+        finally {
+            callers.shutdownNow();
+        }
+        assertEquals(22, expected.size());
+    }
+
+    @Test
+    public void TestReadsWaitForQueuedWrites() throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            File file = new File(folder.getRoot(), "library-" + i + ".json");
+            Files.write(file.toPath(), ("{ \"resourceType\": \"Library\", \"id\": \"l" + i + "\", \"version\": \"1.0.0\" }").getBytes(StandardCharsets.UTF_8));
+            paths.add(file.getPath());
+        }
+        IOUtils.readResources(paths, fhirContext);
+
+        IOUtils.setReaderParallelism(4);
+        IOUtils.setAsyncWriteThreads(1);
+        for (String path : paths) {
+            IOUtils.writeFile(path, ("{ \"resourceType\": \"Library\", \"id\": \"" + new File(path).getName() + "\", \"version\": \"2.0.0\" }")
+                .getBytes(StandardCharsets.UTF_8));
+        }
+
+        for (IBaseResource resource : IOUtils.readResources(paths, fhirContext)) {
+            assertEquals("2.0.0", ((Library) resource).getVersion());
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void TestParseErrorsPropagate() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            Files.write(new File(folder.getRoot(), "library-" + i + ".json").toPath(), ("{ \"resourceType\": \"Library\", \"id\": \"l" + i + "\" }").getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(new File(folder.getRoot(), "broken.json").toPath(), "{ \"resourceType\": ".getBytes(StandardCharsets.UTF_8));
+
+        IOUtils.setReaderParallelism(4);
+        IOUtils.readResources(folder.getRoot().getPath(), true, fhirContext);
+    }
+}
@@ -0,0 +1,128 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.elm_modelinfo.r1.ModelInfo;
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PrecompiledModelInfoProviderTests {
+
+    private static final int ITERATIONS = 5;
+
+    private static final String[][] MODELS = { { "FHIR", "4.0.1" }, { "QICore", "4.0.0" } };
+
+    private interface Run {
+        void resolve() throws IOException;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void reset() {
+        PrecompiledModelInfoProvider.setCacheDirectory(null);
+        PrecompiledModelInfoProvider.clear();
+    }
+
+    private static void resolve(ModelManager modelManager) {
+        for (String[] model : MODELS) {
+            modelManager.resolveModel(model[0], model[1]);
+        }
+    }
+
+    private static void resolveWithProvider() {
+        ModelManager modelManager = new ModelManager();
+        PrecompiledModelInfoProvider.register(modelManager, null);
+        resolve(modelManager);
+    }
+
+    private static void time(String name, Run run) throws IOException {
+        long start = System.nanoTime();
+        run.resolve();
+        long first = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            run.resolve();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-16s first %10.2f ms, then %10.2f ms/run", name, first / 1e6, elapsed / 1e6 / ITERATIONS));
+    }
+
+    private static VersionedIdentifier fhir() {
+        return new VersionedIdentifier().withId("FHIR").withVersion("4.0.1");
+    }
+
+    @Test
+    public void TestCachesModelsInMemory() {
+        PrecompiledModelInfoProvider.clear();
+        ModelInfo first = new PrecompiledModelInfoProvider(null).load(fhir());
+        assertNotNull(first);
+        assertSame(first, new PrecompiledModelInfoProvider(null).load(fhir()));
+        assertNull(new PrecompiledModelInfoProvider(null).load(new VersionedIdentifier().withId("NoSuchModel").withVersion("1.0.0")));
+    }
+
+    @Test
+    public void TestReadsPrecompiledModels() throws IOException {
+        PrecompiledModelInfoProvider.clear();
+        PrecompiledModelInfoProvider.setCacheDirectory(folder.newFolder("modelinfo").getPath());
+        ModelInfo loaded = new PrecompiledModelInfoProvider(null).load(fhir());
+
+        PrecompiledModelInfoProvider.clear();
+        int precompiledLoads = PrecompiledModelInfoProvider.getPrecompiledLoads();
+        ModelInfo precompiled = new PrecompiledModelInfoProvider(null).load(fhir());
+
+        assertEquals(precompiledLoads + 1, PrecompiledModelInfoProvider.getPrecompiledLoads());
+        assertEquals(loaded.getName(), precompiled.getName());
+        assertEquals(loaded.getVersion(), precompiled.getVersion());
+        assertEquals(loaded.getUrl(), precompiled.getUrl());
+        assertEquals(loaded.getTypeInfo().size(), precompiled.getTypeInfo().size());
+        for (int i = 0; i < loaded.getTypeInfo().size(); i++) {
+            assertEquals(loaded.getTypeInfo().get(i).getClass(), precompiled.getTypeInfo().get(i).getClass());
+        }
+    }
+
+    @Test
+    public void TestLeavesFolderModelsToTheFolder() throws IOException {
+        File cqlFolder = folder.newFolder("cql");
+        Files.write(new File(cqlFolder, "fhir-modelinfo-4.0.1.xml").toPath(), new byte[0]);
+
+        assertNull(new PrecompiledModelInfoProvider(cqlFolder.toPath()).load(fhir()));
+    }
+
+    // Resolves FHIR 4.0.1 and QICore 4.0.0 (which also loads the System model) with a new ModelManager from the
+    // model info XML, from the pre-serialized form and from the in-memory cache. The first run of the XML and
+    // pre-serialized paths includes the one-time JAXB and Jackson setup, so it is reported separately.
+    @Ignore("Timing comparison, run on demand")
+    @Test
+    public void TestTimeModelResolution() throws IOException {
+        time("model info XML", () -> {
+            PrecompiledModelInfoProvider.setCacheDirectory(null);
+            resolve(new ModelManager());
+        });
+
+        // Creates the pre-serialized entries
+        PrecompiledModelInfoProvider.setCacheDirectory(folder.newFolder("modelinfo").getPath());
+        PrecompiledModelInfoProvider.clear();
+        resolveWithProvider();
+
+        time("pre-serialized", () -> {
+            PrecompiledModelInfoProvider.clear();
+            resolveWithProvider();
+        });
+        time("in-memory", () -> resolveWithProvider());
+    }
+}
@@ -0,0 +1,92 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class ResourceCacheTests {
+
+    private static final long LARGE_FILE_SIZE = 512L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // A sparse file as large as a big bundle, whose content the loaders below never read
+    private File newLargeFile(String name) throws IOException {
+        File file = folder.newFile(name);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(LARGE_FILE_SIZE);
+        }
+        return file;
+    }
+
+    private static IBaseResource newLibrary(File file) {
+        Library library = new Library();
+        library.setId(file.getName());
+        return library;
+    }
+
+    @Test
+    public void TestDefaultCacheKeepsModifiedInstances() throws IOException {
+        ResourceCache cache = new ResourceCache();
+        File first = newLargeFile("first.json");
+        Library library = (Library) cache.get(first, ResourceCacheTests::newLibrary);
+        // As BundleUtils.bundleArtifacts and TestCaseProcessor do
+        library.setId("assigned");
+
+        for (int i = 0; i < 4; i++) {
+            cache.get(newLargeFile("other-" + i + ".json"), ResourceCacheTests::newLibrary);
+        }
+        cache.cleanUp();
+
+        IBaseResource again = cache.get(first, ResourceCacheTests::newLibrary);
+        assertSame(library, again);
+        assertEquals("assigned", again.getIdElement().getIdPart());
+        assertEquals(5, cache.size());
+        assertEquals(0, cache.getStats().evictionCount());
+    }
+
+    @Test
+    public void TestBoundedCacheDropsModifiedInstances() throws IOException {
+        ResourceCache cache = new ResourceCache(LARGE_FILE_SIZE / 2);
+        File first = newLargeFile("first.json");
+        Library library = (Library) cache.get(first, ResourceCacheTests::newLibrary);
+        library.setId("assigned");
+
+        cache.cleanUp();
+
+        IBaseResource again = cache.get(first, ResourceCacheTests::newLibrary);
+        assertNotSame(library, again);
+        assertNotEquals("assigned", again.getIdElement().getIdPart());
+    }
+
+    @Test
+    public void TestModifiedFileIsReparsed() throws IOException {
+        FhirContext fhirContext = FhirContext.forR4();
+        File file = folder.newFile("library-b.json");
+        Files.write(file.toPath(), "{ \"resourceType\": \"Library\", \"id\": \"b\", \"version\": \"1.0.0\" }".getBytes(StandardCharsets.UTF_8));
+        Library first = (Library) IOUtils.readResource(file.getPath(), fhirContext);
+
+        Files.write(file.toPath(), "{ \"resourceType\": \"Library\", \"id\": \"b\", \"version\": \"1.0.10\" }".getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(file.lastModified() + 2000);
+        Library second = (Library) IOUtils.readResource(file.getPath(), fhirContext);
+
+        assertNotSame(first, second);
+        assertEquals("1.0.10", second.getVersion());
+    }
+}
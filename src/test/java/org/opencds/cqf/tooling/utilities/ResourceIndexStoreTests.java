@@ -0,0 +1,99 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class ResourceIndexStoreTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    private File writeLibrary(File directory, String id, String version) throws IOException {
+        File file = new File(directory, "library-" + id + ".json");
+        String json = String.format("{ \"resourceType\": \"Library\", \"id\": \"%s\", \"url\": \"http://example.org/Library/%s\", \"version\": \"%s\" }", id, id, version);
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private ResourceIndexStore buildAndSave(File resources, File cache) throws IOException {
+        ResourceIndexStore store = new ResourceIndexStore(cache.getPath(), fhirContext.getVersion().getVersion());
+        ResourceIndex.build(Collections.singletonList(resources.getPath()), fhirContext, store);
+        store.save();
+        return store;
+    }
+
+    @Test
+    public void TestDeletedFilesAreDropped() throws IOException {
+        File resources = folder.newFolder("resources");
+        File cache = new File(folder.getRoot(), ResourceIndexStore.CACHE_DIRECTORY_NAME);
+        writeLibrary(resources, "a", "1.0.0");
+        File deleted = writeLibrary(resources, "b", "1.0.0");
+        buildAndSave(resources, cache);
+
+        Files.delete(deleted.toPath());
+        ResourceIndexStore warm = buildAndSave(resources, cache);
+        assertEquals(1, warm.getHits());
+
+        String stored = new String(Files.readAllBytes(warm.getIndexFile().toPath()), StandardCharsets.UTF_8);
+        assertFalse(stored.contains(deleted.getName()));
+    }
+
+    @Test
+    public void TestIndexOfAnotherFhirVersionIsDiscarded() throws IOException {
+        File resources = folder.newFolder("resources");
+        File cache = new File(folder.getRoot(), ResourceIndexStore.CACHE_DIRECTORY_NAME);
+        writeLibrary(resources, "a", "1.0.0");
+        buildAndSave(resources, cache);
+
+        FhirContext dstu3 = FhirContext.forDstu3();
+        ResourceIndexStore store = new ResourceIndexStore(cache.getPath(), dstu3.getVersion().getVersion());
+        ResourceIndex.build(Collections.singletonList(resources.getPath()), dstu3, store);
+        assertEquals(0, store.getHits());
+        assertEquals(1, store.getMisses());
+    }
+
+    @Test
+    public void TestChangedFilesAreReclassified() throws IOException {
+        File resources = folder.newFolder("resources");
+        File cache = new File(folder.getRoot(), ResourceIndexStore.CACHE_DIRECTORY_NAME);
+        File touched = writeLibrary(resources, "a", "1.0.0");
+        writeLibrary(resources, "b", "1.0.0");
+        buildAndSave(resources, cache);
+
+        // Only the timestamp changes, so the content hash still matches
+        touched.setLastModified(touched.lastModified() + 2000);
+        File edited = writeLibrary(resources, "b", "2.0.0");
+        edited.setLastModified(edited.lastModified() + 2000);
+
+        ResourceIndexStore warm = new ResourceIndexStore(cache.getPath(), fhirContext.getVersion().getVersion());
+        ResourceIndex index = ResourceIndex.build(Collections.singletonList(resources.getPath()), fhirContext, warm);
+        assertEquals(1, warm.getHits());
+        assertEquals(1, warm.getMisses());
+        assertEquals("2.0.0", index.getEntry(edited.getPath()).getVersion());
+    }
+
+    @Test
+    public void TestUnreadableIndexIsDiscarded() throws IOException {
+        File resources = folder.newFolder("resources");
+        File cache = folder.newFolder(ResourceIndexStore.CACHE_DIRECTORY_NAME);
+        writeLibrary(resources, "a", "1.0.0");
+        Files.write(new File(cache, ResourceIndexStore.INDEX_FILE_NAME).toPath(), "{ not json".getBytes(StandardCharsets.UTF_8));
+
+        ResourceIndexStore store = buildAndSave(resources, cache);
+        assertEquals(1, store.getMisses());
+    }
+}
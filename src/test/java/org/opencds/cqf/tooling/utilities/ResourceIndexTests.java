@@ -0,0 +1,62 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class ResourceIndexTests {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    private String getResourcesPath() throws URISyntaxException {
+        return new File(ResourceIndexTests.class.getResource("CompositeMeasures/resources").toURI()).getAbsolutePath();
+    }
+
+    @Test
+    public void TestClassifiesResources() throws URISyntaxException {
+        ResourceIndex index = ResourceIndex.build(Collections.singletonList(getResourcesPath()), fhirContext);
+
+        assertEquals(10, index.getPaths("Library").size());
+        assertEquals(12, index.getPaths("Measure").size());
+
+        String fhirHelpersPath = index.getPathMap("Library").get("FHIRHelpers");
+        assertNotNull(fhirHelpersPath);
+        ResourceIndex.Entry entry = index.getEntry(fhirHelpersPath);
+        assertEquals("http://ecqi.healthit.gov/ecqms/Library/FHIRHelpers", entry.getUrl());
+        assertEquals("4.0.001", entry.getVersion());
+        assertNotNull(index.getUrlMap("Library").get("http://ecqi.healthit.gov/ecqms/Library/FHIRHelpers"));
+    }
+
+    @Test
+    public void TestEmptyResultsAreCached() throws URISyntaxException {
+        ResourceIndex index = ResourceIndex.build(Collections.singletonList(getResourcesPath()), fhirContext);
+
+        assertTrue(index.getPaths("ValueSet").isEmpty());
+        assertSame(index.getPaths("ValueSet"), index.getPaths("ValueSet"));
+    }
+
+    @Test
+    public void TestIOUtilsAccessorsShareOneIndex() throws URISyntaxException {
+        IOUtils.resourceDirectories.clear();
+        IOUtils.resourceDirectories.add(getResourcesPath());
+        try {
+            ResourceIndex index = IOUtils.getResourceIndex(fhirContext);
+            assertSame(index.getPaths("Library"), IOUtils.getLibraryPaths(fhirContext));
+            assertSame(index.getPaths("Measure"), IOUtils.getMeasurePaths(fhirContext));
+            assertTrue(IOUtils.getTerminologyPaths(fhirContext).isEmpty());
+            assertSame(index, IOUtils.getResourceIndex(fhirContext));
+        } finally {
+            IOUtils.resourceDirectories.clear();
+            IOUtils.invalidateResourceIndex();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class ResourceSnifferTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    private String write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    @Test
+    public void TestSniffsXmlHeader() throws IOException, URISyntaxException {
+        String path = new File(ResourceSnifferTests.class.getResource("CompositeMeasures/resources/FHIRHelpers.xml").toURI()).getAbsolutePath();
+        ResourceIndex.Entry entry = ResourceSniffer.sniff(path, fhirContext);
+
+        assertEquals("Library", entry.getResourceType());
+        assertEquals("FHIRHelpers", entry.getId());
+        assertEquals("http://ecqi.healthit.gov/ecqms/Library/FHIRHelpers", entry.getUrl());
+        assertEquals("4.0.001", entry.getVersion());
+    }
+
+    @Test
+    public void TestSniffsJsonHeaderInAnyOrder() throws IOException {
+        String path = write("library.json",
+            "{ \"id\": \"lib\", \"meta\": { \"id\": \"nested\" }, \"url\": \"http://example.org/Library/lib\", \"resourceType\": \"Library\", \"version\": \"1.0.0\" }");
+        ResourceIndex.Entry entry = ResourceSniffer.sniff(path, fhirContext);
+
+        assertEquals("Library", entry.getResourceType());
+        assertEquals("lib", entry.getId());
+        assertEquals("http://example.org/Library/lib", entry.getUrl());
+        assertEquals("1.0.0", entry.getVersion());
+    }
+
+    @Test
+    public void TestIgnoresFieldsTheTypeDoesNotDefine() throws IOException {
+        String path = write("bundle.json", "{ \"resourceType\": \"Bundle\", \"id\": \"b\", \"type\": \"transaction\", \"entry\": [] }");
+        ResourceIndex.Entry entry = ResourceSniffer.sniff(path, fhirContext);
+
+        assertEquals("Bundle", entry.getResourceType());
+        assertEquals("b", entry.getId());
+        assertNull(entry.getUrl());
+        assertNull(entry.getVersion());
+    }
+
+    @Test
+    public void TestNonResourcesAreNotSniffed() throws IOException {
+        assertNull(ResourceSniffer.sniff(write("package.json", "{ \"name\": \"fhir.cqf.common\", \"version\": \"4.0.1\" }"), fhirContext));
+        assertNull(ResourceSniffer.sniff(write("unknown.json", "{ \"resourceType\": \"NotAResource\", \"id\": \"x\" }"), fhirContext));
+        assertNull(ResourceSniffer.sniff(write("array.json", "[ 1, 2, 3 ]"), fhirContext));
+        assertNull(ResourceSniffer.sniffResourceType(write("broken.xml", "<Library xmlns=\"http://hl7.org/fhir\"><id"), fhirContext));
+    }
+}
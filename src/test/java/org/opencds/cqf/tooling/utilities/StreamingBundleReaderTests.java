@@ -0,0 +1,103 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Narrative;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class StreamingBundleReaderTests {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Bundle createBundle() {
+        Bundle bundle = new Bundle();
+        bundle.setId("test-bundle");
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+
+        Library library = new Library();
+        library.setId("test");
+        library.setName("Test");
+        library.getText().setStatus(Narrative.NarrativeStatus.GENERATED).setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\"><p>Test <b>library</b></p></div>");
+        bundle.addEntry().setResource(library).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl("Library/test");
+
+        Measure measure = new Measure();
+        measure.setId("measure");
+        measure.setName("Measure");
+        measure.addLibrary("http://example.org/Library/test");
+        bundle.addEntry().setResource(measure).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl("Measure/measure");
+        bundle.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl("Measure/removed");
+        return bundle;
+    }
+
+    private File write(IBaseResource resource, Encoding encoding) throws IOException {
+        File file = new File(folder.getRoot(), "bundle" + IOUtils.getFileExtension(encoding));
+        Files.write(file.toPath(), IOUtils.encodeResourceAsString(resource, encoding, fhirContext).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private void assertReadsEntries(Encoding encoding) throws IOException {
+        List<IBaseResource> resources = new ArrayList<>();
+        int count = StreamingBundleReader.readEntries(write(createBundle(), encoding), fhirContext, resources::add);
+
+        assertEquals(2, count);
+        assertEquals(2, resources.size());
+        Library library = (Library) resources.get(0);
+        assertEquals("test", library.getIdElement().getIdPart());
+        assertEquals("Test", library.getName());
+        assertTrue(library.getText().getDivAsString().contains("<b>library</b>"));
+        Measure measure = (Measure) resources.get(1);
+        assertEquals("http://example.org/Library/test", measure.getLibrary().get(0).getValue());
+    }
+
+    @Test
+    public void TestReadsJsonEntries() throws IOException {
+        assertReadsEntries(Encoding.JSON);
+    }
+
+    @Test
+    public void TestReadsXmlEntries() throws IOException {
+        assertReadsEntries(Encoding.XML);
+    }
+
+    @Test
+    public void TestIgnoresOtherResources() throws IOException {
+        Library library = new Library();
+        library.setId("test");
+
+        assertEquals(0, StreamingBundleReader.readEntries(write(library, Encoding.JSON), fhirContext, resource -> { }));
+        assertEquals(0, StreamingBundleReader.readEntries(write(library, Encoding.XML), fhirContext, resource -> { }));
+    }
+
+    @Test
+    public void TestExtractsResources() throws IOException {
+        File bundle = write(createBundle(), Encoding.JSON);
+        File output = folder.newFolder("output");
+
+        assertEquals(2, BundleUtils.extractResources(bundle, "json", fhirContext, output.getPath(), 2));
+        List<String> files = Arrays.asList(output.list());
+        assertEquals(2, files.size());
+        assertTrue(files.stream().anyMatch(file -> file.endsWith("-test.json")));
+        assertTrue(files.stream().anyMatch(file -> file.endsWith("-measure.json")));
+    }
+}
@@ -0,0 +1,71 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.Test;
+import org.opencds.cqf.tooling.utilities.IOUtils.Encoding;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class StreamingBundleWriterTests {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    private static Bundle write(Encoding encoding, boolean withEntries) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (StreamingBundleWriter writer = new StreamingBundleWriter(output, "test-bundle", encoding, fhirContext)) {
+            if (withEntries) {
+                Library library = new Library();
+                library.setId("Library/test");
+                library.setDescription("Line one\nLine \"two\" <&>");
+                writer.writeEntry(library, BundleUtils.getRequestUrl(library, fhirContext));
+
+                ValueSet valueSet = new ValueSet();
+                valueSet.setId("ValueSet/codes");
+                valueSet.setUrl("http://example.org/ValueSet/codes");
+                writer.writeEntry(valueSet, BundleUtils.getRequestUrl(valueSet, fhirContext));
+            }
+        }
+        String content = new String(output.toByteArray(), StandardCharsets.UTF_8);
+        return (Bundle) IOUtils.getParser(encoding, fhirContext).parseResource(content);
+    }
+
+    private static void assertEntries(Bundle bundle) {
+        assertEquals("test-bundle", bundle.getIdElement().getIdPart());
+        assertEquals(Bundle.BundleType.TRANSACTION, bundle.getType());
+        assertEquals(2, bundle.getEntry().size());
+
+        Library library = (Library) bundle.getEntry().get(0).getResource();
+        assertEquals("Line one\nLine \"two\" <&>", library.getDescription());
+        assertEquals(Bundle.HTTPVerb.PUT, bundle.getEntry().get(0).getRequest().getMethod());
+        assertEquals("Library/test", bundle.getEntry().get(0).getRequest().getUrl());
+
+        ValueSet valueSet = (ValueSet) bundle.getEntry().get(1).getResource();
+        assertEquals("http://example.org/ValueSet/codes", valueSet.getUrl());
+        assertEquals("ValueSet/codes", bundle.getEntry().get(1).getRequest().getUrl());
+    }
+
+    @Test
+    public void TestWritesJson() throws IOException {
+        assertEntries(write(Encoding.JSON, true));
+    }
+
+    @Test
+    public void TestWritesXml() throws IOException {
+        assertEntries(write(Encoding.XML, true));
+    }
+
+    @Test
+    public void TestWritesEmptyBundles() throws IOException {
+        assertTrue(write(Encoding.JSON, false).getEntry().isEmpty());
+        assertTrue(write(Encoding.XML, false).getEntry().isEmpty());
+    }
+}
@@ -0,0 +1,142 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencds.cqf.tooling.processor.ValueSetsProcessor;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class ValueSetClosureTests {
+
+    private static final String COMMON_VS = "http://example.org/fhir/ValueSet/common";
+    private static final String MEASURE_VS = "http://example.org/fhir/ValueSet/measure";
+    private static final String OTHER_VS = "http://example.org/fhir/ValueSet/other";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    private File cql;
+    private File resources;
+
+    @Before
+    public void setUp() throws IOException {
+        cql = folder.newFolder("cql");
+        resources = folder.newFolder("resources");
+        writeValueSet("common", COMMON_VS);
+        writeValueSet("measure", MEASURE_VS);
+        writeCql("Common", "library Common version '1.0.0'\n\nvalueset \"Common\": '" + COMMON_VS + "'\n");
+        writeCql("Measure", "library Measure version '1.0.0'\n\ninclude Common version '1.0.0'\n\nvalueset \"Measure\": '" + MEASURE_VS + "'\n");
+        reset();
+        IOUtils.resourceDirectories.add(resources.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        reset();
+    }
+
+    private void reset() {
+        IOUtils.resourceDirectories.clear();
+        IOUtils.invalidateResourceIndex();
+        ValueSetsProcessor.clearCachedValueSets();
+        ResourceUtils.clearValueSetClosures();
+        ResourceUtils.clearElmCache();
+    }
+
+    private void writeValueSet(String id, String url) throws IOException {
+        Files.write(new File(resources, "valueset-" + id + ".json").toPath(),
+            ("{ \"resourceType\": \"ValueSet\", \"id\": \"" + id + "\", \"url\": \"" + url + "\" }").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String writeCql(String name, String content) throws IOException {
+        File file = new File(cql, name + ".cql");
+        boolean existed = file.exists();
+        long previous = file.lastModified();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        if (existed) {
+            // Past the resolution of the file system's modification times
+            file.setLastModified(previous + 2000);
+        }
+        return file.getPath();
+    }
+
+    private Map<String, IBaseResource> getClosure(String name) throws Exception {
+        return ResourceUtils.getDepValueSetResources(new File(cql, name + ".cql").getPath(), folder.getRoot().getPath(), fhirContext, true, false);
+    }
+
+    @Test
+    public void TestClosureIncludesValueSetsOfIncludedLibraries() throws Exception {
+        Map<String, IBaseResource> closure = getClosure("Measure");
+
+        assertEquals(new HashSet<>(Arrays.asList(COMMON_VS, MEASURE_VS)), closure.keySet());
+        assertSame(closure, getClosure("Measure"));
+        assertEquals(new HashSet<>(Arrays.asList(COMMON_VS)), getClosure("Common").keySet());
+    }
+
+    @Test
+    public void TestMissingValueSetsAreReportedEveryTime() throws Exception {
+        writeCql("Common", "library Common version '1.0.0'\n\nvalueset \"Other\": '" + OTHER_VS + "'\n");
+
+        Exception first = null;
+        try {
+            getClosure("Measure");
+            fail("Expected the missing ValueSet to be reported");
+        }
+        catch (Exception e) {
+            first = e;
+            assertTrue(e.getMessage().contains(OTHER_VS + " MISSING"));
+        }
+        try {
+            getClosure("Measure");
+            fail("Expected the missing ValueSet to be reported again");
+        }
+        catch (Exception e) {
+            assertSame(first, e);
+        }
+    }
+
+    @Test
+    public void TestEditedIncludeIsRecomputed() throws Exception {
+        Map<String, IBaseResource> before = getClosure("Measure");
+
+        writeValueSet("other", OTHER_VS);
+        ValueSetsProcessor.clearCachedValueSets();
+        IOUtils.invalidateResourceIndex();
+        writeCql("Common", "library Common version '1.0.0'\n\nvalueset \"Other\": '" + OTHER_VS + "'\n");
+
+        Map<String, IBaseResource> after = getClosure("Measure");
+        assertNotSame(before, after);
+        assertEquals(new HashSet<>(Arrays.asList(OTHER_VS, MEASURE_VS)), after.keySet());
+    }
+
+    @Test
+    public void TestChangedValueSetsAreRecomputed() throws Exception {
+        Map<String, IBaseResource> before = getClosure("Common");
+
+        ValueSetsProcessor.clearCachedValueSets();
+
+        Map<String, IBaseResource> after = getClosure("Common");
+        assertNotSame(before, after);
+        assertEquals(before.keySet(), after.keySet());
+    }
+}
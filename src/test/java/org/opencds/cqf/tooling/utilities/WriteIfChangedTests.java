@@ -0,0 +1,95 @@
+package org.opencds.cqf.tooling.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteIfChangedTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void assertLinkedFileIsNotWrittenInPlace(boolean writeIfChanged) throws IOException {
+        File shared = folder.newFile("shared.json");
+        Files.write(shared.toPath(), bytes("{ \"id\": \"a\" }"));
+        File written = new File(folder.getRoot(), "written.json");
+        File copied = new File(folder.getRoot(), "copied.json");
+        Files.createLink(written.toPath(), shared.toPath());
+        Files.createLink(copied.toPath(), shared.toPath());
+        File source = folder.newFile("source.json");
+        Files.write(source.toPath(), bytes("{ \"id\": \"c\" }"));
+
+        IOUtils.setWriteIfChanged(writeIfChanged);
+        try {
+            IOUtils.writeFile(written.getPath(), bytes("{ \"id\": \"b\" }"));
+            IOUtils.copyFile(source.getPath(), copied.getPath());
+        }
+        finally {
+            IOUtils.setWriteIfChanged(true);
+        }
+
+        assertArrayEquals(bytes("{ \"id\": \"b\" }"), Files.readAllBytes(written.toPath()));
+        assertArrayEquals(bytes("{ \"id\": \"c\" }"), Files.readAllBytes(copied.toPath()));
+        assertArrayEquals(bytes("{ \"id\": \"a\" }"), Files.readAllBytes(shared.toPath()));
+    }
+
+    @Test
+    public void TestLinkedFileIsNotWrittenInPlace() throws IOException {
+        assertLinkedFileIsNotWrittenInPlace(true);
+    }
+
+    @Test
+    public void TestLinkedFileIsNotWrittenInPlaceWhenAlwaysWriting() throws IOException {
+        assertLinkedFileIsNotWrittenInPlace(false);
+    }
+
+    @Test
+    public void TestFailedRegenerationKeepsPreviousOutput() throws IOException {
+        File bundle = folder.newFolder("bundle");
+        Files.write(new File(bundle, "bundle.json").toPath(), bytes("previous"));
+        Files.write(new File(bundle, "library.cql").toPath(), bytes("previous"));
+
+        // As MeasureProcessor does when bundling throws after the first file was written
+        IOUtils.syncDirectory(bundle.getPath());
+        IOUtils.writeFile(new File(bundle, "bundle.json").getPath(), bytes("regenerated"));
+        IOUtils.cancelSync(bundle.getPath());
+
+        assertArrayEquals(bytes("previous"), Files.readAllBytes(new File(bundle, "library.cql").toPath()));
+        // The directory is no longer tracked, so a later removal deletes nothing
+        IOUtils.removeStaleFiles(bundle.getPath());
+        assertTrue(new File(bundle, "library.cql").exists());
+    }
+
+    @Test
+    public void TestSyncedDirectoryKeepsOnlyWrittenFiles() throws IOException {
+        File bundle = folder.newFolder("bundle");
+        File files = new File(bundle, "bundle-files");
+        files.mkdir();
+        Files.write(new File(bundle, "kept.json").toPath(), bytes("kept"));
+        Files.write(new File(bundle, "stale.json").toPath(), bytes("stale"));
+        Files.write(new File(files, "stale.cql").toPath(), bytes("stale"));
+
+        IOUtils.syncDirectory(bundle.getPath());
+        IOUtils.writeFile(new File(bundle, "kept.json").getPath(), bytes("kept"));
+        IOUtils.writeFile(new File(bundle, "new.json").getPath(), bytes("new"));
+        IOUtils.removeStaleFiles(bundle.getPath());
+
+        assertTrue(new File(bundle, "kept.json").exists());
+        assertTrue(new File(bundle, "new.json").exists());
+        assertFalse(new File(bundle, "stale.json").exists());
+        assertFalse(files.exists());
+    }
+}
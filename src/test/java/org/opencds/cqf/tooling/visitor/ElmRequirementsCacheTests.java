@@ -0,0 +1,62 @@
+package org.opencds.cqf.tooling.visitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.ref.Reference;
+import java.util.Collections;
+
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.junit.Test;
+
+public class ElmRequirementsCacheTests {
+
+    // Does to the entry's reference what the garbage collector does once the library is unreachable
+    private static void collect(ElmRequirementsCache cache, String key) {
+        Reference<TranslatedLibrary> reference = cache.getReference(key);
+        reference.clear();
+        reference.enqueue();
+    }
+
+    @Test
+    public void TestEntriesOfCollectedLibrariesAreRemoved() {
+        ElmRequirementsCache cache = new ElmRequirementsCache();
+        TranslatedLibrary used = new TranslatedLibrary();
+        cache.put("unused", new TranslatedLibrary(), Collections.<ElmRequirement>emptyList());
+        cache.put("used", used, Collections.<ElmRequirement>emptyList());
+
+        collect(cache, "unused");
+        assertEquals(2, cache.size());
+        cache.removeCollectedEntries();
+
+        assertEquals(1, cache.size());
+        assertNull(cache.getReference("unused"));
+        assertNotNull(cache.get("used", used));
+    }
+
+    @Test
+    public void TestPutRemovesEntriesOfCollectedLibraries() {
+        ElmRequirementsCache cache = new ElmRequirementsCache();
+        TranslatedLibrary used = new TranslatedLibrary();
+        cache.put("unused", new TranslatedLibrary(), Collections.<ElmRequirement>emptyList());
+
+        collect(cache, "unused");
+        cache.put("used", used, Collections.<ElmRequirement>emptyList());
+
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("used", used));
+    }
+
+    @Test
+    public void TestEntriesAreOnlyUsedForTheirLibrary() {
+        ElmRequirementsCache cache = new ElmRequirementsCache();
+        TranslatedLibrary library = new TranslatedLibrary();
+        cache.put("key", library, Collections.<ElmRequirement>emptyList());
+
+        assertNotNull(cache.get("key", library));
+        assertNull(cache.get("key", new TranslatedLibrary()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+}